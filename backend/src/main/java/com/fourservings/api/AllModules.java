@@ -17,19 +17,44 @@
 
 package com.fourservings.api;
 
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import com.fourservings.api.config.Configuration;
 import com.fourservings.api.config.ConfigurationModule;
+import com.fourservings.api.db.DeduplicatingRepository;
+import com.fourservings.api.db.GridFsRepository;
 import com.fourservings.api.db.MongoDatabaseProvider;
 import com.fourservings.api.db.MongoRepository;
 import com.fourservings.api.endpoint.EndpointModule;
+import com.fourservings.api.files.CachingRepository;
+import com.fourservings.api.files.FileDeletionQueue;
+import com.fourservings.api.files.FileSystemRepository;
+import com.fourservings.api.files.ImageVariantRepository;
+import com.fourservings.api.files.ImageVariants;
+import com.fourservings.api.files.OrphanedFileCollector;
+import com.fourservings.api.files.TieredRepository;
 import com.fourservings.api.resteasy.JsonExceptionMapper;
 import com.fourservings.api.resteasy.JsonMessageBodyReader;
 import com.fourservings.api.resteasy.JsonMessageBodyWriter;
+import com.fourservings.api.search.FuzzyIndex;
+import com.fourservings.api.search.IngredientIndex;
+import com.fourservings.api.search.KeywordIndex;
+import com.fourservings.api.search.RecipeListener;
+import com.fourservings.api.search.SuggestIndex;
 import com.google.inject.AbstractModule;
+import com.google.inject.Provides;
+import com.google.inject.multibindings.Multibinder;
+import com.google.inject.name.Named;
+import com.google.inject.name.Names;
 import com.mongodb.client.MongoDatabase;
 
+import org.apache.commons.lang3.StringUtils;
 import org.jboss.resteasy.plugins.guice.ext.RequestScopeModule;
 
 public class AllModules extends AbstractModule {
+    private static final String STORAGE = "storage";
+
     @Override
     protected void configure() {
         install(new ConfigurationModule());
@@ -46,7 +71,63 @@ public class AllModules extends AbstractModule {
         // Database bindings
         bind(MongoDatabase.class).toProvider(MongoDatabaseProvider.class);
 
-        // Using mongodb as the file store
-        bind(Repository.class).to(MongoRepository.class);
+        // In-memory indexes kept up to date as recipes change
+        Multibinder<RecipeListener> recipeListeners = Multibinder.newSetBinder(binder(), RecipeListener.class);
+        recipeListeners.addBinding().to(KeywordIndex.class);
+        recipeListeners.addBinding().to(SuggestIndex.class);
+        recipeListeners.addBinding().to(IngredientIndex.class);
+        recipeListeners.addBinding().to(FuzzyIndex.class);
+
+        // Start working through files queued for deletion by earlier runs
+        bind(FileDeletionQueue.class).asEagerSingleton();
+        bind(OrphanedFileCollector.class).asEagerSingleton();
+
+        // Schedule recounting recipes
+        bind(RecipeCounter.class).asEagerSingleton();
+
+        // File store, selected by FILE_REPOSITORY
+        switch (StringUtils.defaultIfBlank(Configuration.get("FILE_REPOSITORY"), "mongo")) {
+            case "gridfs":
+                bind(Repository.class).annotatedWith(Names.named(STORAGE)).to(GridFsRepository.class);
+                break;
+            case "mongo":
+                bind(Repository.class).annotatedWith(Names.named(STORAGE)).to(MongoRepository.class);
+                break;
+            case "filesystem":
+                bind(Repository.class).annotatedWith(Names.named(STORAGE)).to(FileSystemRepository.class);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown FILE_REPOSITORY: " + Configuration.get("FILE_REPOSITORY"));
+        }
+    }
+
+    /** The file store as seen by the rest of the app: the configured storage
+     * with any optional layers stacked on top of it.
+     */
+    @Provides
+    @Singleton
+    Repository provideRepository(@Named(STORAGE) Repository storage, ImageVariants variants, 
+            Provider<MongoDatabase> mongo) {
+        Repository repository = storage;
+
+        Integer tierMegabytes = Configuration.getInt("FILE_TIER_MB");
+        if (tierMegabytes != null && tierMegabytes > 0) {
+            repository = new TieredRepository(repository, Configuration.get("FILE_TIER_DIR"), tierMegabytes * 1024L * 1024L);
+        }
+
+        if (Boolean.parseBoolean(Configuration.get("FILE_DEDUPLICATE"))) {
+            repository = new DeduplicatingRepository(mongo, repository);
+        }
+
+        Integer cacheMegabytes = Configuration.getInt("FILE_CACHE_MB");
+        if (cacheMegabytes != null && cacheMegabytes > 0) {
+            repository = new CachingRepository(repository, cacheMegabytes * 1024L * 1024L);
+        }
+
+        if (variants.isEnabled()) {
+            repository = new ImageVariantRepository(repository, variants);
+        }
+
+        return repository;
     }
 }
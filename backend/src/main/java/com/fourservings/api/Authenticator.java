@@ -18,6 +18,7 @@
 package com.fourservings.api;
 
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -28,11 +29,14 @@ import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Response.Status;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.bson.types.ObjectId;
 
 @Singleton
 public class Authenticator {
     private static final String COOKIE_AUTH = "auth";
+    private static final String FILE_CAPABILITY_PREFIX = "files:";
+    private static final long FILE_CAPABILITY_WEEK_MILLIS = TimeUnit.DAYS.toMillis(7);
 
     private final Signature signer;
 
@@ -72,6 +76,65 @@ public class Authenticator {
         }
     }
 
+    /** Generate a capability to read the account's files, in the form:
+     * {account ID}.{expiry week}.{signature}
+     * 
+     * Unlike the auth token it's meant to be put in file URLs, so the same URL
+     * works for everyone it's shared with, and caches in front of us can
+     * serve repeat requests.  It only grants reading files.  The expiry is
+     * counted in whole weeks so the URL only changes once a week; a leaked
+     * one stops working within two, and changing the PRIVATE_KEY revokes all
+     * of them at once.
+     */
+    public String generateFileCapability(ObjectId accountID) {
+        return generateFileCapability(accountID, System.currentTimeMillis());
+    }
+
+    String generateFileCapability(ObjectId accountID, long now) {
+        String payload = accountID.toHexString() + "." + (now / FILE_CAPABILITY_WEEK_MILLIS + 1);
+        return payload + "." + this.signer.sign(FILE_CAPABILITY_PREFIX + payload);
+    }
+
+    /** Verify a file capability and return the account ID whose files it
+     * grants access to.  If it's not valid or has expired, return an empty
+     * Optional.
+     */
+    public Optional<ObjectId> authenticateFileCapability(String capability) {
+        return authenticateFileCapability(capability, System.currentTimeMillis());
+    }
+
+    Optional<ObjectId> authenticateFileCapability(String capability, long now) {
+        if (StringUtils.isBlank(capability)) return Optional.empty();
+
+        String[] split = capability.split("\\.", 3);
+        if (split.length != 3 || !ObjectId.isValid(split[0]) || !NumberUtils.isDigits(split[1])) {
+            return Optional.empty();
+        }
+
+        // signed with a prefix so an auth token's signature can't pass for one
+        String payload = split[0] + "." + split[1];
+        if (!this.signer.sign(FILE_CAPABILITY_PREFIX + payload).equals(split[2])) return Optional.empty();
+
+        // the last week it's good for
+        long expiry = NumberUtils.toLong(split[1], -1);
+        if (expiry < now / FILE_CAPABILITY_WEEK_MILLIS) return Optional.empty();
+
+        return Optional.of(new ObjectId(split[0]));
+    }
+
+    /** How many more seconds a file capability will be accepted for, so that
+     * nothing caches what it grants for longer.  Assumes it's been verified.
+     */
+    public long fileCapabilitySecondsLeft(String capability) {
+        return fileCapabilitySecondsLeft(capability, System.currentTimeMillis());
+    }
+
+    long fileCapabilitySecondsLeft(String capability, long now) {
+        String[] split = capability.split("\\.", 3);
+        long expiry = split.length == 3 ? NumberUtils.toLong(split[1], -1) : -1;
+        return Math.max(0, ((expiry + 1) * FILE_CAPABILITY_WEEK_MILLIS - now) / 1000);
+    }
+
     /** Get the logged in user's account ID, or throw an Unauthorized exception
      * if they aren't logged in.
      * 
@@ -0,0 +1,54 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api;
+
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.codec.binary.Base64;
+
+/** SHA-256 hashes of stored file content.  Computed as files are written to
+ * a {@link Repository} and kept in the {@link Repository#METADATA_CONTENT_HASH}
+ * metadata, so they can be used as strong ETags.
+ */
+public class ContentHash {
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 is not available", e);
+        }
+    }
+
+    /** Wrap the stream so the content hash is computed as it's read. Use
+     * {@link #of(DigestInputStream)} once the stream is fully consumed.
+     */
+    public static DigestInputStream digesting(InputStream in) {
+        return new DigestInputStream(in, newDigest());
+    }
+
+    public static String of(DigestInputStream in) {
+        return Base64.encodeBase64URLSafeString(in.getMessageDigest().digest());
+    }
+
+    public static String of(byte[] data) {
+        return Base64.encodeBase64URLSafeString(newDigest().digest(data));
+    }
+}
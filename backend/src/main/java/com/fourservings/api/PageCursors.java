@@ -0,0 +1,76 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api;
+
+import java.util.Optional;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.bson.types.ObjectId;
+
+/** Opaque tokens for continuing a list from where the last page ended, in
+ * the form: {last recipe ID}.{signature}
+ *
+ * The signature covers the account and the query as well as the ID, so a
+ * cursor can't be edited, or replayed against another account's recipes or
+ * a different search.
+ */
+@Singleton
+public class PageCursors {
+    private static final String CURSOR_PREFIX = "cursor:";
+
+    private final Signature signer;
+
+    @Inject
+    public PageCursors(Signature signer) {
+        this.signer = signer;
+    }
+
+    /** A cursor for the page after the one ending with the given recipe.
+     * @param query Whatever identifies the query, e.g. its keyword and group
+     */
+    public String generate(ObjectId accountID, @Nullable String query, ObjectId last) {
+        String payload = last.toHexString();
+        return payload + "." + this.signer.sign(signed(accountID, query, payload));
+    }
+
+    /** Verify a cursor for the account and query, and return the ID of the
+     * last recipe it was issued after.  If it's not valid, return an empty
+     * Optional.
+     */
+    public Optional<ObjectId> verify(ObjectId accountID, @Nullable String query, String cursor) {
+        if (StringUtils.isBlank(cursor)) return Optional.empty();
+
+        String[] split = cursor.split("\\.", 2);
+        if (split.length != 2 || !ObjectId.isValid(split[0])) return Optional.empty();
+
+        if (this.signer.sign(signed(accountID, query, split[0])).equals(split[1])) {
+            return Optional.of(new ObjectId(split[0]));
+        } else {
+            return Optional.empty();
+        }
+    }
+
+    private static String signed(ObjectId accountID, @Nullable String query, String payload) {
+        // prefixed so no other token's signature can pass for one
+        return CURSOR_PREFIX + accountID.toHexString() + ":" + StringUtils.defaultString(query) + ":" + payload;
+    }
+}
@@ -0,0 +1,323 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Keeps a count of each owner's recipes, and of their recipes in each
+ * group, so listing them doesn't need a countDocuments every time.
+ *
+ * Counters are adjusted with $inc as recipes are created, removed, and
+ * moved between groups.  They're only adjusted once they exist: a missing
+ * counter is seeded by counting the first time it's read, so counting
+ * starts from the right number for owners with recipes from before there
+ * were counters.  Anything that slips through, e.g. a change racing a seed
+ * or a write that failed part way, is put right by a reconciliation that
+ * recounts everything every RECIPE_COUNT_RECONCILE_HOURS.
+ *
+ * Every adjustment stamps the counter as changed, and reconciliation only
+ * corrects counters that haven't changed since it started counting, and
+ * still hold the count it read, so it never overwrites a change made while
+ * it ran.  Those are left for the next run.  Only one node reconciles each
+ * interval, whichever takes the lease in LEASE_COLLECTION first.
+ */
+@Singleton
+public class RecipeCounter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RecipeCounter.class);
+
+    static final String COLLECTION = "recipe_count";
+    static final String LEASE_COLLECTION = "lease";
+    private static final String LEASE = "recipe_count";
+    private static final int DUPLICATE_KEY = 11000;
+
+    private final Provider<MongoDatabase> mongo;
+    private final long intervalMillis;
+    private final AtomicLong seeds = new AtomicLong();
+    private final AtomicLong corrections = new AtomicLong();
+
+    /**
+     * @param interval Hours between reconciliations, 0 to disable
+     */
+    @Inject
+    public RecipeCounter(Provider<MongoDatabase> mongo, @Named("RECIPE_COUNT_RECONCILE_HOURS") String interval) {
+        this.mongo = mongo;
+
+        long hours = NumberUtils.toLong(interval, 0);
+        this.intervalMillis = TimeUnit.HOURS.toMillis(hours);
+        if (hours > 0) {
+            ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "recipe-count");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+            executor.scheduleWithFixedDelay(this::reconcileSafely, hours, hours, TimeUnit.HOURS);
+        }
+    }
+
+    /** Number of counters seeded by counting */
+    public long getSeeds() { return this.seeds.get(); }
+    /** Number of counters found to be wrong, over all reconciliations */
+    public long getCorrections() { return this.corrections.get(); }
+
+    private MongoCollection<Document> counters() {
+        return this.mongo.get().getCollection(COLLECTION);
+    }
+
+    private static Document key(ObjectId ownerId, @Nullable ObjectId groupId) {
+        return new Document("ownerId", ownerId).append("groupId", groupId);
+    }
+
+    /** The groups a recipe is in */
+    public static Set<ObjectId> groups(@Nullable Document recipe) {
+        Set<ObjectId> groups = new LinkedHashSet<>();
+        if (recipe == null) return groups;
+        for (Document group : recipe.getList("groups", Document.class, List.of())) {
+            ObjectId id = group.getObjectId("_id");
+            if (id != null) groups.add(id);
+        }
+        return groups;
+    }
+
+    /** The number of the owner's recipes, or of those in the group.
+     */
+    public int get(ObjectId ownerId, @Nullable ObjectId groupId) {
+        Document counter = counters().find(Filters.eq("_id", key(ownerId, groupId))).first();
+        if (counter != null) return counter.getInteger("count", 0);
+
+        int count = count(ownerId, groupId);
+        // another request may have seeded it meanwhile, in which case theirs stands
+        counters().updateOne(Filters.eq("_id", key(ownerId, groupId)),
+            Updates.combine(Updates.setOnInsert("count", count), Updates.setOnInsert("reconciled", new Date()),
+                Updates.setOnInsert("changed", new Date())),
+            new UpdateOptions().upsert(true));
+        this.seeds.incrementAndGet();
+        return count;
+    }
+
+    private int count(ObjectId ownerId, @Nullable ObjectId groupId) {
+        return (int) this.mongo.get().getCollection(RecipeManager.COLLECTION_RECIPE).countDocuments(
+            groupId == null
+                ? Filters.eq("ownerId", ownerId)
+                : Filters.and(Filters.eq("ownerId", ownerId), Filters.eq("groups._id", groupId)));
+    }
+
+    /** A recipe was created (1) or removed (-1).
+     */
+    public void recipeAdded(ObjectId ownerId, Collection<ObjectId> groups, int delta) {
+        List<WriteModel<Document>> updates = new ArrayList<>();
+        updates.add(increment(ownerId, null, delta));
+        groups.forEach(groupId -> updates.add(increment(ownerId, groupId, delta)));
+        write(updates);
+    }
+
+    /** A recipe moved between groups.
+     */
+    public void groupsChanged(ObjectId ownerId, Set<ObjectId> before, Set<ObjectId> after) {
+        List<WriteModel<Document>> updates = new ArrayList<>();
+        before.stream().filter(id -> !after.contains(id)).forEach(id -> updates.add(increment(ownerId, id, -1)));
+        after.stream().filter(id -> !before.contains(id)).forEach(id -> updates.add(increment(ownerId, id, 1)));
+        write(updates);
+    }
+
+    /** The group is gone, along with its counter.
+     */
+    public void groupRemoved(ObjectId ownerId, ObjectId groupId) {
+        counters().deleteOne(Filters.eq("_id", key(ownerId, groupId)));
+    }
+
+    private static WriteModel<Document> increment(ObjectId ownerId, @Nullable ObjectId groupId, int delta) {
+        // no upsert, counters only exist once seeded
+        return new UpdateOneModel<>(Filters.eq("_id", key(ownerId, groupId)),
+            Updates.combine(Updates.inc("count", delta), Updates.set("changed", new Date())));
+    }
+
+    private void write(List<WriteModel<Document>> updates) {
+        if (updates.isEmpty()) return;
+        try {
+            counters().bulkWrite(updates, new BulkWriteOptions().ordered(false));
+        } catch (RuntimeException e) {
+            // the recipe change itself succeeded, reconciliation will catch up
+            LOGGER.warn("Unable to update recipe counts", e);
+        }
+    }
+
+    private void reconcileSafely() {
+        try {
+            if (lease(new Date())) reconcile();
+        } catch (RuntimeException e) {
+            // Don't let it escape, or the scheduled run would be cancelled
+            LOGGER.warn("Unable to reconcile recipe counts", e);
+        }
+    }
+
+    /** Take the reconciliation lease until the next run is due, if no
+     * other node holds it.
+     */
+    boolean lease(Date now) {
+        // a little short of the interval, so whoever ran last can take it again
+        Date until = new Date(now.getTime() + this.intervalMillis - TimeUnit.MINUTES.toMillis(1));
+        try {
+            this.mongo.get().getCollection(LEASE_COLLECTION).updateOne(
+                Filters.and(Filters.eq("_id", LEASE), Filters.lt("until", now)),
+                Updates.set("until", until),
+                new UpdateOptions().upsert(true));
+            return true;
+        } catch (MongoException e) {
+            // it's held, so the upsert tried to insert another
+            if (e.getCode() != DUPLICATE_KEY) throw e;
+            return false;
+        }
+    }
+
+    /** Recount every owner's recipes and groups, correcting any counters
+     * that are off, and removing those for owners or groups with no
+     * recipes left.
+     */
+    public void reconcile() {
+        long started = System.currentTimeMillis();
+        Date run = new Date(started);
+        MongoCollection<Document> recipes = this.mongo.get().getCollection(RecipeManager.COLLECTION_RECIPE);
+
+        Recount recount = new Recount(run);
+        recipes.aggregate(List.of(
+                Aggregates.group("$ownerId", Accumulators.sum("count", 1))))
+            .allowDiskUse(true)
+            .forEach(owner -> {
+                if (owner.getObjectId("_id") != null) recount.add(key(owner.getObjectId("_id"), null), owner.getInteger("count"));
+            });
+        recipes.aggregate(List.of(
+                Aggregates.unwind("$groups"),
+                Aggregates.group(new Document("ownerId", "$ownerId").append("groupId", "$groups._id"),
+                    Accumulators.sum("count", 1))))
+            .allowDiskUse(true)
+            .forEach(group -> {
+                Document id = group.get("_id", Document.class);
+                if (id.getObjectId("ownerId") != null && id.getObjectId("groupId") != null) {
+                    recount.add(key(id.getObjectId("ownerId"), id.getObjectId("groupId")), group.getInteger("count"));
+                }
+            });
+        recount.flush();
+
+        // Anything not recounted has no recipes.  Counters seeded or changed
+        // since we started are newer than the run so are left alone.
+        long emptied = counters().deleteMany(
+            Filters.and(Filters.lt("reconciled", run), Filters.not(Filters.gte("changed", run)))).getDeletedCount();
+
+        this.corrections.addAndGet(recount.corrected + emptied);
+        LOGGER.info("Reconciled {} recipe counts in {}ms, {} corrected, {} removed",
+            recount.total, System.currentTimeMillis() - started, recount.corrected, emptied);
+    }
+
+    /** Recounted counters, written in batches: the ones that are off are
+     * corrected, unless they changed after the recount started, and all of
+     * them marked as reconciled.
+     */
+    private class Recount {
+        private static final int BATCH_SIZE = 500;
+
+        private final Date run;
+        private final List<Document> keys = new ArrayList<>();
+        private final List<Integer> counts = new ArrayList<>();
+        private long total = 0;
+        private long corrected = 0;
+
+        private Recount(Date run) {
+            this.run = run;
+        }
+
+        private void add(Document key, int count) {
+            this.keys.add(key);
+            this.counts.add(count);
+            if (this.keys.size() >= BATCH_SIZE) flush();
+        }
+
+        private void flush() {
+            if (this.keys.isEmpty()) return;
+
+            Map<Document, Integer> current = new HashMap<>();
+            counters().find(Filters.in("_id", this.keys))
+                .forEach(counter -> current.put(counter.get("_id", Document.class), counter.getInteger("count")));
+
+            List<WriteModel<Document>> writes = new ArrayList<>();
+            for (int i = 0; i < this.keys.size(); i++) {
+                Document key = this.keys.get(i);
+                Integer count = current.get(key);
+                if (this.counts.get(i).equals(count)) continue;
+
+                if (count == null) {
+                    // if it's been seeded meanwhile, the seed stands
+                    writes.add(new UpdateOneModel<>(Filters.eq("_id", key),
+                        Updates.combine(Updates.setOnInsert("count", this.counts.get(i)),
+                            Updates.setOnInsert("reconciled", this.run), Updates.setOnInsert("changed", this.run)),
+                        new UpdateOptions().upsert(true)));
+                } else {
+                    writes.add(new UpdateOneModel<>(
+                        Filters.and(Filters.eq("_id", key), Filters.eq("count", count),
+                            Filters.not(Filters.gte("changed", this.run))),
+                        Updates.set("count", this.counts.get(i))));
+                }
+            }
+            if (!writes.isEmpty()) {
+                BulkWriteResult result = counters().bulkWrite(writes, new BulkWriteOptions().ordered(false));
+                this.corrected += result.getModifiedCount() + result.getUpserts().size();
+            }
+            counters().updateMany(Filters.in("_id", this.keys), Updates.set("reconciled", this.run));
+
+            this.total += this.keys.size();
+            this.keys.clear();
+            this.counts.clear();
+        }
+    }
+}
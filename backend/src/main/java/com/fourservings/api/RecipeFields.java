@@ -0,0 +1,68 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+import javax.ws.rs.BadRequestException;
+
+import org.apache.commons.lang3.StringUtils;
+import org.bson.Document;
+
+/** Which fields of a recipe to return, as asked for by a "fields" parameter:
+ * a comma separated list of field names, and/or "summary" for what a recipe
+ * card shows.  Becomes a projection, so the fields that aren't wanted are
+ * never read from mongo, converted to JSON, or sent.
+ */
+public class RecipeFields {
+    public static final String SUMMARY = "summary";
+
+    /** What's needed to show a recipe in a list, leaving out the long text */
+    static final List<String> SUMMARY_FIELDS = List.of(
+        "title", "images", "link", "groups", "prepTime", "cookTime", "yield");
+
+    private static final int MAX_FIELDS = 50;
+    private static final Pattern FIELD_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    /** The projection for the fields, always including _id, or null for
+     * whole recipes if none are given.
+     */
+    public static @Nullable Document projection(@Nullable String fields) {
+        if (StringUtils.isBlank(fields)) return null;
+
+        Document projection = new Document("_id", 1);
+        boolean any = false;
+        for (String field : StringUtils.split(fields, ',')) {
+            field = field.trim();
+            if (field.isEmpty()) continue;
+            any = true;
+
+            if (SUMMARY.equals(field)) {
+                SUMMARY_FIELDS.forEach(name -> projection.append(name, 1));
+            } else if (FIELD_NAME.matcher(field).matches()) {
+                projection.append(field, 1);
+            } else {
+                throw new BadRequestException("fields has an invalid field name: " + field);
+            }
+            if (projection.size() > MAX_FIELDS) throw new BadRequestException("fields has too many fields");
+        }
+        return any ? projection : null;
+    }
+}
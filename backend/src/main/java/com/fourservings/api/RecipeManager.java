@@ -17,22 +17,43 @@
 
 package com.fourservings.api;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 import javax.annotation.Nullable;
 import javax.inject.Inject;
+import javax.inject.Named;
 import javax.inject.Singleton;
 import javax.ws.rs.BadRequestException;
 import javax.ws.rs.NotFoundException;
 
+import com.fourservings.api.files.FileDeletionQueue;
+import com.fourservings.api.search.FuzzyIndex;
+import com.fourservings.api.search.IngredientIndex;
+import com.fourservings.api.search.KeywordIndex;
+import com.fourservings.api.search.OwnerVersions;
+import com.fourservings.api.search.RecipeListener;
+import com.fourservings.api.search.SearchCache;
+import com.fourservings.api.search.Snippets;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Facet;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndReplaceOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
 import com.mongodb.client.model.Sorts;
 
 import org.apache.commons.lang3.StringUtils;
@@ -41,21 +62,51 @@ import org.apache.commons.lang3.tuple.Pair;
 import org.bson.Document;
 import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /** Handle data management for recipes and groups.
  */
 @Singleton
 public class RecipeManager {
-    static final String COLLECTION_RECIPE = "recipe";
+    private static final Logger LOGGER = LoggerFactory.getLogger(RecipeManager.class);
+
+    public static final String COLLECTION_RECIPE = "recipe";
     static final String COLLECTION_GROUP = "group";
 
+    // snippets returned with each recipe in a relevance search
+    private static final int MAX_SNIPPETS = 3;
+    // where mongo's textScore goes, only while sorting
+    private static final String SCORE = "_score";
+
     private final MongoDatabase mongo;
     private final Repository files;
+    private final FileDeletionQueue deletions;
+    private final Set<RecipeListener> listeners;
+    private final KeywordIndex keywords;
+    private final IngredientIndex ingredients;
+    private final FuzzyIndex fuzzy;
+    private final RecipeCounter counter;
+    private final boolean facet;
+    private final SearchCache cache;
+    private final OwnerVersions versions;
 
     @Inject
-    public RecipeManager(MongoDatabase mongo, Repository files) {
+    public RecipeManager(MongoDatabase mongo, Repository files, FileDeletionQueue deletions,
+            Set<RecipeListener> listeners, KeywordIndex keywords, IngredientIndex ingredients,
+            FuzzyIndex fuzzy, RecipeCounter counter, SearchCache cache, OwnerVersions versions,
+            @Named("SEARCH_FACET") String facet) {
         this.mongo = mongo;
+        this.cache = cache;
+        this.versions = versions;
+        this.facet = Boolean.parseBoolean(facet);
         this.files = files;
+        this.deletions = deletions;
+        this.counter = counter;
+        this.listeners = listeners;
+        this.keywords = keywords;
+        this.ingredients = ingredients;
+        this.fuzzy = fuzzy;
 
         // Ensure we have the text index set up to support keyword searches
 
@@ -74,6 +125,9 @@ public class RecipeManager {
                 .append("directions", "text")
             );
         }
+
+        // Listing pages, newest first, and continuing from the last one
+        recipes.createIndex(Indexes.compoundIndex(Indexes.ascending("ownerId"), Indexes.descending("_id")));
     }
 
     private static Bson filterById(ObjectId ownerId, ObjectId recipeId) {
@@ -81,11 +135,18 @@ public class RecipeManager {
     }
 
     public Document get(ObjectId ownerId, ObjectId id) {
+        return get(ownerId, id, null);
+    }
+
+    /** Get a recipe, or just some of its fields.
+     * @param projection The fields to return, see {@link RecipeFields}
+     */
+    public Document get(ObjectId ownerId, ObjectId id, @Nullable Document projection) {
         Objects.requireNonNull(ownerId);
         if (id == null) throw new BadRequestException();
 
         Document recipe = this.mongo.getCollection(COLLECTION_RECIPE)
-            .find(filterById(ownerId, id)).first();
+            .find(filterById(ownerId, id)).projection(projection).first();
         if (recipe == null) throw new NotFoundException("Recipe " + id + " not found");
 
         return recipe;
@@ -97,30 +158,89 @@ public class RecipeManager {
         data
             .append("_id", new ObjectId())
             .append("ownerId", ownerId);
+        copySharedImages(ownerId, data);
         this.mongo.getCollection(COLLECTION_RECIPE)
             .insertOne(data);
+        this.counter.recipeAdded(ownerId, RecipeCounter.groups(data), 1);
+        saved(ownerId, data);
         return data;
     }
 
+    private void saved(ObjectId ownerId, Document recipe) {
+        long version = this.versions.changed(ownerId);
+        for (RecipeListener listener : this.listeners) {
+            try {
+                listener.recipeSaved(ownerId, version, recipe);
+            } catch (RuntimeException e) {
+                LOGGER.error("{} failed on recipe {}", listener.getClass().getSimpleName(), recipe.get("_id"), e);
+            }
+        }
+    }
+
+    private void removed(ObjectId ownerId, ObjectId recipeId) {
+        long version = this.versions.changed(ownerId);
+        for (RecipeListener listener : this.listeners) {
+            try {
+                listener.recipeRemoved(ownerId, version, recipeId);
+            } catch (RuntimeException e) {
+                LOGGER.error("{} failed on recipe {}", listener.getClass().getSimpleName(), recipeId, e);
+            }
+        }
+    }
+
+    /** Stored images belong to a single recipe, so that updating or removing
+     * one recipe never deletes images out from under another.  Give a new
+     * recipe its own copy of any image that's already in use, e.g. when a
+     * recipe is duplicated.
+     */
+    private void copySharedImages(ObjectId ownerId, Document data) {
+        List<String> images = data.getList("images", String.class, Collections.emptyList());
+        List<String> internal = images.stream()
+            .filter(url -> url.startsWith("/"))
+            .collect(Collectors.toList());
+        if (internal.isEmpty()) return;
+
+        Set<String> shared = new HashSet<>();
+        this.mongo.getCollection(COLLECTION_RECIPE)
+            .find(Filters.and(Filters.eq("ownerId", ownerId), Filters.in("images", internal)))
+            .projection(new Document("images", 1))
+            .forEach(recipe -> shared.addAll(recipe.getList("images", String.class, Collections.emptyList())));
+        shared.retainAll(internal);
+        if (shared.isEmpty()) return;
+
+        List<String> copied = new ArrayList<>(images.size());
+        for (String url : images) {
+            if (shared.contains(url)) {
+                String copy = "/" + new ObjectId().toHexString();
+                try {
+                    // image keys are scoped by owner
+                    if (this.files.copy(ownerId.toHexString() + url, ownerId.toHexString() + copy)) {
+                        url = copy;
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Unable to copy image " + url, e);
+                }
+            }
+            copied.add(url);
+        }
+        data.append("images", copied);
+    }
+
     public Document update(ObjectId ownerId, Document data) {
         Objects.requireNonNull(ownerId);
 
         ObjectId id = data.getObjectId("_id");
         if (id == null) throw new BadRequestException("_id required for update");
 
-        MongoCollection<Document> col = this.mongo.getCollection(COLLECTION_RECIPE);
-        Document existing = col
-            .find(filterById(ownerId, id))
-            .projection(new Document("images", 1))
-            .first();
-        if (existing == null) throw new NotFoundException();
-
         data.append("ownerId", ownerId);
 
-        long matched = col
-            .replaceOne(filterById(ownerId, id), data)
-            .getMatchedCount();
-        if (matched == 0) throw new NotFoundException();
+        // the recipe as it was, to see what the update changed
+        Document existing = this.mongo.getCollection(COLLECTION_RECIPE)
+            .findOneAndReplace(filterById(ownerId, id), data,
+                new FindOneAndReplaceOptions().projection(new Document("images", 1).append("groups", 1)));
+        if (existing == null) throw new NotFoundException();
+        this.counter.groupsChanged(ownerId, RecipeCounter.groups(existing), RecipeCounter.groups(data));
+        saved(ownerId, data);
 
         // Check to see if any images were dereferenced
         Collection<String> noLongerReferenced = new HashSet<>();
@@ -128,11 +248,7 @@ public class RecipeManager {
         noLongerReferenced.removeAll(data.getList("images", String.class, Collections.emptyList()));
 
         if (!noLongerReferenced.isEmpty()) {
-            noLongerReferenced.stream()
-                .filter(url -> url.startsWith("/"))
-                .map(uri -> ownerId.toHexString() + uri) // image keys are scoped by owner
-                .forEach(this.files::delete);
-                ;
+            this.deletions.enqueue(imageKeys(ownerId, noLongerReferenced));
         }
 
         return data;
@@ -145,16 +261,24 @@ public class RecipeManager {
         Document deleted = this.mongo.getCollection(COLLECTION_RECIPE)
             .findOneAndDelete(filterById(ownerId, id));
         if (deleted != null) {
+            this.counter.recipeAdded(ownerId, RecipeCounter.groups(deleted), -1);
+            removed(ownerId, id);
+
             // Remove any referenced images stored internally
             List<String> images = deleted.getList("images", String.class, new ArrayList<>());
-            images.stream()
-                .filter(url -> url.startsWith("/"))
-                .map(uri -> ownerId.toHexString() + uri) // image keys are scoped by owner
-                .forEach(this.files::delete);
-                ;
+            this.deletions.enqueue(imageKeys(ownerId, images));
         }
     }
 
+    /** Repository keys of the images that are stored internally.
+     */
+    private static List<String> imageKeys(ObjectId ownerId, Collection<String> images) {
+        return images.stream()
+            .filter(url -> url.startsWith("/"))
+            .map(uri -> ownerId.toHexString() + uri) // image keys are scoped by owner
+            .collect(Collectors.toList());
+    }
+
     /** Get a page of matching recipes.
      * @return a Pair with a left/key value of the page of results and the right/value
      *  of the total number of matching recipes.
@@ -163,10 +287,46 @@ public class RecipeManager {
             ObjectId ownerId, 
             @Nullable String keyword, @Nullable ObjectId groupId, 
             int start, int count) {
+        return search(ownerId, keyword, groupId, null, start, count);
+    }
+
+    public Pair<List<Document>, Integer> search(
+            ObjectId ownerId,
+            @Nullable String keyword, @Nullable ObjectId groupId,
+            @Nullable ObjectId after, int start, int count) {
+        return search(ownerId, keyword, groupId, after, start, count, null);
+    }
+
+    /** Get a page of matching recipes, continuing from a previous page.
+     * Results are newest first, so continuing is just a matter of starting
+     * below the last id seen, which the (ownerId, _id) index finds directly
+     * rather than skipping over every earlier page.
+     * @param after The last recipe of the previous page, if any
+     * @param start Number of results to skip, after the "after" recipe
+     * @param projection The fields to return, see {@link RecipeFields}
+     * @return as above, the total is of all matching recipes, not just those
+     *  after the "after" recipe
+     */
+    public Pair<List<Document>, Integer> search(
+            ObjectId ownerId,
+            @Nullable String keyword, @Nullable ObjectId groupId,
+            @Nullable ObjectId after, int start, int count,
+            @Nullable Document projection) {
 
         Objects.requireNonNull(ownerId);
         if (count > 1000) throw new BadRequestException("count must be less than 1000");
 
+        String trimmed = StringUtils.trimToNull(keyword);
+        return this.cache.get(ownerId, Arrays.asList(trimmed, groupId, after, start, count, projection),
+            () -> searchUncached(ownerId, trimmed, groupId, after, start, count, projection));
+    }
+
+    private Pair<List<Document>, Integer> searchUncached(
+            ObjectId ownerId,
+            @Nullable String keyword, @Nullable ObjectId groupId,
+            @Nullable ObjectId after, int start, int count,
+            @Nullable Document projection) {
+
         Collection<Bson> filters = new ArrayList<>();
         filters.add(Filters.eq("ownerId", ownerId));
         if (StringUtils.isNotBlank(keyword)) {
@@ -176,15 +336,31 @@ public class RecipeManager {
             filters.add(Filters.eq("groups._id", groupId));
         }
 
+        if (StringUtils.isNotBlank(keyword) && this.keywords.isEnabled()) {
+            List<ObjectId> matches = this.keywords.search(ownerId, keyword, groupId);
+            return fetchPage(matches, startAfter(matches, after) + start, count, projection);
+        }
+
+        if (StringUtils.isNotBlank(keyword) && this.facet && count > 0) {
+            return searchAndCount(filters, after, start, count, projection);
+        }
+
         List<Document> results = new ArrayList<>();
 
-        int total = Long.valueOf(
+        // only keyword searches need counting, the rest are kept count of
+        int total = StringUtils.isNotBlank(keyword)
+            ? Long.valueOf(
                 this.mongo.getCollection(COLLECTION_RECIPE)
                     .countDocuments(Filters.and(filters))
-            ).intValue();
+            ).intValue()
+            : this.counter.get(ownerId, groupId);
 
+        if (after != null) {
+            filters.add(Filters.lt("_id", after));
+        }
         this.mongo.getCollection(COLLECTION_RECIPE)
             .find(Filters.and(filters))
+                .projection(projection)
                 .sort(Sorts.descending("_id"))
                 .skip(start).limit(count).batchSize(count)
                 .into(results);
@@ -192,6 +368,163 @@ public class RecipeManager {
         return ImmutablePair.of(results, total);
     }
 
+    /** A page of results and the total, from a single aggregation, rather
+     * than counting and finding with the same filter one after the other.
+     */
+    private Pair<List<Document>, Integer> searchAndCount(Collection<Bson> filters, @Nullable ObjectId after,
+            int start, int count, @Nullable Document projection) {
+        List<Bson> page = new ArrayList<>();
+        if (after != null) page.add(Aggregates.match(Filters.lt("_id", after)));
+        page.add(Aggregates.sort(Sorts.descending("_id")));
+        page.add(Aggregates.skip(start));
+        page.add(Aggregates.limit(count));
+        if (projection != null) page.add(Aggregates.project(projection));
+
+        Document faceted = this.mongo.getCollection(COLLECTION_RECIPE)
+            .aggregate(List.of(
+                Aggregates.match(Filters.and(filters)),
+                Aggregates.facet(
+                    new Facet("results", page),
+                    new Facet("total", Aggregates.count("total")))))
+            .first();
+
+        List<Document> results = new ArrayList<>(faceted.getList("results", Document.class));
+        List<Document> total = faceted.getList("total", Document.class);
+        return ImmutablePair.of(results, total.isEmpty() ? 0 : total.get(0).getInteger("total"));
+    }
+
+    /** Where the ids below "after" start, in ids sorted newest first */
+    private static int startAfter(List<ObjectId> newestFirst, @Nullable ObjectId after) {
+        if (after == null) return 0;
+        int index = Collections.binarySearch(newestFirst, after, Collections.reverseOrder());
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    /** Get a page of keyword search results, best matches first rather than
+     * newest first: by mongo's textScore, or by {@link KeywordIndex} when
+     * it's in use.  Each has "snippets" of its ingredients and directions
+     * showing where the keywords matched, see {@link Snippets}.
+     * @param projection The fields to return, see {@link RecipeFields}
+     */
+    public Pair<List<Document>, Integer> searchByRelevance(
+            ObjectId ownerId, @Nullable String keyword, @Nullable ObjectId groupId,
+            int start, int count, @Nullable Document projection) {
+        Objects.requireNonNull(ownerId);
+        if (count > 1000) throw new BadRequestException("count must be less than 1000");
+
+        String trimmed = StringUtils.trimToNull(keyword);
+        if (trimmed == null) return search(ownerId, null, groupId, null, start, count, projection);
+
+        return this.cache.get(ownerId, Arrays.asList("relevance", trimmed, groupId, start, count, projection),
+            () -> searchByRelevanceUncached(ownerId, trimmed, groupId, start, count, projection));
+    }
+
+    private Pair<List<Document>, Integer> searchByRelevanceUncached(
+            ObjectId ownerId, String keyword, @Nullable ObjectId groupId,
+            int start, int count, @Nullable Document projection) {
+
+        // snippets need the text, even when it isn't to be returned
+        Document fetched = null;
+        if (projection != null) {
+            fetched = new Document(projection);
+            for (String field : Snippets.FIELDS) fetched.append(field, 1);
+        }
+
+        Pair<List<Document>, Integer> page;
+        if (this.keywords.isEnabled()) {
+            page = fetchPage(this.keywords.search(ownerId, keyword, groupId, true), start, count, fetched);
+        } else {
+            Bson filter = groupId == null
+                ? Filters.and(Filters.eq("ownerId", ownerId), Filters.text(keyword))
+                : Filters.and(Filters.eq("ownerId", ownerId), Filters.text(keyword), Filters.eq("groups._id", groupId));
+            MongoCollection<Document> recipes = this.mongo.getCollection(COLLECTION_RECIPE);
+
+            List<Document> results = new ArrayList<>();
+            recipes.find(filter)
+                .projection(fetched == null
+                    ? Projections.metaTextScore(SCORE)
+                    : Projections.fields(fetched, Projections.metaTextScore(SCORE)))
+                .sort(Sorts.orderBy(Sorts.metaTextScore(SCORE), Sorts.descending("_id")))
+                .skip(start).limit(count).batchSize(count)
+                .into(results);
+            results.forEach(recipe -> recipe.remove(SCORE));
+            page = ImmutablePair.of(results, Long.valueOf(recipes.countDocuments(filter)).intValue());
+        }
+
+        // only for the page, one recipe at a time
+        Set<String> terms = KeywordIndex.included(keyword);
+        for (Document recipe : page.getLeft()) {
+            recipe.append("snippets", Snippets.extract(recipe, terms, MAX_SNIPPETS));
+            if (projection != null) {
+                for (String field : Snippets.FIELDS) {
+                    if (!projection.containsKey(field)) recipe.remove(field);
+                }
+            }
+        }
+        return page;
+    }
+
+    /** Recipes with words spelled like the keywords, closest first, for when
+     * they're misspelled, see {@link FuzzyIndex}.
+     * @param projection The fields to return, see {@link RecipeFields}
+     */
+    public Pair<List<Document>, Integer> searchFuzzy(ObjectId ownerId, @Nullable String keyword,
+            int start, int count, @Nullable Document projection) {
+        Objects.requireNonNull(ownerId);
+        if (count > 1000) throw new BadRequestException("count must be less than 1000");
+
+        String trimmed = StringUtils.trimToEmpty(keyword);
+        return this.cache.get(ownerId, Arrays.asList("fuzzy", trimmed, start, count, projection),
+            () -> fetchPage(this.fuzzy.search(ownerId, trimmed), start, count, projection));
+    }
+
+    /** Recipes that can be made from what's on hand, best covered first.
+     * Each has a "match" added: how many of its ingredient lines are covered
+     * ("have"), out of how many ("of"), and the lines that aren't ("missing").
+     * @param have Ingredients on hand, e.g. "chicken", "carrots"
+     */
+    public Pair<List<Document>, Integer> searchByIngredients(ObjectId ownerId, Collection<String> have, int start, int count) {
+        Objects.requireNonNull(ownerId);
+        if (count > 1000) throw new BadRequestException("count must be less than 1000");
+
+        Set<String> terms = IngredientIndex.terms(have);
+        List<IngredientIndex.Match> matches = this.ingredients.search(ownerId, terms);
+        Map<ObjectId, IngredientIndex.Match> byId = new HashMap<>();
+        matches.forEach(match -> byId.put(match.getId(), match));
+
+        Pair<List<Document>, Integer> page = fetchPage(
+            matches.stream().map(IngredientIndex.Match::getId).collect(Collectors.toList()), start, count, null);
+        for (Document recipe : page.getLeft()) {
+            IngredientIndex.Match match = byId.get(recipe.getObjectId("_id"));
+            recipe.append("match", new Document("have", match.getCovered())
+                .append("of", match.getLines())
+                .append("missing", IngredientIndex.missing(recipe, terms)));
+        }
+        return page;
+    }
+
+    /** Fetch a page of recipes, given every matching id in order.
+     */
+    private Pair<List<Document>, Integer> fetchPage(List<ObjectId> matches, int start, int count,
+            @Nullable Document projection) {
+        int total = matches.size();
+        List<ObjectId> page = matches.subList(Math.min(start, total), Math.min(start + count, total));
+        if (page.isEmpty()) return ImmutablePair.of(new ArrayList<>(), total);
+
+        Map<Object, Document> found = new HashMap<>();
+        this.mongo.getCollection(COLLECTION_RECIPE)
+            .find(Filters.in("_id", page))
+            .projection(projection)
+            .forEach(recipe -> found.put(recipe.get("_id"), recipe));
+
+        List<Document> results = new ArrayList<>(page.size());
+        for (ObjectId id : page) {
+            Document recipe = found.get(id);
+            if (recipe != null) results.add(recipe); // removed since it was matched
+        }
+        return ImmutablePair.of(results, total);
+    }
+
     public List<Document> getGroups(ObjectId ownerId) {
         Objects.requireNonNull(ownerId);
 
@@ -213,6 +546,7 @@ public class RecipeManager {
             .replaceOne(filterById(ownerId, id), data)
             .getMatchedCount();
         if (matched == 0) throw new NotFoundException();
+        this.versions.changed(ownerId);
 
         return data;
     }
@@ -224,6 +558,7 @@ public class RecipeManager {
             .append("ownerId", ownerId);
         this.mongo.getCollection(COLLECTION_GROUP)
             .insertOne(data);
+        this.versions.changed(ownerId);
         return data;
     }
     public void removeGroup(ObjectId ownerId, ObjectId id) {
@@ -235,8 +570,11 @@ public class RecipeManager {
             .find(Filters.eq("groups._id", id))
             .forEach(recipe -> removeFromGroup(id, recipe));
 
-        this.mongo.getCollection(COLLECTION_GROUP)
-            .deleteOne(filterById(ownerId, id));
+        long deleted = this.mongo.getCollection(COLLECTION_GROUP)
+            .deleteOne(filterById(ownerId, id))
+            .getDeletedCount();
+        if (deleted > 0) this.counter.groupRemoved(ownerId, id);
+        this.versions.changed(ownerId);
     }
   
     private void removeFromGroup(ObjectId groupId, Document recipe) {
@@ -246,5 +584,6 @@ public class RecipeManager {
 
         this.mongo.getCollection(COLLECTION_RECIPE)
             .replaceOne(Filters.eq("_id", recipe.get("_id")), recipe);
+        saved(recipe.getObjectId("ownerId"), recipe);
     }
 }
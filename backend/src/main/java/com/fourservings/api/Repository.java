@@ -19,7 +19,11 @@ package com.fourservings.api;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.util.Collection;
 import java.util.Map;
+import java.util.stream.Stream;
 
 /** Interface to a simple binary data store. Could be backed by 
  * S3, a local filesystem, database, etc.
@@ -27,14 +31,64 @@ import java.util.Map;
 public interface Repository {
     public static final String METADATA_MIME_TYPE = "Content-Type";
     public static final String METADATA_CONTENT_LENGTH = "Content-Length";
+    /** SHA-256 of the content, populated by the repository on upsert
+     * @see ContentHash
+     */
+    public static final String METADATA_CONTENT_HASH = "Content-Hash";
 
     public Item get(String key);
+
+    /** Look up an item when its metadata is what's needed, e.g. to check it
+     * exists or to answer a HEAD request.  Repositories that can should fetch
+     * only the metadata, and the content once {@link Item#openStream()} is called.
+     */
+    public default Item head(String key) {
+        return get(key);
+    }
     public void upsert(String key, InputStream data, Map<String, String> metadata) throws IOException;
     public void delete(String key);
 
+    /** Store the item at one key under another as well.  Implementations that
+     * can share the stored bytes should; this default just reads and rewrites.
+     * @return false if there was nothing stored at {@code from}
+     */
+    public default boolean copy(String from, String to) throws IOException {
+        Item item = get(from);
+        if (item == null) return false;
+
+        try (InputStream in = item.openStream()) {
+            upsert(to, in, item.metadata());
+        }
+        return true;
+    }
+
+    /** Delete several items at once.  Keys with nothing stored are ignored.
+     */
+    public default void deleteMany(Collection<String> keys) {
+        keys.forEach(this::delete);
+    }
+
+    /** Every stored key, for housekeeping.  The stream must be closed.
+     * @throws UnsupportedOperationException if the repository can't list its keys
+     */
+    public default Stream<String> keys() {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " can't list keys");
+    }
+
     public static interface Item {
         public String key();
         public Map<String, String> metadata();
         public InputStream openStream();
     }
+
+    /** An item stored as a file on the local filesystem, which can be sent
+     * directly from the file rather than through {@link #openStream()}.
+     */
+    public static interface LocalItem extends Item {
+        /** Open the file the item was read from.  Once open it can be read to
+         * the end, even if the file is replaced or deleted in the meantime.
+         * @throws NoSuchFileException if it already has been
+         */
+        public FileChannel openChannel() throws IOException;
+    }
 }
@@ -0,0 +1,242 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.ETag;
+import io.undertow.util.ETagUtils;
+import io.undertow.util.Headers;
+import io.undertow.util.Methods;
+import io.undertow.util.StatusCodes;
+
+/** Serves the frontend bundle from memory.  Every file in the directory is
+ * loaded at startup, along with a gzipped copy of anything that compresses,
+ * and a brotli copy where the build left one alongside it as "{file}.br"
+ * (the JDK can't produce brotli itself).  Each request gets the smallest
+ * encoding it accepts, with a strong ETag for that encoding.
+ *
+ * Files with a content hash in their name, e.g. "main.3b1f0c9e.js", never
+ * change so are cached for good.  Anything else, e.g. index.html, is
+ * revalidated on every use.  Paths that aren't in the bundle get index.html,
+ * so the single page app can route them.
+ */
+public class StaticContentHandler implements HttpHandler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StaticContentHandler.class);
+
+    static final String INDEX = "/index.html";
+    static final String CACHE_IMMUTABLE = "public, max-age=31536000, immutable";
+    static final String CACHE_REVALIDATE = "no-cache";
+
+    private static final Pattern HASHED = Pattern.compile(".*\\.[0-9a-f]{8,}\\.[^./]+$");
+    private static final Map<String, String> CONTENT_TYPES = Map.ofEntries(
+        Map.entry("html", "text/html; charset=utf-8"),
+        Map.entry("js", "application/javascript; charset=utf-8"),
+        Map.entry("css", "text/css; charset=utf-8"),
+        Map.entry("map", "application/json"),
+        Map.entry("json", "application/json"),
+        Map.entry("txt", "text/plain; charset=utf-8"),
+        Map.entry("svg", "image/svg+xml"),
+        Map.entry("ico", "image/x-icon"),
+        Map.entry("png", "image/png"),
+        Map.entry("jpg", "image/jpeg"),
+        Map.entry("jpeg", "image/jpeg"),
+        Map.entry("gif", "image/gif"),
+        Map.entry("woff", "font/woff"),
+        Map.entry("woff2", "font/woff2"));
+
+    private final Map<String, Asset> assets = new HashMap<>();
+
+    public StaticContentHandler(String directory) {
+        Path root = Paths.get(directory).toAbsolutePath().normalize();
+        long identity = 0;
+        long compressed = 0;
+        try (Stream<Path> walk = Files.walk(root)) {
+            for (Path file : walk.filter(Files::isRegularFile).collect(Collectors.toList())) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".br") || name.endsWith(".gz")) continue; // loaded with the original
+
+                String path = "/" + StreamSupport.stream(root.relativize(file).spliterator(), false)
+                    .map(Path::toString)
+                    .collect(Collectors.joining("/"));
+                Asset asset = load(path, file);
+                this.assets.put(path, asset);
+                identity += asset.identity.length;
+                compressed += asset.smallest().length;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to load static content from " + root, e);
+        }
+        if (!this.assets.containsKey(INDEX)) {
+            throw new IllegalArgumentException("No index.html in " + root);
+        }
+
+        LOGGER.info("Loaded {} static files, {} bytes, {} compressed", this.assets.size(), identity, compressed);
+    }
+
+    private static Asset load(String path, Path file) throws IOException {
+        byte[] identity = Files.readAllBytes(file);
+        String type = CONTENT_TYPES.getOrDefault(
+            StringUtils.substringAfterLast(path, ".").toLowerCase(Locale.ROOT), "application/octet-stream");
+
+        // already compressed formats won't get any smaller
+        byte[] gzip = type.startsWith("text/") || type.startsWith("application/") || type.startsWith("image/svg")
+            ? gzip(identity) : null;
+        if (gzip != null && gzip.length >= identity.length) gzip = null;
+
+        Path brFile = file.resolveSibling(file.getFileName() + ".br");
+        byte[] br = Files.isRegularFile(brFile) ? Files.readAllBytes(brFile) : null;
+
+        return new Asset(type, HASHED.matcher(path).matches(), identity, gzip, br);
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(data.length / 3);
+        // done once at startup, so spend the time for the best compression
+        try (GZIPOutputStream out = new GZIPOutputStream(bout) {{ def.setLevel(Deflater.BEST_COMPRESSION); }}) {
+            out.write(data);
+        }
+        return bout.toByteArray();
+    }
+
+    @Override
+    public void handleRequest(HttpServerExchange exchange) {
+        if (!exchange.getRequestMethod().equals(Methods.GET) && !exchange.getRequestMethod().equals(Methods.HEAD)) {
+            exchange.setStatusCode(StatusCodes.METHOD_NOT_ALLOWED);
+            exchange.getResponseHeaders().put(Headers.ALLOW, "GET, HEAD");
+            exchange.endExchange();
+            return;
+        }
+
+        String path = exchange.getRelativePath();
+        Asset asset = this.assets.get(path);
+        if (asset == null) asset = this.assets.get(INDEX);
+
+        Variant variant = asset.negotiate(exchange.getRequestHeaders().getFirst(Headers.ACCEPT_ENCODING));
+
+        exchange.getResponseHeaders()
+            .put(Headers.CONTENT_TYPE, asset.type)
+            .put(Headers.CACHE_CONTROL, asset.hashed ? CACHE_IMMUTABLE : CACHE_REVALIDATE)
+            .put(Headers.VARY, Headers.ACCEPT_ENCODING_STRING)
+            .put(Headers.ETAG, variant.etag.toString());
+        if (variant.encoding != null) {
+            exchange.getResponseHeaders().put(Headers.CONTENT_ENCODING, variant.encoding);
+        }
+
+        if (!ETagUtils.handleIfNoneMatch(exchange, variant.etag, true)) {
+            exchange.setStatusCode(StatusCodes.NOT_MODIFIED);
+            exchange.endExchange();
+            return;
+        }
+
+        exchange.setResponseContentLength(variant.data.length);
+        if (exchange.getRequestMethod().equals(Methods.HEAD)) {
+            exchange.endExchange();
+        } else {
+            exchange.getResponseSender().send(ByteBuffer.wrap(variant.data));
+        }
+    }
+
+    /** Whether the Accept-Encoding header allows the encoding, i.e. lists it
+     * (or *) without q=0.
+     */
+    static boolean accepts(String acceptEncoding, String encoding) {
+        if (acceptEncoding == null) return false;
+
+        boolean wildcard = false;
+        for (String item : acceptEncoding.split(",")) {
+            String[] parts = item.trim().split(";");
+            String name = parts[0].trim();
+            boolean refused = false;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=") && NumberUtils.toDouble(param.substring(2).trim(), 1) <= 0) refused = true;
+            }
+            if (name.equalsIgnoreCase(encoding)) return !refused;
+            if (name.equals("*")) wildcard = !refused;
+        }
+        return wildcard;
+    }
+
+    private static class Variant {
+        private final String encoding;
+        private final byte[] data;
+        private final ETag etag;
+
+        private Variant(String encoding, byte[] data, String hash) {
+            this.encoding = encoding;
+            this.data = data;
+            // Strong ETags have to differ between encodings
+            this.etag = new ETag(false, encoding == null ? hash : hash + "-" + encoding);
+        }
+    }
+
+    private static class Asset {
+        private final String type;
+        private final boolean hashed;
+        private final byte[] identity;
+        private final Variant plain;
+        private final Variant gzip;
+        private final Variant br;
+
+        private Asset(String type, boolean hashed, byte[] identity, byte[] gzip, byte[] br) {
+            this.type = type;
+            this.hashed = hashed;
+            this.identity = identity;
+
+            String hash = ContentHash.of(identity);
+            this.plain = new Variant(null, identity, hash);
+            this.gzip = gzip == null ? null : new Variant("gzip", gzip, hash);
+            this.br = br == null || br.length >= identity.length ? null : new Variant("br", br, hash);
+        }
+
+        private byte[] smallest() {
+            if (this.br != null) return this.br.data;
+            if (this.gzip != null) return this.gzip.data;
+            return this.identity;
+        }
+
+        private Variant negotiate(String acceptEncoding) {
+            if (this.br != null && accepts(acceptEncoding, "br")) return this.br;
+            if (this.gzip != null && accepts(acceptEncoding, "gzip")) return this.gzip;
+            return this.plain;
+        }
+    }
+}
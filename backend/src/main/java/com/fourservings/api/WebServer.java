@@ -17,7 +17,6 @@
 
 package com.fourservings.api;
 
-import java.io.File;
 import java.util.Set;
 
 import javax.ws.rs.ApplicationPath;
@@ -36,8 +35,6 @@ import org.slf4j.LoggerFactory;
 import io.undertow.Handlers;
 import io.undertow.Undertow;
 import io.undertow.predicate.Predicates;
-import io.undertow.server.handlers.resource.FileResourceManager;
-import io.undertow.servlet.api.DeploymentInfo;
 import io.undertow.servlet.api.ListenerInfo;
 
 /**
@@ -117,23 +114,19 @@ public class WebServer {
         }
     }
 
-    /** A static-content, rewriting server useful for all-in-one deployment of
+    /** A static-content server useful for all-in-one deployment of
      * JAX-RS backend API and frontend SPA.
      * 
      * <li> backend api requests pass through
-     * <li> /index.html, /main.js, /main.js.map all pass through
-     * <li> everything else gets rewritten to "/index.html"
+     * <li> everything else is served from memory by a {@link StaticContentHandler},
+     *      which falls back to "/index.html"
      */
     private class RewritingStaticUndertowServer extends UndertowJaxrsServer {
+        private final StaticContentHandler staticContent;
+
         public RewritingStaticUndertowServer() {
             super();
-
-            this.deploy(new DeploymentInfo()
-                .setDeploymentName("static")
-                .setContextPath("/")
-                .setResourceManager(new FileResourceManager(new File(staticContentDir)))
-                .setClassLoader(this.getClass().getClassLoader())
-                .addWelcomePage("index.html"));
+            this.staticContent = new StaticContentHandler(staticContentDir);
         }
 
         @Override
@@ -141,10 +134,7 @@ public class WebServer {
             server = Undertow.builder()
                     .addHttpListener(port, bindAddress)
                     .setHandler(
-                        Handlers.predicate(Predicates.prefix(apiPath + "/"), root, 
-                            Handlers.predicate(Predicates.paths("/index.html", "/main.js", "/main.js.map"), root, 
-                                Handlers.rewrite("path-prefix('/')", "/index.html", getClass().getClassLoader(), root))
-                            )
+                        Handlers.predicate(Predicates.prefix(apiPath + "/"), root, this.staticContent)
                         )
                     .build();
             server.start();
@@ -0,0 +1,407 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.db;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import javax.inject.Provider;
+
+import com.fourservings.api.ContentHash;
+import com.fourservings.api.Repository;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndReplaceOptions;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Stores each distinct file only once.  The bytes are written to the
+ * underlying repository keyed by their content hash, and the keys handed out
+ * to callers are aliases to them, kept in mongo:
+ * <pre>
+ * file_alias  { _id: key, hash: content hash, metadata: {...}, deleting: claim }
+ * file_blob   { _id: content hash, refs: number of aliases, state: "pending"/"stored"/"deleting" }
+ * </pre>
+ * Deleting a key only drops its alias; the bytes go once nothing refers to
+ * them any more.  {@link #copy(String, String)} just adds another alias.
+ *
+ * A blob is "pending" from its first reference until its bytes have been
+ * stored.  Anyone taking a reference to a pending blob makes sure the bytes
+ * are there, storing them itself if not, so a key is never aliased to bytes
+ * that were never stored, even if whoever took the first reference failed.
+ *
+ * Once the last reference goes, the blob is "deleting" until its bytes are
+ * gone, and no new reference can be taken until then; a new upload of the
+ * same bytes waits and stores them afresh, rather than aliasing bytes that
+ * are about to be deleted.
+ *
+ * {@link #deleteMany(Collection)} first claims its aliases by marking them
+ * "deleting", so that nobody replaces or deletes one between it reading what
+ * they point at and deleting them, and each blob is released exactly once.
+ * Writes to a claimed key wait for the claim to go, as for a blob.
+ *
+ * Files stored before deduplication was turned on are still in the
+ * underlying repository under their own keys, which always have an owner
+ * and so can't be mistaken for a content hash.  A key without an alias is
+ * looked for there, and deleting a key deletes it there too, so they keep
+ * working and are reclaimed like any other file.
+ */
+public class DeduplicatingRepository implements Repository {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeduplicatingRepository.class);
+
+    protected static final String COLLECTION_ALIAS = "file_alias";
+    protected static final String COLLECTION_BLOB = "file_blob";
+
+    static final String STATE_PENDING = "pending";
+    static final String STATE_STORED = "stored";
+    static final String STATE_DELETING = "deleting";
+
+    private static final int DUPLICATE_KEY = 11000;
+    // how long to wait for a blob's or alias's deletion before giving up
+    private static final int WAIT_ATTEMPTS = 100;
+    private static final long WAIT_RETRY_MILLIS = 50;
+    // a deletion that's taken this long died part way, leaving its tombstone or claim
+    private static final long ABANDONED_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private final Provider<MongoDatabase> mongo;
+    private final Repository blobs;
+
+    public DeduplicatingRepository(Provider<MongoDatabase> mongo, Repository blobs) {
+        this.mongo = mongo;
+        this.blobs = blobs;
+    }
+
+    private MongoCollection<Document> aliases() {
+        return this.mongo.get().getCollection(COLLECTION_ALIAS);
+    }
+
+    private MongoCollection<Document> refs() {
+        return this.mongo.get().getCollection(COLLECTION_BLOB);
+    }
+
+    public Item get(String key) {
+        return find(key, false);
+    }
+
+    public Item head(String key) {
+        return find(key, true);
+    }
+
+    private Item find(String key, boolean metadataOnly) {
+        Document alias = aliases().find(Filters.eq("_id", key)).first();
+        if (alias == null) {
+            // stored before deduplication, if at all
+            return metadataOnly ? this.blobs.head(key) : this.blobs.get(key);
+        }
+
+        String hash = alias.getString("hash");
+        Item blob = metadataOnly ? this.blobs.head(hash) : this.blobs.get(hash);
+        if (blob == null) return null; // still being written by whoever took the first reference
+        return blob instanceof LocalItem
+            ? new LocalAliasItem(key, alias, (LocalItem) blob)
+            : new AliasItem(key, alias, blob);
+    }
+
+    public void upsert(String key, InputStream data, Map<String, String> metadata) throws IOException {
+        // The blob key isn't known until every byte has been read, so spool
+        // to disk rather than holding the file in memory.
+        Path spool = Files.createTempFile("upload", ".tmp");
+        try {
+            DigestInputStream digesting = ContentHash.digesting(data);
+            Files.copy(digesting, spool, StandardCopyOption.REPLACE_EXISTING);
+            String hash = ContentHash.of(digesting);
+
+            String state = retain(hash);
+            if (STATE_STORED.equals(state)) {
+                LOGGER.info("Saving {} as alias of {}", key, hash);
+            } else {
+                try {
+                    // the first reference, or someone else's that may yet fail
+                    if (state == null || this.blobs.head(hash) == null) {
+                        LOGGER.info("Saving {} as new blob {}", key, hash);
+                        try (InputStream in = Files.newInputStream(spool)) {
+                            this.blobs.upsert(hash, in, metadata);
+                        }
+                    }
+                    stored(hash);
+                } catch (IOException | RuntimeException e) {
+                    release(hash);
+                    throw e;
+                }
+            }
+
+            alias(key, hash, metadata);
+        } finally {
+            Files.deleteIfExists(spool);
+        }
+    }
+
+    public boolean copy(String from, String to) throws IOException {
+        Document alias = aliases().find(Filters.eq("_id", from)).first();
+        if (alias == null) {
+            // stored before deduplication, so keep the copy with it
+            return this.blobs.copy(from, to);
+        }
+
+        String hash = alias.getString("hash");
+        String state = retain(hash);
+        if (state == null || (!STATE_STORED.equals(state) && this.blobs.head(hash) == null)) {
+            // deleted since we looked, or never stored
+            release(hash);
+            return false;
+        }
+        alias(to, hash, alias.get("metadata", Document.class));
+        return true;
+    }
+
+    public void delete(String key) {
+        // if it's claimed, a deleteMany is already deleting it
+        Document alias = aliases().findOneAndDelete(Filters.and(Filters.eq("_id", key), unclaimed()));
+        if (alias != null) {
+            release(alias.getString("hash"));
+        }
+        // stored before deduplication, or before the key was written again
+        this.blobs.delete(key);
+    }
+
+    /** Deletes the aliases together, then releases their blobs together,
+     * rather than two round trips for each key.
+     */
+    public void deleteMany(Collection<String> keys) {
+        if (keys.isEmpty()) return;
+
+        ObjectId claim = new ObjectId();
+        Bson claimed = Filters.and(Filters.in("_id", keys), Filters.eq("deleting", claim));
+        aliases().updateMany(Filters.and(Filters.in("_id", keys), unclaimed()), Updates.set("deleting", claim));
+        List<String> hashes = aliases().find(claimed)
+            .projection(Projections.include("hash"))
+            .map(alias -> alias.getString("hash"))
+            .into(new ArrayList<>());
+        if (!hashes.isEmpty()) {
+            aliases().deleteMany(claimed);
+            release(hashes);
+        }
+        // stored before deduplication, or before the keys were written again
+        this.blobs.deleteMany(keys);
+    }
+
+    /** Aliases nobody's deleting, or whose deletion died part way */
+    private static Bson unclaimed() {
+        return Filters.or(Filters.exists("deleting", false),
+            Filters.lt("deleting", new ObjectId(new Date(System.currentTimeMillis() - ABANDONED_MILLIS))));
+    }
+
+    /** The aliased keys, then any stored before deduplication.
+     */
+    public Stream<String> keys() {
+        Stream<String> aliased = MongoRepository.streamStrings(aliases().find(), "_id");
+        Stream<String> legacy = this.blobs.keys().filter(DeduplicatingRepository::isKey);
+        return Stream.concat(aliased, legacy);
+    }
+
+    /** Keys are scoped to their owner, unlike the content hashes blobs are
+     * stored under, which are URL safe base64.
+     */
+    private static boolean isKey(String stored) {
+        return stored.indexOf('/') >= 0;
+    }
+
+    /** Point the key at the blob, releasing whatever it pointed at before.
+     * The caller must already hold a reference to the blob for the key.
+     */
+    private void alias(String key, String hash, Map<String, ?> metadata) {
+        Document previous;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                previous = aliases().findOneAndReplace(
+                    Filters.and(Filters.eq("_id", key), unclaimed()),
+                    new Document()
+                        .append("_id", key)
+                        .append("hash", hash)
+                        .append("metadata", new Document(new HashMap<>(metadata))),
+                    new FindOneAndReplaceOptions().upsert(true).returnDocument(ReturnDocument.BEFORE));
+                break;
+            } catch (MongoException e) {
+                // the upsert hit a claimed alias
+                if (e.getCode() != DUPLICATE_KEY) throw e;
+            }
+            await(attempt, "Key " + key);
+        }
+
+        if (previous != null) {
+            release(previous.getString("hash"));
+        }
+    }
+
+    /** Add a reference to the blob.
+     * @return null if this is the first one, so the bytes need to be
+     *  stored, otherwise the blob's state
+     */
+    private String retain(String hash) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                Document before = refs().findOneAndUpdate(
+                    Filters.and(Filters.eq("_id", hash), Filters.ne("state", STATE_DELETING)),
+                    Updates.combine(Updates.inc("refs", 1), Updates.setOnInsert("state", STATE_PENDING)),
+                    new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.BEFORE));
+                // blobs from before there were states are all stored
+                return before == null ? null : before.getString("state") == null ? STATE_STORED : before.getString("state");
+            } catch (MongoException e) {
+                // the upsert hit a tombstone, or raced another upsert
+                if (e.getCode() != DUPLICATE_KEY) throw e;
+            }
+
+            refs().deleteOne(Filters.and(Filters.eq("_id", hash), Filters.eq("state", STATE_DELETING),
+                Filters.lt("deleting", new Date(System.currentTimeMillis() - ABANDONED_MILLIS))));
+            await(attempt, "Blob " + hash);
+        }
+    }
+
+    /** Wait a little for a deletion to finish, or give up.
+     */
+    private static void await(int attempt, String what) {
+        if (attempt >= WAIT_ATTEMPTS) {
+            throw new IllegalStateException(what + " is still being deleted");
+        }
+        try {
+            Thread.sleep(WAIT_RETRY_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for " + what, e);
+        }
+    }
+
+    /** The blob's bytes are stored, so it can be aliased without checking.
+     */
+    private void stored(String hash) {
+        refs().updateOne(Filters.and(Filters.eq("_id", hash), Filters.eq("state", STATE_PENDING)),
+            Updates.set("state", STATE_STORED));
+    }
+
+    /** Drop a reference to the blob, deleting it once there are none left.
+     */
+    private void release(String hash) {
+        Document after = refs().findOneAndUpdate(
+            Filters.eq("_id", hash),
+            Updates.inc("refs", -1),
+            new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER));
+        if (after == null || after.getInteger("refs", 0) > 0) return;
+
+        deleteUnreferenced(hash);
+    }
+
+    /** Drop a reference for each of the hashes, deleting any blobs with none
+     * left.
+     */
+    private void release(List<String> hashes) {
+        Map<String, Integer> counts = new HashMap<>();
+        hashes.forEach(hash -> counts.merge(hash, 1, Integer::sum));
+        List<WriteModel<Document>> updates = new ArrayList<>();
+        counts.forEach((hash, count) -> updates.add(new UpdateOneModel<>(Filters.eq("_id", hash), Updates.inc("refs", -count))));
+        refs().bulkWrite(updates, new BulkWriteOptions().ordered(false));
+
+        refs().find(Filters.and(Filters.in("_id", counts.keySet()), Filters.lte("refs", 0)))
+            .projection(Projections.include("_id"))
+            .map(blob -> blob.getString("_id"))
+            .into(new ArrayList<>())
+            .forEach(this::deleteUnreferenced);
+    }
+
+    private void deleteUnreferenced(String hash) {
+        // Only if nobody picked up a new reference in the meantime.  The
+        // tombstone stops anyone taking one until the bytes are gone.
+        Date deleting = new Date();
+        Document tombstone = refs().findOneAndUpdate(
+            Filters.and(Filters.eq("_id", hash), Filters.lte("refs", 0), Filters.ne("state", STATE_DELETING)),
+            Updates.combine(Updates.set("state", STATE_DELETING), Updates.set("deleting", deleting)));
+        if (tombstone == null) return;
+
+        LOGGER.info("Deleting unreferenced blob {}", hash);
+        try {
+            this.blobs.delete(hash);
+        } finally {
+            refs().deleteOne(Filters.and(Filters.eq("_id", hash), Filters.eq("deleting", deleting)));
+        }
+    }
+
+    private static class AliasItem implements Item {
+        private final String key;
+        private final Map<String, String> metadata;
+        private final Item blob;
+
+        private AliasItem(String key, Document alias, Item blob) {
+            this.key = key;
+            this.blob = blob;
+
+            Map<String, String> metadata = new HashMap<>();
+            alias.get("metadata", new Document()).forEach((name, value) ->
+                metadata.put(name, value != null ? value.toString() : ""));
+            // Length and hash always describe the stored bytes
+            metadata.put(Repository.METADATA_CONTENT_LENGTH, blob.metadata().get(Repository.METADATA_CONTENT_LENGTH));
+            metadata.put(Repository.METADATA_CONTENT_HASH, alias.getString("hash"));
+            this.metadata = Collections.unmodifiableMap(metadata);
+        }
+
+        public String key() { return this.key; }
+        public Map<String, String> metadata() { return this.metadata; }
+
+        public InputStream openStream() {
+            return this.blob.openStream();
+        }
+    }
+
+    private static class LocalAliasItem extends AliasItem implements LocalItem {
+        private final LocalItem blob;
+
+        private LocalAliasItem(String key, Document alias, LocalItem blob) {
+            super(key, alias, blob);
+            this.blob = blob;
+        }
+
+        public FileChannel openChannel() throws IOException {
+            return this.blob.openChannel();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.db;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.stream.Stream;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import com.fourservings.api.ContentHash;
+import com.fourservings.api.Repository;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSBuckets;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.gridfs.model.GridFSUploadOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** A binary file repository, backed by GridFS in the primary mongo database.
+ * Data is streamed in and out in chunks, so unlike {@link MongoRepository}
+ * neither side ever holds a whole file in memory and there's no 16MB cap.
+ *
+ * The repository key is stored as the GridFS filename.  An upsert writes a
+ * new revision and then removes any older ones, so readers never see a
+ * partially written file.
+ */
+@Singleton
+public class GridFsRepository implements Repository {
+    private static final Logger LOGGER = LoggerFactory.getLogger(GridFsRepository.class);
+
+    protected static final String BUCKET = "blobs";
+
+    private final Provider<MongoDatabase> mongo;
+
+    @Inject
+    public GridFsRepository(Provider<MongoDatabase> mongo) {
+        this.mongo = mongo;
+    }
+
+    private GridFSBucket bucket() {
+        return GridFSBuckets.create(mongo.get(), BUCKET);
+    }
+
+    public Item get(String key) {
+        GridFSBucket bucket = bucket();
+        GridFSFile file = bucket
+            .find(Filters.eq("filename", key))
+            .sort(Sorts.descending("uploadDate"))
+            .limit(1)
+            .first();
+
+        return file == null ? null : new GridFsItem(bucket, file);
+    }
+
+    public void upsert(String key, InputStream data, Map<String, String> metadata) throws IOException {
+        LOGGER.info("Saving {} to gridfs", key);
+
+        GridFSBucket bucket = bucket();
+        DigestInputStream digesting = ContentHash.digesting(data);
+        ObjectId id = bucket.uploadFromStream(key, digesting,
+            new GridFSUploadOptions().metadata(new Document(new HashMap<>(metadata))));
+
+        // The hash is only known once the upload is done
+        mongo.get().getCollection(BUCKET + ".files").updateOne(
+            Filters.eq("_id", id),
+            Updates.set("metadata." + Repository.METADATA_CONTENT_HASH, ContentHash.of(digesting)));
+
+        // Drop previous revisions now that the new one is complete
+        bucket.find(Filters.and(Filters.eq("filename", key), Filters.ne("_id", id)))
+            .forEach(previous -> bucket.delete(previous.getObjectId()));
+    }
+
+    public void delete(String key) {
+        GridFSBucket bucket = bucket();
+        bucket.find(Filters.eq("filename", key))
+            .forEach(file -> bucket.delete(file.getObjectId()));
+    }
+
+    /** Removes the files then their chunks, as {@link GridFSBucket#delete}
+     * does, but for every file at once rather than two round trips each.
+     */
+    public void deleteMany(Collection<String> keys) {
+        if (keys.isEmpty()) return;
+
+        MongoDatabase db = mongo.get();
+        List<ObjectId> ids = db.getCollection(BUCKET + ".files")
+            .find(Filters.in("filename", keys))
+            .projection(Projections.include("_id"))
+            .map(file -> file.getObjectId("_id"))
+            .into(new ArrayList<>());
+        if (ids.isEmpty()) return;
+
+        db.getCollection(BUCKET + ".files").deleteMany(Filters.in("_id", ids));
+        db.getCollection(BUCKET + ".chunks").deleteMany(Filters.in("files_id", ids));
+    }
+
+    /** Keys of all stored files.  A key may be repeated while an upsert is
+     * replacing it.
+     */
+    public Stream<String> keys() {
+        return MongoRepository.streamStrings(mongo.get().getCollection(BUCKET + ".files").find(), "filename");
+    }
+
+    private static class GridFsItem implements Item {
+        private final GridFSBucket bucket;
+        private final ObjectId id;
+        private final String key;
+        private final Map<String, String> metadata;
+
+        private GridFsItem(GridFSBucket bucket, GridFSFile file) {
+            this.bucket = bucket;
+            this.id = file.getObjectId();
+            this.key = file.getFilename();
+
+            Map<String, String> metadata = new HashMap<>();
+            Document stored = file.getMetadata();
+            if (stored != null) {
+                for (Entry<String, ?> entry : stored.entrySet()) {
+                    metadata.put(
+                        entry.getKey(),
+                        entry.getValue() != null ? entry.getValue().toString() : ""
+                    );
+                }
+            }
+            metadata.put(Repository.METADATA_CONTENT_LENGTH, Long.toString(file.getLength()));
+            this.metadata = Collections.unmodifiableMap(metadata);
+        }
+
+        public String key() { return this.key; }
+        public Map<String, String> metadata() { return this.metadata; }
+
+        public InputStream openStream() {
+            return this.bucket.openDownloadStream(this.id);
+        }
+    }
+}
@@ -21,18 +21,30 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
 import javax.inject.Singleton;
 
+import com.fourservings.api.ContentHash;
 import com.fourservings.api.Repository;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.DeleteOneModel;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
 import com.mongodb.client.model.ReplaceOptions;
 
 import org.apache.commons.io.IOUtils;
@@ -63,7 +75,22 @@ public class MongoRepository implements Repository {
             .find(Filters.eq("_id", key))
             .first();
         
-        return data == null ? null : new MongoItem(data);
+        return data == null ? null : new MongoItem(data, null);
+    }
+
+    /** Fetches everything but the data, which is only loaded if the item is
+     * opened.
+     */
+    public Item head(String key) {
+        Document data = mongo.get().getCollection(COLLECTION)
+            .find(Filters.eq("_id", key))
+            .projection(Projections.exclude("data"))
+            .first();
+        if (data == null) return null;
+        // stored before lengths were recorded, only the data will tell us
+        if (data.get("length") == null) return get(key);
+
+        return new MongoItem(data, this);
     }
 
     public void upsert(String key, InputStream data, Map<String, String> metadata) throws IOException {
@@ -71,11 +98,16 @@ public class MongoRepository implements Repository {
 
         ByteArrayOutputStream bout = new ByteArrayOutputStream(4096);
         IOUtils.copy(data, bout);
+        byte[] bytes = bout.toByteArray();
+
+        Map<String, String> stored = new HashMap<>(metadata);
+        stored.put(Repository.METADATA_CONTENT_HASH, ContentHash.of(bytes));
 
         Document doc = new Document()
             .append("_id", key)
-            .append("metadata", metadata)
-            .append("data", bout.toByteArray());
+            .append("metadata", stored)
+            .append("length", bytes.length)
+            .append("data", bytes);
 
         mongo.get().getCollection(COLLECTION)
             .replaceOne(Filters.eq("_id", key), doc, new ReplaceOptions().upsert(true));
@@ -85,19 +117,56 @@ public class MongoRepository implements Repository {
         mongo.get().getCollection(COLLECTION).deleteOne(Filters.eq("_id", key));
     }
 
+    public void deleteMany(Collection<String> keys) {
+        if (keys.isEmpty()) return;
+
+        // Unordered, so one failing doesn't stop the rest
+        mongo.get().getCollection(COLLECTION).bulkWrite(
+            keys.stream()
+                .map(key -> new DeleteOneModel<Document>(Filters.eq("_id", key)))
+                .collect(Collectors.toList()),
+            new BulkWriteOptions().ordered(false));
+    }
+
+    public Stream<String> keys() {
+        return streamStrings(mongo.get().getCollection(COLLECTION).find(), "_id");
+    }
+
+    /** Stream a single string field of the query results, fetching only
+     * that field.  Closing the stream closes the cursor.
+     */
+    static Stream<String> streamStrings(FindIterable<Document> find, String field) {
+        MongoCursor<Document> cursor = find
+            .projection(Projections.include(field))
+            .batchSize(1000)
+            .cursor();
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(cursor, Spliterator.ORDERED), false)
+            .map(doc -> doc.getString(field))
+            .onClose(cursor::close);
+    }
+
     private static class MongoItem implements Item {
         private final String key;
         private final Map<String, String> metadata;
         private final byte[] data;
+        private final MongoRepository loader;
 
-        private MongoItem(Document doc) {
+        /**
+         * @param loader Where to load the data from when the document doesn't
+         *  include it, or null if it's a full document
+         */
+        private MongoItem(Document doc, MongoRepository loader) {
             this.key = doc.getString("_id");
+            this.loader = loader;
 
-            Binary data = doc.get("data", Binary.class);
-            if (data != null) {
-                this.data = data.getData();
+            long length;
+            if (loader != null) {
+                this.data = null;
+                length = doc.get("length", Number.class).longValue();
             } else {
-                this.data = new byte[0];
+                Binary data = doc.get("data", Binary.class);
+                this.data = data != null ? data.getData() : new byte[0];
+                length = this.data.length;
             }
 
             Map<String, String> metadata = new HashMap<>();
@@ -107,7 +176,7 @@ public class MongoRepository implements Repository {
                     entry.getValue() != null ? entry.getValue().toString() : ""
                 );
             }
-            metadata.put(Repository.METADATA_CONTENT_LENGTH, Integer.toString(this.data.length));
+            metadata.put(Repository.METADATA_CONTENT_LENGTH, Long.toString(length));
             this.metadata = Collections.unmodifiableMap(metadata);
         }
 
@@ -115,7 +184,11 @@ public class MongoRepository implements Repository {
         public Map<String, String> metadata() { return this.metadata; }
 
         public InputStream openStream() {
-            return new ByteArrayInputStream(this.data);
+            if (this.data != null) return new ByteArrayInputStream(this.data);
+
+            Item item = this.loader.get(this.key);
+            if (item == null) throw new IllegalStateException(this.key + " no longer exists");
+            return item.openStream();
         }
     }
 }
@@ -118,7 +118,9 @@ public class AuthenticationEndpoint {
         return toExternal(account);
     }
 
-    private static JsonObject toExternal(Document account) {
+    private JsonObject toExternal(Document account) {
+        // for building image URLs that don't rely on the auth cookie
+        account.append("fileCapability", this.authenticator.generateFileCapability(account.getObjectId("_id")));
         account.remove("_id");
         return JsonUtil.toJson(account);
     }
@@ -0,0 +1,80 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.endpoint;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+
+/** A single "bytes" range from an HTTP Range header, resolved against the
+ * length of the content.
+ */
+class ByteRange {
+    static final ByteRange UNSATISFIABLE = new ByteRange(-1, 0);
+
+    final long start;
+    final long length;
+
+    private ByteRange(long start, long length) {
+        this.start = start;
+        this.length = length;
+    }
+
+    long end() {
+        return this.start + this.length - 1;
+    }
+
+    String toContentRange(long total) {
+        return "bytes " + this.start + "-" + end() + "/" + total;
+    }
+
+    /** Parse the Range header value.  Returns null when the whole content
+     * should be sent instead: no header, a malformed one, or multiple ranges
+     * (which we don't bother supporting).
+     */
+    static ByteRange parse(String header, long total) {
+        if (StringUtils.isBlank(header) || total < 0) return null;
+
+        header = header.trim();
+        if (!header.startsWith("bytes=") || header.contains(",")) return null;
+
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) return null;
+
+        String first = spec.substring(0, dash).trim();
+        String last = spec.substring(dash + 1).trim();
+        if ((!first.isEmpty() && !NumberUtils.isDigits(first)) || (!last.isEmpty() && !NumberUtils.isDigits(last))) {
+            return null;
+        }
+
+        if (first.isEmpty()) {
+            // suffix range, the last N bytes
+            if (last.isEmpty()) return null;
+            long suffix = Math.min(NumberUtils.toLong(last), total);
+            if (suffix == 0) return UNSATISFIABLE;
+            return new ByteRange(total - suffix, suffix);
+        }
+
+        long start = NumberUtils.toLong(first);
+        long end = last.isEmpty() ? total - 1 : Math.min(NumberUtils.toLong(last), total - 1);
+        if (!last.isEmpty() && NumberUtils.toLong(last) < start) return null;
+        if (start >= total) return UNSATISFIABLE;
+
+        return new ByteRange(start, end - start + 1);
+    }
+}
@@ -19,9 +19,10 @@ package com.fourservings.api.endpoint;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
 import java.util.Optional;
 
 import javax.inject.Inject;
@@ -29,86 +30,269 @@ import javax.json.Json;
 import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
+import javax.ws.rs.HEAD;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.NotFoundException;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
 
 import com.fourservings.api.Authenticator;
 import com.fourservings.api.Repository;
 import com.fourservings.api.Repository.Item;
+import com.fourservings.api.Repository.LocalItem;
+import com.fourservings.api.files.ImageVariants;
+import com.fourservings.api.files.UploadReceiver;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.bson.types.ObjectId;
 import org.jboss.resteasy.plugins.guice.RequestScoped;
-import org.jboss.resteasy.plugins.providers.multipart.InputPart;
-import org.jboss.resteasy.plugins.providers.multipart.MultipartFormDataInput;
+
+import io.undertow.servlet.spec.ServletOutputStreamImpl;
 
 @RequestScoped
 @Path("/files")
 public class FilesEndpoint {
+    private static final long MAX_AGE_IMMUTABLE = 31536000;
+    private static final long MAX_AGE_FALLBACK = 60;
+
     private final Repository files;
     private final Authenticator authenticator;
+    private final ImageVariants variants;
+    private final UploadReceiver uploads;
 
     @Inject
     private HttpServletRequest request;
 
     @Inject
-    public FilesEndpoint(Authenticator authenticator, Repository files) {
+    private HttpServletResponse response;
+
+    @Inject
+    private Request jaxrsRequest;
+
+    private long maxAge = MAX_AGE_IMMUTABLE;
+    // whether shared caches may keep the response, i.e. the URL carries the capability
+    private boolean shared = false;
+
+    @Inject
+    public FilesEndpoint(Authenticator authenticator, Repository files, ImageVariants variants, UploadReceiver uploads) {
         this.authenticator = authenticator;
         this.files = files;
+        this.variants = variants;
+        this.uploads = uploads;
     }
 
     @GET
     @Path("{key}")
-    public Response get(@PathParam("key") String key) {
+    public Response get(@PathParam("key") String key, @QueryParam("w") Integer width, 
+            @QueryParam("c") String capability) throws IOException {
+        // A revalidating client most likely has the content already, so start
+        // with just the metadata and only load the content if it's needed
+        boolean revalidating = this.request.getHeader("If-None-Match") != null;
+        Item file = find(key, width, capability, revalidating);
+
+        ResponseBuilder notModified = evaluatePreconditions(file);
+        if (notModified != null) return notModified.build();
+
+        // Open a local file before the headers are built from its metadata,
+        // so it can't be replaced or deleted in between.  If that's already
+        // happened, look it up again.
+        FileChannel channel = null;
+        if (file instanceof LocalItem) {
+            try {
+                channel = ((LocalItem) file).openChannel();
+            } catch (NoSuchFileException e) {
+                file = find(key, width, capability, false);
+                if (file instanceof LocalItem) {
+                    try {
+                        channel = ((LocalItem) file).openChannel();
+                    } catch (NoSuchFileException again) {
+                        throw new NotFoundException();
+                    }
+                }
+            }
+        }
+
+        String contentLength = file.metadata().get(Repository.METADATA_CONTENT_LENGTH);
+        long length = NumberUtils.toLong(contentLength, -1);
+
+        ByteRange range = null;
+        EntityTag etag = entityTag(file);
+        String ifRange = this.request.getHeader("If-Range");
+        if (ifRange == null || (etag != null && ifRange.equals(etag.toString()))) {
+            range = ByteRange.parse(this.request.getHeader("Range"), length);
+        }
+
+        if (range == ByteRange.UNSATISFIABLE) {
+            if (channel != null) channel.close();
+            return Response.status(Status.REQUESTED_RANGE_NOT_SATISFIABLE)
+                .header("Content-Range", "bytes */" + length)
+                .build();
+        }
+
+        if (range == null) {
+            Object entity = channel != null ? transferFrom(channel, 0, length) : file.openStream();
+
+            return headers(Response.ok(entity), file)
+                .header("Content-Length", contentLength)
+                .build();
+        }
+
+        Object entity;
+        if (channel != null) {
+            entity = transferFrom(channel, range.start, range.length);
+        } else {
+            InputStream in = file.openStream();
+            IOUtils.skipFully(in, range.start);
+            entity = new BoundedInputStream(in, range.length);
+        }
+
+        return headers(Response.status(Status.PARTIAL_CONTENT).entity(entity), file)
+            .header("Content-Range", range.toContentRange(length))
+            .header("Content-Length", range.length)
+            .build();
+    }
+
+    @HEAD
+    @Path("{key}")
+    public Response head(@PathParam("key") String key, @QueryParam("w") Integer width, 
+            @QueryParam("c") String capability) {
+        Item file = find(key, width, capability, true);
+
+        ResponseBuilder notModified = evaluatePreconditions(file);
+        if (notModified != null) return notModified.build();
+
+        return headers(Response.ok(), file)
+            .header("Content-Length", file.metadata().get(Repository.METADATA_CONTENT_LENGTH))
+            .build();
+    }
+
+    /** Find the file, or the variant best suited to the requested display
+     * width.  Until a variant has been generated we fall back to the original.
+     * @param capability   File capability from the URL, used instead of the
+     *  logged in user when given
+     * @param metadataOnly true if the content probably won't be needed
+     */
+    private Item find(String key, Integer width, String capability, boolean metadataOnly) {
         if (StringUtils.isBlank(key)) throw new NotFoundException();
 
-        ObjectId owner = this.authenticator.getUser(this.request);
+        ObjectId owner;
+        if (capability != null) {
+            owner = this.authenticator.authenticateFileCapability(capability)
+                .orElseThrow(() -> new WebApplicationException(Status.UNAUTHORIZED));
+            this.shared = true;
+            // shared caches mustn't keep serving it once the capability expires
+            this.maxAge = Math.min(this.maxAge, this.authenticator.fileCapabilitySecondsLeft(capability));
+        } else {
+            owner = this.authenticator.getUser(this.request);
+        }
         // scope the keys with the owner to prevent unauthorized access
-        Item file = this.files.get(owner.toHexString() + "/" + key);
+        key = owner.toHexString() + "/" + key;
+
+        if (width != null && width > 0) {
+            String variantKey = this.variants.keyFor(key, width);
+            if (!variantKey.equals(key)) {
+                Item variant = metadataOnly ? this.files.head(variantKey) : this.files.get(variantKey);
+                if (variant != null) return variant;
+
+                // Don't let the fallback get cached for long under the variant's URL
+                this.maxAge = Math.min(this.maxAge, MAX_AGE_FALLBACK);
+            }
+        }
+
+        Item file = metadataOnly ? this.files.head(key) : this.files.get(key);
         if (file == null) throw new NotFoundException();
 
-        return Response
-                .ok(file.openStream(),
-                    Optional.ofNullable(file.metadata().get(Repository.METADATA_MIME_TYPE))
-                            .orElse(MediaType.APPLICATION_OCTET_STREAM))
-                .header("Content-Length", file.metadata().get(Repository.METADATA_CONTENT_LENGTH))
-                .header("Cache-Control", "public, max-age=31536000")
-                // the data is immutable, so no point in adding etag header
-                .build();
+        return file;
+    }
+
+    private static EntityTag entityTag(Item file) {
+        String hash = file.metadata().get(Repository.METADATA_CONTENT_HASH);
+        return StringUtils.isBlank(hash) ? null : new EntityTag(hash);
+    }
+
+    /** Handle If-None-Match and friends, returning the response to send if
+     * the client's copy is still good or null to carry on.
+     */
+    private ResponseBuilder evaluatePreconditions(Item file) {
+        EntityTag etag = entityTag(file);
+        if (etag == null) return null;
+
+        ResponseBuilder response = this.jaxrsRequest.evaluatePreconditions(etag);
+        return response == null ? null : response
+            .tag(etag)
+            .header("Cache-Control", cacheControl());
+    }
+
+    /** Responses to the cookie authenticated URL are only for the user's own
+     * cache, since the same URL gets a 401 for anyone else.
+     */
+    private String cacheControl() {
+        return (this.shared ? "public" : "private") + ", max-age=" + this.maxAge;
+    }
+
+    private ResponseBuilder headers(ResponseBuilder response, Item file) {
+        EntityTag etag = entityTag(file);
+        if (etag != null) response.tag(etag);
+
+        return response
+            .type(Optional.ofNullable(file.metadata().get(Repository.METADATA_MIME_TYPE))
+                    .orElse(MediaType.APPLICATION_OCTET_STREAM))
+            .header("Accept-Ranges", "bytes")
+            .header("Cache-Control", cacheControl());
+    }
+
+    /** Send (part of) a local file without copying it through the JVM.  When 
+     * running in undertow the file channel is handed to the connection directly
+     * (sendfile), otherwise we fall back to a channel copy.  The channel is
+     * closed once it's sent.
+     */
+    private StreamingOutput transferFrom(FileChannel file, long start, long length) {
+        return out -> {
+            try (FileChannel channel = file) {
+                // flushing commits the response headers, after which we're free
+                // to write to the underlying servlet stream
+                out.flush();
+
+                OutputStream raw = this.response.getOutputStream();
+                if (raw instanceof ServletOutputStreamImpl && start + length == channel.size()) {
+                    // undertow sends from the current position through to the end
+                    channel.position(start);
+                    ((ServletOutputStreamImpl) raw).transferFrom(channel);
+                } else {
+                    channel.transferTo(start, length, Channels.newChannel(out));
+                }
+            }
+        };
     }
 
     @POST
     @Path("/")
     @Consumes("multipart/form-data")
     @Produces(MediaType.APPLICATION_JSON)
-    public JsonObject upload(MultipartFormDataInput payload) throws IOException {
+    public JsonObject upload(@HeaderParam(HttpHeaders.CONTENT_TYPE) MediaType type, InputStream body) throws IOException {
         ObjectId owner = this.authenticator.getUser(this.request);
-        
-        JsonArrayBuilder uploadKeys = Json.createArrayBuilder();
-
-        List<InputPart> dataParts = payload.getFormDataMap().get("file");
-        for (InputPart dataPart : dataParts) {
-            // Since we automatically tack on the ownerId to the key on GET, as far as
-            // the frontend knows, the ownerId part of the key doesn't exist.
-            String publicKey = new ObjectId().toHexString();
-            uploadKeys.add(publicKey);
-
-            String key = owner.toHexString() + "/" + publicKey;
-            Map<String, String> metadata = new HashMap<>();
-            metadata.put(Repository.METADATA_MIME_TYPE, dataPart.getMediaType().toString());
 
-            try (InputStream in = dataPart.getBody(InputStream.class, null)) {
-                this.files.upsert(key, in, metadata);
-            }
-        }
-        payload.close();
+        JsonArrayBuilder uploadKeys = Json.createArrayBuilder();
+        this.uploads.receive(owner, type, body, this.request.getContentLengthLong())
+            .forEach(uploadKeys::add);
 
         return Json.createObjectBuilder()
             .add("uploaded", uploadKeys.build())
@@ -37,7 +37,10 @@ import javax.ws.rs.QueryParam;
 
 import com.fourservings.api.Authenticator;
 import com.fourservings.api.JsonUtil;
+import com.fourservings.api.PageCursors;
+import com.fourservings.api.RecipeFields;
 import com.fourservings.api.RecipeManager;
+import com.fourservings.api.search.SuggestIndex;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.Pair;
@@ -49,16 +52,23 @@ import org.jboss.resteasy.plugins.guice.RequestScoped;
 @Path("/recipes")
 @Produces("application/json")
 public class RecipeEndpoint {
+    private static final String SORT_RELEVANCE = "relevance";
+
     private final Authenticator authenticator;
     private final RecipeManager recipes;
+    private final SuggestIndex suggestions;
+    private final PageCursors cursors;
 
     @Inject
     private HttpServletRequest request;
 
     @Inject
-    public RecipeEndpoint(Authenticator authenticator, RecipeManager recipes) {
+    public RecipeEndpoint(Authenticator authenticator, RecipeManager recipes, SuggestIndex suggestions,
+            PageCursors cursors) {
         this.authenticator = authenticator;
         this.recipes = recipes;
+        this.suggestions = suggestions;
+        this.cursors = cursors;
     }
 
     private static JsonObject toExternal(Document group) {
@@ -72,20 +82,54 @@ public class RecipeEndpoint {
         @QueryParam("search") String search, 
         @QueryParam("group") String groupId, 
         @QueryParam("start") Integer start, 
-        @QueryParam("count") Integer count) {
+        @QueryParam("count") Integer count,
+        @QueryParam("cursor") String cursor,
+        @QueryParam("fields") String fields,
+        @QueryParam("fuzzy") boolean fuzzy,
+        @QueryParam("sort") String sort) {
 
         ObjectId userId = this.authenticator.getUser(request);
         if (StringUtils.isNotBlank(groupId) && !ObjectId.isValid(groupId)) {
             throw new BadRequestException("group is invalid");
         }
 
+        // cursors are only good for the search they came from
+        String query = StringUtils.trimToEmpty(search) + "/" + StringUtils.trimToEmpty(groupId);
+        ObjectId after = null;
+        if (StringUtils.isNotBlank(cursor)) {
+            after = this.cursors.verify(userId, query, cursor)
+                .orElseThrow(() -> new BadRequestException("cursor is invalid"));
+        }
+
         if (start == null || start < 0) start = 0;
         if (count == null || count < 0) count = 10;
+        if (fuzzy && StringUtils.isNotBlank(search)) {
+            // ranked by closeness rather than newest first, so no cursor
+            return toExternal(this.recipes.searchFuzzy(userId, search, start, count, RecipeFields.projection(fields)));
+        }
+        if (SORT_RELEVANCE.equals(sort) && StringUtils.isNotBlank(search)) {
+            // likewise best first, with snippets
+            return toExternal(this.recipes.searchByRelevance(userId,
+                search, StringUtils.isNotBlank(groupId) ? new ObjectId(groupId) : null,
+                start, count, RecipeFields.projection(fields)));
+        }
+
         Pair<List<Document>, Integer> results = 
             this.recipes.search(userId, 
                 search, StringUtils.isNotBlank(groupId) ? new ObjectId(groupId) : null, 
-                start, count);
+                after, start, count, RecipeFields.projection(fields));
+
+        JsonObject page = toExternal(results);
+        if (count == 0 || results.getLeft().size() < count) return page;
+
+        // a full page, so there may be more
+        ObjectId last = results.getLeft().get(results.getLeft().size() - 1).getObjectId("_id");
+        return Json.createObjectBuilder(page)
+            .add("cursor", this.cursors.generate(userId, query, last))
+            .build();
+    }
 
+    private static JsonObject toExternal(Pair<List<Document>, Integer> results) {
         JsonArrayBuilder resultBuilder = Json.createArrayBuilder();
         results.getLeft().stream()
             .map(RecipeEndpoint::toExternal)
@@ -97,13 +141,38 @@ public class RecipeEndpoint {
             .build();
     }
 
+    /** "What can I cook", see {@link RecipeManager#searchByIngredients}.
+     */
+    @GET
+    @Path("/_cook")
+    public JsonObject cook(
+        @QueryParam("have") List<String> have,
+        @QueryParam("start") Integer start,
+        @QueryParam("count") Integer count) {
+
+        ObjectId userId = this.authenticator.getUser(request);
+        if (start == null || start < 0) start = 0;
+        if (count == null || count < 0) count = 10;
+        return toExternal(this.recipes.searchByIngredients(userId, have, start, count));
+    }
+
+    /** Typeahead for the search box, see {@link SuggestIndex}.
+     */
+    @GET
+    @Path("/_suggest")
+    public JsonObject suggest(@QueryParam("q") String prefix, @QueryParam("limit") Integer limit) {
+        ObjectId userId = this.authenticator.getUser(request);
+        if (limit == null || limit < 1) limit = 10;
+        return JsonUtil.toJson(this.suggestions.suggest(userId, prefix, limit));
+    }
+
     @GET
     @Path("/{id}")
-    public JsonObject get(@PathParam("id") String id) {
+    public JsonObject get(@PathParam("id") String id, @QueryParam("fields") String fields) {
         ObjectId userId = this.authenticator.getUser(request);
         if (!ObjectId.isValid(id)) throw new NotFoundException();
 
-        return toExternal(this.recipes.get(userId, new ObjectId(id))); 
+        return toExternal(this.recipes.get(userId, new ObjectId(id), RecipeFields.projection(fields))); 
     }
 
     @POST
@@ -0,0 +1,382 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.files;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import com.fourservings.api.Repository;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** A read-through cache in front of another repository.  Cached data is held
+ * off-heap in fixed size, direct {@link ByteBuffer} slabs which are allocated
+ * up to the given byte budget and then recycled, least recently used first.
+ * 
+ * Slabs belonging to an evicted entry are only recycled once every stream
+ * reading from them has been closed.  Items too large to be worth caching,
+ * or without a known length, are passed through untouched.
+ *
+ * While it's being used, the hit, miss and eviction counts are logged every
+ * 15 minutes to judge FILE_CACHE_MB by.
+ */
+public class CachingRepository implements Repository {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CachingRepository.class);
+
+    static final int SLAB_SIZE = 64 * 1024;
+    private static final long REPORT_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(15);
+
+    private final Repository delegate;
+    private final long maxItemBytes;
+
+    // all guarded by "this"
+    private final ByteBuffer[] slabs;
+    private final int[] freeSlabs;
+    private int freeCount = 0;
+    private int allocatedCount = 0;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final Map<String, Object> loading = new HashMap<>();
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long reported = System.currentTimeMillis();
+
+    /**
+     * @param delegate The repository being cached
+     * @param maxBytes The total off-heap memory budget for cached data
+     */
+    public CachingRepository(Repository delegate, long maxBytes) {
+        if (maxBytes < SLAB_SIZE) throw new IllegalArgumentException("maxBytes must be at least " + SLAB_SIZE);
+
+        this.delegate = delegate;
+        this.slabs = new ByteBuffer[(int) Math.min(Integer.MAX_VALUE, maxBytes / SLAB_SIZE)];
+        this.freeSlabs = new int[this.slabs.length];
+        // don't let a single item push out more than an eighth of the cache
+        this.maxItemBytes = Math.max(SLAB_SIZE, maxBytes / 8);
+    }
+
+    synchronized long getHits() { return this.hits; }
+    synchronized long getMisses() { return this.misses; }
+    synchronized long getEvictions() { return this.evictions; }
+    synchronized int getSize() { return this.entries.size(); }
+
+    public Item get(String key) {
+        Object token = new Object();
+        synchronized (this) {
+            Entry entry = this.entries.get(key);
+            report();
+            if (entry != null) {
+                this.hits++;
+                return new CachedItem(entry);
+            }
+            this.misses++;
+            this.loading.put(key, token);
+        }
+
+        try {
+            Item item = this.delegate.get(key);
+            if (item == null) return null;
+
+            long length = NumberUtils.toLong(item.metadata().get(Repository.METADATA_CONTENT_LENGTH), -1);
+            if (length < 0 || length > this.maxItemBytes) return item;
+
+            Entry entry = load(item, length, token);
+            return entry == null ? item : new CachedItem(entry);
+        } finally {
+            synchronized (this) {
+                this.loading.remove(key, token);
+            }
+        }
+    }
+
+    /** Answered from the cache when possible, but never loads anything into it.
+     */
+    public Item head(String key) {
+        Item cached = cached(key);
+        return cached != null ? cached : this.delegate.head(key);
+    }
+
+    private synchronized Item cached(String key) {
+        Entry entry = this.entries.get(key);
+        if (entry == null) return null;
+
+        this.hits++;
+        return new CachedItem(entry);
+    }
+
+    /** Log the counters if it's been a while.  Must be called while holding
+     * the lock.
+     */
+    private void report() {
+        long now = System.currentTimeMillis();
+        if (now - this.reported < REPORT_INTERVAL_MILLIS) return;
+        this.reported = now;
+
+        long lookups = this.hits + this.misses;
+        LOGGER.info("File cache: {} hits, {} misses ({}% hit rate), {} evictions, {} files in {} of {} slabs",
+            this.hits, this.misses, lookups == 0 ? 0 : this.hits * 100 / lookups, this.evictions,
+            this.entries.size(), this.allocatedCount - this.freeCount, this.slabs.length);
+    }
+
+    /** Copy the item into slabs and publish it, unless the key was written
+     * to while loading.  Returns null when the item couldn't be cached.
+     */
+    private Entry load(Item item, long length, Object token) {
+        int[] allocated;
+        synchronized (this) {
+            allocated = allocate((int) ((length + SLAB_SIZE - 1) / SLAB_SIZE));
+        }
+        if (allocated == null) return null;
+
+        Entry entry = new Entry(item.key(), item.metadata(), length, allocated);
+        boolean published = false;
+        try (InputStream in = item.openStream()) {
+            byte[] buffer = new byte[8192];
+            long remaining = length;
+            for (int slab : allocated) {
+                ByteBuffer into = slab(slab).duplicate();
+                into.clear();
+                int slabRemaining = (int) Math.min(SLAB_SIZE, remaining);
+                while (slabRemaining > 0) {
+                    int read = in.read(buffer, 0, Math.min(buffer.length, slabRemaining));
+                    if (read < 0) throw new IOException("Unexpected end of stream for " + item.key());
+                    into.put(buffer, 0, read);
+                    slabRemaining -= read;
+                    remaining -= read;
+                }
+            }
+
+            synchronized (this) {
+                if (this.loading.get(item.key()) == token) {
+                    this.entries.put(item.key(), entry);
+                    published = true;
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to cache {}", item.key(), e);
+        } finally {
+            if (!published) {
+                synchronized (this) {
+                    free(allocated);
+                }
+            }
+        }
+
+        return published ? entry : null;
+    }
+
+    public void upsert(String key, InputStream data, Map<String, String> metadata) throws IOException {
+        invalidate(key);
+        try {
+            this.delegate.upsert(key, data, metadata);
+        } finally {
+            // catch anything loaded while the write was in flight
+            invalidate(key);
+        }
+    }
+
+    public void delete(String key) {
+        invalidate(key);
+        try {
+            this.delegate.delete(key);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    public boolean copy(String from, String to) throws IOException {
+        invalidate(to);
+        try {
+            return this.delegate.copy(from, to);
+        } finally {
+            invalidate(to);
+        }
+    }
+
+    public void deleteMany(Collection<String> keys) {
+        keys.forEach(this::invalidate);
+        try {
+            this.delegate.deleteMany(keys);
+        } finally {
+            keys.forEach(this::invalidate);
+        }
+    }
+
+    public Stream<String> keys() {
+        return this.delegate.keys();
+    }
+
+    private synchronized void invalidate(String key) {
+        this.loading.remove(key);
+        Entry entry = this.entries.remove(key);
+        if (entry != null) retire(entry);
+    }
+
+    private ByteBuffer slab(int index) {
+        // Slabs are assigned once, under lock, before their index is handed out,
+        // so anyone holding an index will see the assignment.
+        return this.slabs[index];
+    }
+
+    /** Find the requested number of slabs, evicting entries as needed.  Must
+     * be called while holding the lock.
+     */
+    private int[] allocate(int count) {
+        if (count > this.slabs.length) return null;
+
+        Iterator<Entry> lru = this.entries.values().iterator();
+        while (this.freeCount + (this.slabs.length - this.allocatedCount) < count) {
+            if (!lru.hasNext()) return null; // everything left is still being read
+            Entry evicted = lru.next();
+            lru.remove();
+            this.evictions++;
+            retire(evicted);
+        }
+
+        int[] allocated = new int[count];
+        for (int i = 0; i < count; i++) {
+            if (this.freeCount > 0) {
+                allocated[i] = this.freeSlabs[--this.freeCount];
+            } else {
+                allocated[i] = this.allocatedCount;
+                this.slabs[this.allocatedCount++] = ByteBuffer.allocateDirect(SLAB_SIZE);
+            }
+        }
+        return allocated;
+    }
+
+    private void retire(Entry entry) {
+        entry.evicted = true;
+        if (entry.readers == 0) free(entry.slabs);
+    }
+
+    private void free(int[] slabs) {
+        for (int slab : slabs) {
+            this.freeSlabs[this.freeCount++] = slab;
+        }
+    }
+
+    private static class Entry {
+        private final String key;
+        private final Map<String, String> metadata;
+        private final long length;
+        private final int[] slabs;
+
+        // guarded by the repository lock
+        private int readers = 0;
+        private boolean evicted = false;
+
+        private Entry(String key, Map<String, String> metadata, long length, int[] slabs) {
+            this.key = key;
+            this.metadata = metadata;
+            this.length = length;
+            this.slabs = slabs;
+        }
+    }
+
+    private class CachedItem implements Item {
+        private final Entry entry;
+
+        private CachedItem(Entry entry) {
+            this.entry = entry;
+        }
+
+        public String key() { return this.entry.key; }
+        public Map<String, String> metadata() { return this.entry.metadata; }
+
+        public InputStream openStream() {
+            synchronized (CachingRepository.this) {
+                if (!this.entry.evicted) {
+                    this.entry.readers++;
+                    return new SlabInputStream(this.entry);
+                }
+            }
+
+            // evicted between get() and now, go back to the source
+            Item item = delegate.get(this.entry.key);
+            if (item == null) throw new IllegalStateException(this.entry.key + " no longer exists");
+            return item.openStream();
+        }
+    }
+
+    private class SlabInputStream extends InputStream {
+        private final Entry entry;
+        private long position = 0;
+        private boolean closed = false;
+
+        private SlabInputStream(Entry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : (single[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (this.closed) throw new IOException("Stream closed");
+            if (this.position >= this.entry.length) return -1;
+            if (len == 0) return 0;
+
+            int slabOffset = (int) (this.position % SLAB_SIZE);
+            int count = (int) Math.min(len, Math.min(SLAB_SIZE - slabOffset, this.entry.length - this.position));
+
+            ByteBuffer from = slab(this.entry.slabs[(int) (this.position / SLAB_SIZE)]).duplicate();
+            from.position(slabOffset);
+            from.get(b, off, count);
+
+            this.position += count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, this.entry.length - this.position));
+            this.position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, this.entry.length - this.position);
+        }
+
+        @Override
+        public void close() {
+            synchronized (CachingRepository.this) {
+                if (this.closed) return;
+                this.closed = true;
+
+                this.entry.readers--;
+                if (this.entry.evicted && this.entry.readers == 0) free(this.entry.slabs);
+            }
+        }
+    }
+}
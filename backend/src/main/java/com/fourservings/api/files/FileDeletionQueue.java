@@ -0,0 +1,182 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.files;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import com.fourservings.api.Repository;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Deletes files in the background, so requests that dereference files
+ * don't wait on the repository.  Keys are queued in a mongo collection so
+ * nothing is forgotten across restarts, and a single background thread
+ * works through them in batches: shortly after anything is queued, and
+ * every FILE_DELETE_INTERVAL seconds to pick up anything left over.
+ *
+ * Each batch is deleted with a single {@link Repository#deleteMany}, falling
+ * back to deleting one at a time if that fails.  A key that fails to delete
+ * is retried on later passes, up to {@link #MAX_ATTEMPTS} times.
+ */
+@Singleton
+public class FileDeletionQueue {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileDeletionQueue.class);
+
+    static final String COLLECTION = "file_deletion";
+    static final int BATCH_SIZE = 100;
+    static final int MAX_ATTEMPTS = 5;
+
+    private final Provider<MongoDatabase> mongo;
+    private final Repository files;
+    private final ScheduledExecutorService executor;
+    private final AtomicBoolean pending = new AtomicBoolean();
+
+    /**
+     * @param interval Seconds between passes over the queue
+     */
+    @Inject
+    public FileDeletionQueue(Provider<MongoDatabase> mongo, Repository files,
+            @Named("FILE_DELETE_INTERVAL") String interval) {
+        this.mongo = mongo;
+        this.files = files;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "file-deletion");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long seconds = Math.max(1, NumberUtils.toLong(interval, 60));
+        this.executor.scheduleWithFixedDelay(this::drainSafely, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    private MongoCollection<Document> queue() {
+        return this.mongo.get().getCollection(COLLECTION);
+    }
+
+    /** Queue the keys for deletion.  Once this returns the deletes will
+     * happen, even if the process is restarted.
+     */
+    public void enqueue(Collection<String> keys) {
+        if (keys.isEmpty()) return;
+
+        Date now = new Date();
+        queue().insertMany(keys.stream()
+            .map(key -> new Document()
+                .append("key", key)
+                .append("queued", now)
+                .append("attempts", 0))
+            .collect(Collectors.toList()));
+
+        if (this.pending.compareAndSet(false, true)) {
+            this.executor.execute(this::drainSafely);
+        }
+    }
+
+    private void drainSafely() {
+        this.pending.set(false);
+        try {
+            drain();
+        } catch (RuntimeException e) {
+            // Don't let it escape, or the scheduled pass would be cancelled
+            LOGGER.warn("Unable to process file deletion queue", e);
+        }
+    }
+
+    /** Work through everything currently in the queue.
+     * @return the number of files deleted
+     */
+    int drain() {
+        int deleted = 0;
+        ObjectId after = null;
+        while (true) {
+            List<Document> batch = queue()
+                .find(after == null ? Filters.lt("attempts", MAX_ATTEMPTS)
+                    : Filters.and(Filters.lt("attempts", MAX_ATTEMPTS), Filters.gt("_id", after)))
+                .sort(Sorts.ascending("_id"))
+                .limit(BATCH_SIZE)
+                .into(new ArrayList<>());
+            if (batch.isEmpty()) break;
+            after = batch.get(batch.size() - 1).getObjectId("_id");
+
+            List<ObjectId> done = new ArrayList<>(batch.size());
+            List<ObjectId> failed = new ArrayList<>();
+            List<Document> individually = batch;
+            try {
+                this.files.deleteMany(batch.stream().map(entry -> entry.getString("key")).collect(Collectors.toList()));
+                batch.forEach(entry -> done.add(entry.getObjectId("_id")));
+                deleted += batch.size();
+                individually = List.of();
+            } catch (RuntimeException e) {
+                // go through them one by one to find which are failing
+                LOGGER.warn("Unable to delete batch of files, retrying individually", e);
+            }
+            for (Document entry : individually) {
+                String key = entry.getString("key");
+                try {
+                    this.files.delete(key);
+                    done.add(entry.getObjectId("_id"));
+                    deleted++;
+                } catch (RuntimeException e) {
+                    if (entry.getInteger("attempts", 0) + 1 >= MAX_ATTEMPTS) {
+                        LOGGER.error("Giving up deleting {}", key, e);
+                        done.add(entry.getObjectId("_id"));
+                    } else {
+                        LOGGER.warn("Unable to delete {}, will retry", key, e);
+                        failed.add(entry.getObjectId("_id"));
+                    }
+                }
+            }
+
+            if (!done.isEmpty()) {
+                queue().deleteMany(Filters.in("_id", done));
+            }
+            if (!failed.isEmpty()) {
+                queue().updateMany(Filters.in("_id", failed), Updates.inc("attempts", 1));
+            }
+
+            if (batch.size() < BATCH_SIZE) break;
+        }
+
+        if (deleted > 0) {
+            LOGGER.info("Deleted {} queued files", deleted);
+        }
+        return deleted;
+    }
+}
@@ -0,0 +1,261 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.files;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.security.DigestInputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import com.fourservings.api.ContentHash;
+import com.fourservings.api.Repository;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** A binary file repository backed by a directory on the local filesystem.
+ * 
+ * Keys are expected to be in the form {ownerId}/{key} and are sharded by the
+ * first two characters of the owner to keep directory sizes reasonable:
+ * <pre>
+ * {root}/5f/5f3a...e1/6245...9c        file data
+ * {root}/5f/5f3a...e1/6245...9c.meta   metadata, as java properties
+ * </pre>
+ * The two files can't be replaced together atomically, so the metadata
+ * records which data file it was written for, and a pair caught mid-upsert
+ * is treated as missing rather than served with the wrong hash or length.
+ * Items are {@link Repository.LocalItem}s so they can be sent straight from
+ * the file without copying through the JVM.
+ */
+@Singleton
+public class FileSystemRepository implements Repository {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileSystemRepository.class);
+
+    static final String METADATA_SUFFIX = ".meta";
+    /** Identifies the data file the metadata belongs to; never returned */
+    private static final String GENERATION_PROPERTY = "fs.generation";
+
+    private final Path root;
+
+    @Inject
+    public FileSystemRepository(@Named("FILE_REPOSITORY_DIR") String root) {
+        if (StringUtils.isBlank(root)) {
+            throw new IllegalArgumentException("FILE_REPOSITORY_DIR is required for the filesystem repository");
+        }
+        this.root = Paths.get(root).toAbsolutePath().normalize();
+
+        try {
+            Files.createDirectories(this.root);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to create " + this.root, e);
+        }
+    }
+
+    /** Resolve the data file for the given key, or null if the key is unusable
+     * (e.g. it tries to escape the root directory).
+     */
+    Path resolve(String key) {
+        if (StringUtils.isBlank(key)) return null;
+
+        for (String segment : key.split("/")) {
+            if (segment.isEmpty() || segment.equals(".") || segment.equals("..") 
+                    || segment.endsWith(METADATA_SUFFIX)) {
+                return null;
+            }
+        }
+
+        String shard = key.length() > 2 ? key.substring(0, 2) : "_";
+        Path path = this.root.resolve(shard).resolve(key).normalize();
+        return path.startsWith(this.root) ? path : null;
+    }
+
+    private static Path metadataPath(Path data) {
+        return data.resolveSibling(data.getFileName() + METADATA_SUFFIX);
+    }
+
+    /** Something that changes whenever the data file is replaced.  Moving a
+     * file keeps its inode and modification time, so the temporary file's
+     * generation matches the one moved into place.
+     */
+    private static String generation(Path data) throws IOException {
+        return generation(Files.readAttributes(data, BasicFileAttributes.class));
+    }
+
+    private static String generation(BasicFileAttributes attributes) {
+        Object fileKey = attributes.fileKey();
+        return fileKey != null
+            ? fileKey.toString()
+            : attributes.size() + "@" + attributes.lastModifiedTime().toMillis();
+    }
+
+    public Item get(String key) {
+        Path data = resolve(key);
+        if (data == null || !Files.isRegularFile(data)) return null;
+
+        try {
+            Map<String, String> metadata = new HashMap<>();
+            Properties stored = new Properties();
+            try (InputStream in = Files.newInputStream(metadataPath(data))) {
+                stored.load(in);
+            } catch (NoSuchFileException e) {
+                // no metadata is fine
+            }
+
+            BasicFileAttributes attributes = Files.readAttributes(data, BasicFileAttributes.class);
+            String generation = generation(attributes);
+            String written = (String)stored.remove(GENERATION_PROPERTY);
+            if (written != null && !written.equals(generation)) {
+                LOGGER.debug("Metadata for {} doesn't match its data, an upsert must be in progress", key);
+                return null;
+            }
+
+            stored.forEach((name, value) -> metadata.put(name.toString(), value.toString()));
+            metadata.put(Repository.METADATA_CONTENT_LENGTH, Long.toString(attributes.size()));
+
+            return new FileItem(key, data, generation, metadata);
+        } catch (NoSuchFileException e) {
+            // deleted out from under us
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read " + key, e);
+        }
+    }
+
+    public void upsert(String key, InputStream data, Map<String, String> metadata) throws IOException {
+        Path path = resolve(key);
+        if (path == null) throw new IllegalArgumentException("Invalid key: " + key);
+
+        LOGGER.info("Saving {} to {}", key, path);
+
+        Files.createDirectories(path.getParent());
+
+        // Write to temporary files and move them into place so readers never
+        // see a partially written file.
+        Path tmpData = Files.createTempFile(path.getParent(), ".upload", ".tmp");
+        Path tmpMetadata = Files.createTempFile(path.getParent(), ".upload", ".tmp");
+        try {
+            DigestInputStream digesting = ContentHash.digesting(data);
+            Files.copy(digesting, tmpData, StandardCopyOption.REPLACE_EXISTING);
+
+            Properties stored = new Properties();
+            stored.putAll(metadata);
+            stored.put(Repository.METADATA_CONTENT_HASH, ContentHash.of(digesting));
+            stored.put(GENERATION_PROPERTY, generation(tmpData));
+            try (OutputStream out = Files.newOutputStream(tmpMetadata)) {
+                stored.store(out, null);
+            }
+
+            // Until the metadata follows, readers see the new data with the old
+            // metadata's generation and treat it as missing.
+            Files.move(tmpData, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(tmpMetadata, metadataPath(path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpData);
+            Files.deleteIfExists(tmpMetadata);
+        }
+    }
+
+    public void delete(String key) {
+        Path path = resolve(key);
+        if (path == null) return;
+
+        try {
+            Files.deleteIfExists(path);
+            Files.deleteIfExists(metadataPath(path));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to delete " + key, e);
+        }
+    }
+
+    public Stream<String> keys() {
+        try {
+            return Files.walk(this.root)
+                .filter(path -> !path.getFileName().toString().endsWith(METADATA_SUFFIX))
+                .filter(path -> !path.getFileName().toString().startsWith(".upload")) // in progress
+                .filter(Files::isRegularFile)
+                .map(path -> this.root.relativize(path))
+                .filter(relative -> relative.getNameCount() > 1)
+                .map(relative -> relative.subpath(1, relative.getNameCount())) // drop the shard
+                .map(relative -> StreamSupport.stream(relative.spliterator(), false)
+                    .map(Path::toString)
+                    .collect(Collectors.joining("/")));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to list " + this.root, e);
+        }
+    }
+
+    private static class FileItem implements LocalItem {
+        private final String key;
+        private final Path path;
+        private final String generation;
+        private final Map<String, String> metadata;
+
+        private FileItem(String key, Path path, String generation, Map<String, String> metadata) {
+            this.key = key;
+            this.path = path;
+            this.generation = generation;
+            this.metadata = Collections.unmodifiableMap(metadata);
+        }
+
+        public String key() { return this.key; }
+        public Map<String, String> metadata() { return this.metadata; }
+
+        public FileChannel openChannel() throws IOException {
+            FileChannel channel = FileChannel.open(this.path, StandardOpenOption.READ);
+            try {
+                // Checked after opening: if the path still has the file we read
+                // the metadata from, that's the one we opened.
+                if (generation(this.path).equals(this.generation)) return channel;
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            channel.close();
+            throw new NoSuchFileException(this.path.toString(), null, "replaced since it was read");
+        }
+
+        public InputStream openStream() {
+            try {
+                return Files.newInputStream(this.path);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to read " + this.key, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.files;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import com.fourservings.api.Repository;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Normalizes uploaded images before they're stored: turned the right way
+ * up, capped to IMAGE_INGEST_MAX_DIMENSION on their longer side, and
+ * re-encoded without any of the original's metadata (camera details, GPS
+ * location, thumbnails).  JPEGs are encoded at IMAGE_INGEST_QUALITY, stepping
+ * down as far as {@link #MIN_QUALITY} to get under IMAGE_INGEST_MAX_KB.
+ *
+ * The image has to be decoded as a whole, so unlike other uploads it's held
+ * in memory; large images are subsampled as they're decoded to limit that.
+ * Anything that can't be decoded is stored as it was uploaded.
+ */
+@Singleton
+public class ImageIngest {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImageIngest.class);
+
+    /** Size in bytes of the file as it was uploaded, when it was re-encoded */
+    public static final String METADATA_ORIGINAL_LENGTH = "Original-Length";
+
+    static final float MIN_QUALITY = 0.5f;
+    private static final float QUALITY_STEP = 0.1f;
+
+    private final boolean enabled;
+    private final int maxDimension;
+    private final float quality;
+    private final long maxBytes;
+
+    /**
+     * @param enabled      Whether to re-encode uploaded images at all
+     * @param maxDimension Longest side, in pixels, of a stored image
+     * @param quality      JPEG quality to encode at, 0-1
+     * @param maxKilobytes Size JPEGs are brought under by lowering the quality, 0 for no limit
+     */
+    @Inject
+    public ImageIngest(@Named("IMAGE_INGEST") String enabled,
+            @Named("IMAGE_INGEST_MAX_DIMENSION") String maxDimension,
+            @Named("IMAGE_INGEST_QUALITY") String quality,
+            @Named("IMAGE_INGEST_MAX_KB") String maxKilobytes) {
+        this.enabled = Boolean.parseBoolean(enabled);
+        this.maxDimension = Math.max(1, NumberUtils.toInt(maxDimension, 2560));
+        this.quality = Math.min(1f, Math.max(MIN_QUALITY, NumberUtils.toFloat(quality, 0.85f)));
+        this.maxBytes = Math.max(0, NumberUtils.toLong(maxKilobytes, 1024)) * 1024;
+    }
+
+    /** Store an uploaded file, normalizing it first if it's an image.
+     * @param metadata Must include the mime type
+     */
+    public void store(Repository files, String key, InputStream data, Map<String, String> metadata) throws IOException {
+        String mimeType = metadata.get(Repository.METADATA_MIME_TYPE);
+        if (!this.enabled || !Images.isSupported(mimeType)) {
+            files.upsert(key, data, metadata);
+            return;
+        }
+
+        byte[] original = data.readAllBytes();
+        byte[] stored = null;
+        try {
+            stored = normalize(original, mimeType);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Unable to re-encode {}, storing it as uploaded", key, e);
+        }
+
+        if (stored == null) {
+            files.upsert(key, new ByteArrayInputStream(original), metadata);
+            return;
+        }
+
+        LOGGER.info("Re-encoded {} from {} to {} bytes", key, original.length, stored.length);
+        Map<String, String> normalized = new HashMap<>(metadata);
+        normalized.put(METADATA_ORIGINAL_LENGTH, Integer.toString(original.length));
+        files.upsert(key, new ByteArrayInputStream(stored), normalized);
+    }
+
+    /** Re-encode the image.
+     * @return null if it's better stored as it is
+     */
+    byte[] normalize(byte[] original, String mimeType) throws IOException {
+        int orientation = Images.MIME_JPEG.equals(mimeType) ? Images.exifOrientation(original) : 1;
+        BufferedImage image = Images.read(new ByteArrayInputStream(original), this.maxDimension, this.maxDimension);
+        if (image == null) return null;
+
+        boolean transformed = orientation != 1 || Math.max(image.getWidth(), image.getHeight()) > this.maxDimension;
+        image = Images.scaleToFit(Images.orient(image, orientation), this.maxDimension);
+
+        if (Images.MIME_PNG.equals(mimeType)) {
+            // Lossless, so quality doesn't come into it.  Our encoder often
+            // compresses worse than whatever made the original, so unless it
+            // had to change, keep the original's pixels with its metadata
+            // (which can carry the same EXIF GPS tags as a JPEG) taken out.
+            byte[] encoded = encode(image, mimeType, 1f);
+            byte[] stripped = transformed ? null : Images.withoutPngMetadata(original);
+            return stripped == null || encoded.length < stripped.length ? encoded : stripped;
+        }
+
+        byte[] encoded = encode(image, mimeType, this.quality);
+        for (float q = this.quality - QUALITY_STEP; this.maxBytes > 0 && encoded.length > this.maxBytes && q >= MIN_QUALITY - 0.001f; q -= QUALITY_STEP) {
+            encoded = encode(image, mimeType, q);
+        }
+        return encoded;
+    }
+
+    private static byte[] encode(BufferedImage image, String mimeType, float quality) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Images.write(image, mimeType, quality, out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,84 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.files;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import com.fourservings.api.Repository;
+
+/** Keeps image variants in step with their originals: variants are generated
+ * whenever an image is stored and removed along with it.
+ * @see ImageVariants
+ */
+public class ImageVariantRepository implements Repository {
+    private final Repository delegate;
+    private final ImageVariants variants;
+
+    public ImageVariantRepository(Repository delegate, ImageVariants variants) {
+        this.delegate = delegate;
+        this.variants = variants;
+    }
+
+    public Item get(String key) {
+        return this.delegate.get(key);
+    }
+
+    public Item head(String key) {
+        return this.delegate.head(key);
+    }
+
+    public void upsert(String key, InputStream data, Map<String, String> metadata) throws IOException {
+        this.delegate.upsert(key, data, metadata);
+
+        if (Images.isSupported(metadata.get(Repository.METADATA_MIME_TYPE))) {
+            this.variants.generate(this.delegate, key);
+        }
+    }
+
+    public boolean copy(String from, String to) throws IOException {
+        if (!this.delegate.copy(from, to)) return false;
+
+        // Carry over whichever variants have been generated so far
+        List<String> fromVariants = this.variants.variantKeys(from);
+        List<String> toVariants = this.variants.variantKeys(to);
+        for (int i = 0; i < fromVariants.size(); i++) {
+            this.delegate.copy(fromVariants.get(i), toVariants.get(i));
+        }
+        return true;
+    }
+
+    public Stream<String> keys() {
+        return this.delegate.keys();
+    }
+
+    public void delete(String key) {
+        deleteMany(List.of(key));
+    }
+
+    public void deleteMany(Collection<String> keys) {
+        List<String> all = new ArrayList<>(keys);
+        keys.forEach(key -> all.addAll(this.variants.variantKeys(key)));
+        this.delegate.deleteMany(all);
+    }
+}
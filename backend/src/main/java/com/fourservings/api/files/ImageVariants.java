@@ -0,0 +1,188 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.files;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import com.fourservings.api.Repository;
+import com.fourservings.api.Repository.Item;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Produces and locates downsized variants of uploaded images, e.g. thumbnails
+ * for the recipe list.  Variants are generated in the background after upload
+ * on a small, bounded pool; until a variant exists the original is used.
+ * 
+ * A variant of "{key}" at width W is stored under "{key}@W".  Where the
+ * image is no wider than W the original is copied there as is, so every
+ * variant URL ends up served from a variant that will never change.
+ */
+@Singleton
+public class ImageVariants {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImageVariants.class);
+
+    static final float QUALITY = 0.82f;
+    /** Enough of a JPEG to find its EXIF orientation in, which comes before the image data */
+    private static final int EXIF_BYTES = 128 * 1024;
+    private static final int QUEUE_SIZE = 200;
+
+    private final int[] widths;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * @param widths  Comma separated list of variant widths, blank to disable
+     * @param threads Number of background threads used to generate variants
+     */
+    @Inject
+    public ImageVariants(@Named("IMAGE_VARIANT_WIDTHS") String widths, @Named("IMAGE_VARIANT_THREADS") String threads) {
+        this.widths = Arrays.stream(StringUtils.defaultString(widths).split(","))
+            .map(String::trim)
+            .filter(NumberUtils::isDigits)
+            .mapToInt(Integer::parseInt)
+            .filter(width -> width > 0)
+            .sorted()
+            .distinct()
+            .toArray();
+
+        int poolSize = Math.max(1, NumberUtils.toInt(threads, 1));
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(poolSize, poolSize, 
+            0, TimeUnit.SECONDS, new ArrayBlockingQueue<>(QUEUE_SIZE),
+            runnable -> {
+                Thread thread = new Thread(runnable, "image-variants-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            },
+            (runnable, executor) -> LOGGER.warn("Image variant queue is full, skipping variants"));
+    }
+
+    public boolean isEnabled() {
+        return this.widths.length > 0;
+    }
+
+    public static String variantKey(String key, int width) {
+        return key + "@" + width;
+    }
+
+    /** All the variant keys that may exist for the original key.
+     */
+    public List<String> variantKeys(String key) {
+        List<String> keys = new ArrayList<>(this.widths.length);
+        for (int width : this.widths) {
+            keys.add(variantKey(key, width));
+        }
+        return keys;
+    }
+
+    /** The key of the smallest variant at least as wide as requested, or the
+     * original key when no variant is big enough.
+     */
+    public String keyFor(String key, int width) {
+        for (int candidate : this.widths) {
+            if (candidate >= width) return variantKey(key, candidate);
+        }
+        return key;
+    }
+
+    /** Queue up variant generation for a freshly stored image.
+     */
+    public void generate(Repository repository, String key) {
+        if (!isEnabled()) return;
+
+        this.executor.execute(() -> {
+            try {
+                generateNow(repository, key);
+            } catch (Exception e) {
+                LOGGER.warn("Unable to generate image variants for {}", key, e);
+            }
+        });
+    }
+
+    void generateNow(Repository repository, String key) throws IOException {
+        Item original = repository.get(key);
+        if (original == null) return; // deleted in the meantime
+
+        String mimeType = original.metadata().get(Repository.METADATA_MIME_TYPE);
+        if (!Images.isSupported(mimeType)) return;
+
+        BufferedImage image;
+        try (InputStream in = new BufferedInputStream(original.openStream(), EXIF_BYTES)) {
+            // Phone photos are stored as the sensor saw them, and the variants
+            // don't keep the EXIF that says how to turn them.
+            int orientation = 1;
+            if (Images.MIME_JPEG.equals(mimeType)) {
+                in.mark(EXIF_BYTES);
+                orientation = Images.exifOrientation(in.readNBytes(EXIF_BYTES));
+                in.reset();
+            }
+
+            // only as much of it as the widest variant needs, which is its
+            // height as stored when it's on its side
+            int widest = this.widths[this.widths.length - 1];
+            image = orientation >= 5
+                ? Images.read(in, Integer.MAX_VALUE, widest)
+                : Images.read(in, widest, Integer.MAX_VALUE);
+            if (image == null) {
+                LOGGER.debug("{} is not a readable image", key);
+                return;
+            }
+            image = Images.orient(image, orientation);
+        }
+
+        // Work down from the largest so each step scales an already smaller image
+        BufferedImage source = image;
+        for (int i = this.widths.length - 1; i >= 0; i--) {
+            int width = this.widths[i];
+            if (width >= image.getWidth()) {
+                // the original is small enough, and shared rather than copied
+                // by repositories that can
+                repository.copy(key, variantKey(key, width));
+                continue;
+            }
+
+            source = Images.scaleToWidth(source, width);
+
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            Images.write(source, mimeType, QUALITY, bout);
+            repository.upsert(variantKey(key, width), 
+                new ByteArrayInputStream(bout.toByteArray()), 
+                Map.of(Repository.METADATA_MIME_TYPE, mimeType));
+        }
+    }
+}
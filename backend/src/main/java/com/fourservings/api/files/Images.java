@@ -0,0 +1,283 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.files;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Set;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/** Image manipulation helpers built on the JDK's ImageIO and Java2D.
+ */
+public class Images {
+    public static final String MIME_JPEG = "image/jpeg";
+    public static final String MIME_PNG = "image/png";
+
+    /** The most pixels we'll decode, whatever the subsampling, as decoding
+     * takes time in proportion even when it doesn't take memory.  The
+     * largest phone cameras take 200 megapixel photos.
+     */
+    static final long MAX_PIXELS = 250_000_000L;
+
+    /** PNG chunks that say how to display the image rather than describe it */
+    private static final Set<String> PNG_DISPLAY_CHUNKS = Set.of(
+        "tRNS", "gAMA", "cHRM", "sRGB", "iCCP", "sBIT", "bKGD", "pHYs");
+
+    /** Whether we're able to read and write images of the given mime type.
+     */
+    public static boolean isSupported(String mimeType) {
+        return MIME_JPEG.equals(mimeType) || MIME_PNG.equals(mimeType);
+    }
+
+    /** Decode an image that's about to be scaled to fit within the given
+     * width and height.  Its size is read from the header first, and anything
+     * over {@link #MAX_PIXELS} refused.  Where it's over twice the size we
+     * need, every nth pixel is decoded so a huge image doesn't need hundreds
+     * of MB of heap; scaling takes care of the rest.
+     * @return null if it isn't an image ImageIO can read
+     * @throws IOException if it can't be read, or is too large
+     */
+    public static BufferedImage read(InputStream data, int maxWidth, int maxHeight) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(data)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) return null;
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                if ((long) width * height > MAX_PIXELS) {
+                    throw new IOException("Image too large to decode: " + width + "x" + height);
+                }
+                int subsampling = (int) Math.max(width / (2L * maxWidth), height / (2L * maxHeight));
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (subsampling > 1) {
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                }
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /** Scale the image down so it's no wider than the given width, keeping the
+     * aspect ratio.  Large reductions are done in halving steps, which looks far
+     * better than a single bilinear pass.
+     */
+    public static BufferedImage scaleToWidth(BufferedImage image, int width) {
+        if (image.getWidth() <= width) return image;
+
+        int targetHeight = Math.max(1, (int) Math.round((double) image.getHeight() * width / image.getWidth()));
+        int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+
+        BufferedImage scaled = image;
+        int w = image.getWidth();
+        int h = image.getHeight();
+        do {
+            w = Math.max(width, w / 2);
+            h = w == width ? targetHeight : Math.max(targetHeight, h / 2);
+
+            BufferedImage step = new BufferedImage(w, h, type);
+            Graphics2D g = step.createGraphics();
+            try {
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                g.drawImage(scaled, 0, 0, w, h, null);
+            } finally {
+                g.dispose();
+            }
+            scaled = step;
+        } while (w > width);
+
+        return scaled;
+    }
+
+    /** Scale the image down so neither side is longer than the given size.
+     */
+    public static BufferedImage scaleToFit(BufferedImage image, int maxDimension) {
+        if (image.getWidth() >= image.getHeight()) {
+            return scaleToWidth(image, maxDimension);
+        }
+        if (image.getHeight() <= maxDimension) return image;
+
+        int width = Math.max(1, (int) Math.round((double) image.getWidth() * maxDimension / image.getHeight()));
+        return scaleToWidth(image, width);
+    }
+
+    /** The EXIF orientation (1-8) of JPEG data, or 1 (as stored) if it has
+     * none.  Cameras save photos as the sensor saw them, and record how they
+     * should be turned for display here.
+     */
+    public static int exifOrientation(byte[] jpeg) {
+        try {
+            ByteBuffer data = ByteBuffer.wrap(jpeg);
+            if (data.getShort() != (short) 0xFFD8) return 1;
+
+            while (data.remaining() > 4) {
+                int marker = data.getShort() & 0xFFFF;
+                int length = data.getShort() & 0xFFFF;
+                if (marker == 0xFFDA || length < 2) return 1; // image data, no more metadata
+                int next = data.position() + length - 2;
+
+                if (marker == 0xFFE1 && length > 16 && data.getInt() == 0x45786966 && data.getShort() == 0) { // Exif\0\0
+                    ByteBuffer tiff = data.slice();
+                    tiff.order(tiff.getShort() == 0x4949 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+                    tiff.position(4);
+                    tiff.position(tiff.getInt());
+                    int entries = tiff.getShort() & 0xFFFF;
+                    for (int i = 0; i < entries; i++) {
+                        int entry = tiff.position();
+                        if ((tiff.getShort() & 0xFFFF) == 0x0112) {
+                            tiff.position(entry + 8);
+                            int orientation = tiff.getShort();
+                            return orientation >= 1 && orientation <= 8 ? orientation : 1;
+                        }
+                        tiff.position(entry + 12);
+                    }
+                    return 1;
+                }
+                data.position(next);
+            }
+        } catch (RuntimeException e) {
+            // truncated or malformed, treat it as having none
+        }
+        return 1;
+    }
+
+    /** The PNG without its metadata chunks (eXIf, tEXt, iTXt, zTXt, tIME and
+     * the like), keeping the image data as compressed and anything needed to
+     * display it the same.
+     * @return null if it isn't a well formed PNG
+     */
+    public static byte[] withoutPngMetadata(byte[] png) {
+        try {
+            ByteBuffer data = ByteBuffer.wrap(png);
+            if (data.getLong() != 0x89504E470D0A1A0AL) return null;
+
+            ByteArrayOutputStream kept = new ByteArrayOutputStream(png.length);
+            kept.write(png, 0, 8);
+            while (data.hasRemaining()) {
+                int start = data.position();
+                int length = data.getInt();
+                byte[] type = new byte[4];
+                data.get(type);
+                data.position(Math.addExact(data.position(), Math.addExact(length, 4))); // data and CRC
+
+                String name = new String(type, StandardCharsets.US_ASCII);
+                // critical chunks are the ones starting with an upper case letter
+                if (Character.isUpperCase(name.charAt(0)) || PNG_DISPLAY_CHUNKS.contains(name)) {
+                    kept.write(png, start, data.position() - start);
+                }
+                if (name.equals("IEND")) return kept.toByteArray();
+            }
+        } catch (RuntimeException e) {
+            // truncated or malformed
+        }
+        return null;
+    }
+
+    /** Turn the image as described by its EXIF orientation so it's the right
+     * way up.
+     */
+    public static BufferedImage orient(BufferedImage image, int orientation) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+
+        AffineTransform transform;
+        switch (orientation) {
+            case 2: transform = new AffineTransform(-1, 0, 0, 1, w, 0); break; // mirrored
+            case 3: transform = new AffineTransform(-1, 0, 0, -1, w, h); break; // upside down
+            case 4: transform = new AffineTransform(1, 0, 0, -1, 0, h); break; // upside down, mirrored
+            case 5: transform = new AffineTransform(0, 1, 1, 0, 0, 0); break; // on its side, mirrored
+            case 6: transform = new AffineTransform(0, 1, -1, 0, h, 0); break; // on its side
+            case 7: transform = new AffineTransform(0, -1, -1, 0, h, w); break; // on its other side, mirrored
+            case 8: transform = new AffineTransform(0, -1, 1, 0, 0, w); break; // on its other side
+            default: return image;
+        }
+
+        boolean swap = orientation >= 5;
+        int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage oriented = new BufferedImage(swap ? h : w, swap ? w : h, type);
+        Graphics2D g = oriented.createGraphics();
+        try {
+            g.drawImage(image, transform, null);
+        } finally {
+            g.dispose();
+        }
+        return oriented;
+    }
+
+    /** Encode the image.  JPEG images are written at the given quality (0-1),
+     * PNG images ignore it.  No metadata is written.
+     */
+    public static void write(BufferedImage image, String mimeType, float quality, OutputStream out) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByMIMEType(mimeType);
+        if (!writers.hasNext()) throw new IOException("No image writer for " + mimeType);
+        ImageWriter writer = writers.next();
+
+        if (MIME_JPEG.equals(mimeType) && image.getColorModel().hasAlpha()) {
+            image = withoutAlpha(image);
+        }
+
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (MIME_JPEG.equals(mimeType)) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+        }
+
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private static BufferedImage withoutAlpha(BufferedImage image) {
+        BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = rgb.createGraphics();
+        try {
+            g.drawImage(image, 0, 0, Color.WHITE, null);
+        } finally {
+            g.dispose();
+        }
+        return rgb;
+    }
+}
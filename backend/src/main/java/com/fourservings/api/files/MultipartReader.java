@@ -0,0 +1,233 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.files;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.commons.lang3.StringUtils;
+
+/** Reads a multipart/form-data body one part at a time, straight off the
+ * wire.  Nothing is buffered beyond a small window used to spot the
+ * boundary, so a part's body can be streamed wherever it's going as it
+ * arrives.
+ *
+ * Each part's body must be read (or abandoned) before moving on to the next.
+ */
+class MultipartReader {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_HEADER_BYTES = 8 * 1024;
+
+    private final InputStream in;
+    // The delimiter preceding every part is CRLF--boundary.  The body is
+    // treated as starting with a CRLF so the first one matches too.
+    private final byte[] delimiter;
+    private final byte[] buffer;
+    private int pos;
+    private int limit;
+    private boolean eof;
+    // the delimiter doesn't start anywhere before this
+    private int searched;
+
+    private PartInputStream current;
+    private boolean finished;
+
+    MultipartReader(InputStream in, String boundary) {
+        if (StringUtils.isEmpty(boundary) || boundary.length() > 70) {
+            throw new IllegalArgumentException("Invalid multipart boundary");
+        }
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        this.buffer = new byte[BUFFER_SIZE + this.delimiter.length];
+        this.buffer[0] = '\r';
+        this.buffer[1] = '\n';
+        this.limit = 2;
+    }
+
+    /** Advance to the next part, skipping whatever's left of the current one.
+     * @return null once there are no more parts
+     */
+    public Part next() throws IOException {
+        if (this.finished) return null;
+
+        if (this.current == null) {
+            // skip the preamble
+            new PartInputStream().transferTo(NullOutputStream.NULL_OUTPUT_STREAM);
+        } else {
+            this.current.transferTo(NullOutputStream.NULL_OUTPUT_STREAM);
+        }
+
+        // After a delimiter comes "--" at the very end, or CRLF and a part
+        if (!ensure(2)) throw new IOException("Unexpected end of multipart body");
+        if (this.buffer[this.pos] == '-' && this.buffer[this.pos + 1] == '-') {
+            this.finished = true;
+            return null;
+        }
+        skipLine();
+
+        Map<String, String> headers = readHeaders();
+        this.current = new PartInputStream();
+        return new Part(headers, this.current);
+    }
+
+    /** Make sure at least count bytes are buffered.
+     * @return false if the stream ended first
+     */
+    private boolean ensure(int count) throws IOException {
+        while (this.limit - this.pos < count) {
+            if (this.eof) return false;
+            if (this.pos > 0) {
+                System.arraycopy(this.buffer, this.pos, this.buffer, 0, this.limit - this.pos);
+                this.limit -= this.pos;
+                this.searched = Math.max(0, this.searched - this.pos);
+                this.pos = 0;
+            }
+            int read = this.in.read(this.buffer, this.limit, this.buffer.length - this.limit);
+            if (read < 0) {
+                this.eof = true;
+            } else {
+                this.limit += read;
+            }
+        }
+        return true;
+    }
+
+    private String readLine(int maxBytes) throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            if (!ensure(1)) throw new IOException("Unexpected end of multipart headers");
+            byte b = this.buffer[this.pos++];
+            if (b == '\n') break;
+            if (b != '\r') line.append((char) (b & 0xff));
+            if (line.length() > maxBytes) throw new IOException("Multipart headers too long");
+        }
+        return line.toString();
+    }
+
+    private void skipLine() throws IOException {
+        // transport padding is allowed between the boundary and the CRLF
+        readLine(MAX_HEADER_BYTES);
+    }
+
+    private Map<String, String> readHeaders() throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        int remaining = MAX_HEADER_BYTES;
+        while (true) {
+            String line = readLine(remaining);
+            remaining -= line.length();
+            if (line.isEmpty()) return headers;
+
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                // headers are UTF-8 in practice, e.g. for file names
+                String value = new String(line.substring(colon + 1).trim().getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+                headers.put(line.substring(0, colon).trim().toLowerCase(), value);
+            }
+        }
+    }
+
+    /** Index of the delimiter in the buffer, or -1 */
+    private int findDelimiter() {
+        int last = this.limit - this.delimiter.length;
+        outer:
+        for (int i = Math.max(this.pos, this.searched); i <= last; i++) {
+            for (int j = 0; j < this.delimiter.length; j++) {
+                if (this.buffer[i + j] != this.delimiter[j]) continue outer;
+            }
+            return i;
+        }
+        this.searched = Math.max(this.searched, last + 1);
+        return -1;
+    }
+
+    public static class Part {
+        private final Map<String, String> headers;
+        private final InputStream body;
+
+        private Part(Map<String, String> headers, InputStream body) {
+            this.headers = headers;
+            this.body = body;
+        }
+
+        /** Header value by lower case name */
+        public String header(String name) { return this.headers.get(name); }
+        public InputStream body() { return this.body; }
+
+        /** The form field name, from the Content-Disposition */
+        public String name() {
+            return dispositionParameter("name");
+        }
+
+        private String dispositionParameter(String parameter) {
+            for (String param : StringUtils.split(StringUtils.defaultString(header("content-disposition")), ';')) {
+                String[] pair = param.trim().split("=", 2);
+                if (pair.length == 2 && pair[0].trim().equalsIgnoreCase(parameter)) {
+                    return StringUtils.unwrap(pair[1].trim(), '"');
+                }
+            }
+            return null;
+        }
+    }
+
+    /** A part's body: everything up to the next delimiter.
+     */
+    private class PartInputStream extends InputStream {
+        private boolean ended;
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int read = read(one, 0, 1);
+            return read < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (this.ended) return -1;
+            if (len == 0) return 0;
+
+            while (true) {
+                int found = findDelimiter();
+                if (found == MultipartReader.this.pos) {
+                    MultipartReader.this.pos += MultipartReader.this.delimiter.length;
+                    this.ended = true;
+                    return -1;
+                }
+
+                // Anything that can't be the start of the delimiter is body
+                int available = found >= 0
+                    ? found - MultipartReader.this.pos
+                    : MultipartReader.this.limit - MultipartReader.this.pos - (MultipartReader.this.delimiter.length - 1);
+                if (available > 0) {
+                    int count = Math.min(available, len);
+                    System.arraycopy(MultipartReader.this.buffer, MultipartReader.this.pos, b, off, count);
+                    MultipartReader.this.pos += count;
+                    return count;
+                }
+
+                int buffered = MultipartReader.this.limit - MultipartReader.this.pos;
+                if (!ensure(buffered + 1)) throw new IOException("Unexpected end of multipart body");
+            }
+        }
+    }
+
+}
@@ -0,0 +1,92 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.files;
+
+import java.nio.ByteBuffer;
+
+import org.bson.types.ObjectId;
+
+/** A set of ObjectIds stored in flat primitive arrays, for when there are
+ * far too many to hold as objects.  Each id costs about 16 to 32 bytes,
+ * rather than around 80 in a HashSet.
+ */
+class ObjectIdSet {
+    private static final float LOAD_FACTOR = 0.75f;
+
+    // An ObjectId is split into its first 8 and last 4 bytes.  Timestamps are
+    // never 0, so a high part of 0 marks an empty slot.
+    private long[] high;
+    private int[] low;
+    private int size;
+
+    ObjectIdSet() {
+        this.high = new long[16];
+        this.low = new int[16];
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public void add(ObjectId id) {
+        ByteBuffer bytes = ByteBuffer.wrap(id.toByteArray());
+        if (insert(bytes.getLong(), bytes.getInt())) {
+            this.size++;
+            if (this.size > this.high.length * LOAD_FACTOR) grow();
+        }
+    }
+
+    public boolean contains(ObjectId id) {
+        ByteBuffer bytes = ByteBuffer.wrap(id.toByteArray());
+        long high = bytes.getLong();
+        int low = bytes.getInt();
+
+        int mask = this.high.length - 1;
+        for (int slot = hash(high, low) & mask; this.high[slot] != 0; slot = (slot + 1) & mask) {
+            if (this.high[slot] == high && this.low[slot] == low) return true;
+        }
+        return false;
+    }
+
+    private boolean insert(long high, int low) {
+        int mask = this.high.length - 1;
+        int slot = hash(high, low) & mask;
+        for (; this.high[slot] != 0; slot = (slot + 1) & mask) {
+            if (this.high[slot] == high && this.low[slot] == low) return false;
+        }
+        this.high[slot] = high;
+        this.low[slot] = low;
+        return true;
+    }
+
+    private void grow() {
+        long[] oldHigh = this.high;
+        int[] oldLow = this.low;
+        this.high = new long[oldHigh.length * 2];
+        this.low = new int[oldLow.length * 2];
+        for (int i = 0; i < oldHigh.length; i++) {
+            if (oldHigh[i] != 0) insert(oldHigh[i], oldLow[i]);
+        }
+    }
+
+    private static int hash(long high, int low) {
+        // the counter in the low bytes varies most, but mix in the rest too
+        int hash = Long.hashCode(high) * 31 + low;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,218 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.files;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import com.fourservings.api.RecipeManager;
+import com.fourservings.api.Repository;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Projections;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Finds uploaded files that no recipe refers to, e.g. photos uploaded
+ * while editing a recipe that was never saved, or files a failed delete
+ * left behind, and queues them for deletion.
+ *
+ * Each run marks every image referenced from the recipe collection, then
+ * sweeps the repository's keys.  Only keys minted by uploads
+ * ("{owner}/{ObjectId}", plus any "@width" variant) are considered, and
+ * only once they're older than the grace period, so uploads for recipes
+ * still being edited are left alone.  Both passes pause between batches so
+ * a run doesn't hog the database.
+ */
+@Singleton
+public class OrphanedFileCollector {
+    private static final Logger LOGGER = LoggerFactory.getLogger(OrphanedFileCollector.class);
+
+    static final int BATCH_SIZE = 500;
+
+    private final Provider<MongoDatabase> mongo;
+    private final Repository files;
+    private final FileDeletionQueue deletions;
+    private final long graceMillis;
+    private final long pauseMillis;
+
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong scanned = new AtomicLong();
+    private final AtomicLong orphaned = new AtomicLong();
+    private volatile long lastDurationMillis;
+
+    /**
+     * @param interval Hours between runs, 0 to disable
+     * @param grace    Hours an upload is left alone before it can be collected
+     * @param pause    Milliseconds to pause between batches
+     */
+    @Inject
+    public OrphanedFileCollector(Provider<MongoDatabase> mongo, Repository files, FileDeletionQueue deletions,
+            @Named("FILE_GC_INTERVAL_HOURS") String interval,
+            @Named("FILE_GC_GRACE_HOURS") String grace,
+            @Named("FILE_GC_PAUSE_MS") String pause) {
+        this.mongo = mongo;
+        this.files = files;
+        this.deletions = deletions;
+        this.graceMillis = TimeUnit.HOURS.toMillis(Math.max(1, NumberUtils.toLong(grace, 24)));
+        this.pauseMillis = Math.max(0, NumberUtils.toLong(pause, 100));
+
+        long hours = NumberUtils.toLong(interval, 0);
+        if (hours > 0) {
+            ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "orphaned-files");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+            executor.scheduleWithFixedDelay(this::collectSafely, hours, hours, TimeUnit.HOURS);
+        }
+    }
+
+    /** Number of completed runs */
+    public long getRuns() { return this.runs.get(); }
+    /** Total repository keys looked at, over all runs */
+    public long getScanned() { return this.scanned.get(); }
+    /** Total files queued for deletion, over all runs */
+    public long getOrphaned() { return this.orphaned.get(); }
+    public long getLastDurationMillis() { return this.lastDurationMillis; }
+
+    private void collectSafely() {
+        try {
+            collect();
+        } catch (UnsupportedOperationException e) {
+            LOGGER.warn("Not collecting orphaned files: {}", e.getMessage());
+        } catch (RuntimeException e) {
+            // Don't let it escape, or later runs would be cancelled
+            LOGGER.error("Unable to collect orphaned files", e);
+        }
+    }
+
+    /** Run a full mark and sweep.
+     * @return the number of files queued for deletion
+     */
+    public synchronized int collect() {
+        long started = System.currentTimeMillis();
+        // ObjectId timestamps are in seconds
+        long cutoff = (started - this.graceMillis) / 1000;
+
+        Map<ObjectId, ObjectIdSet> referenced = mark();
+        if (referenced == null) return 0;
+
+        int runScanned = 0;
+        int runOrphaned = 0;
+        List<String> orphans = new ArrayList<>();
+        try (Stream<String> keys = this.files.keys()) {
+            Iterator<String> it = keys.iterator();
+            while (it.hasNext()) {
+                String key = it.next();
+                if (isOrphan(key, referenced, cutoff)) {
+                    orphans.add(key);
+                    if (orphans.size() >= BATCH_SIZE) {
+                        this.deletions.enqueue(orphans);
+                        runOrphaned += orphans.size();
+                        orphans = new ArrayList<>();
+                    }
+                }
+                if (++runScanned % BATCH_SIZE == 0 && !pause()) break;
+            }
+        }
+        this.deletions.enqueue(orphans);
+        runOrphaned += orphans.size();
+
+        this.runs.incrementAndGet();
+        this.scanned.addAndGet(runScanned);
+        this.orphaned.addAndGet(runOrphaned);
+        this.lastDurationMillis = System.currentTimeMillis() - started;
+        LOGGER.info("Scanned {} files, queued {} orphaned files for deletion in {}ms",
+            runScanned, runOrphaned, this.lastDurationMillis);
+
+        return runOrphaned;
+    }
+
+    /** Collect the ids of every uploaded image recipes refer to, by owner.
+     * @return null if interrupted
+     */
+    private Map<ObjectId, ObjectIdSet> mark() {
+        Map<ObjectId, ObjectIdSet> referenced = new HashMap<>();
+        int count = 0;
+        try (MongoCursor<Document> recipes = this.mongo.get().getCollection(RecipeManager.COLLECTION_RECIPE)
+                .find()
+                .projection(Projections.include("ownerId", "images"))
+                .batchSize(BATCH_SIZE)
+                .cursor()) {
+            while (recipes.hasNext()) {
+                Document recipe = recipes.next();
+                ObjectId owner = recipe.getObjectId("ownerId");
+                for (String image : recipe.getList("images", String.class, List.of())) {
+                    if (image.startsWith("/") && ObjectId.isValid(image.substring(1))) {
+                        referenced.computeIfAbsent(owner, o -> new ObjectIdSet())
+                            .add(new ObjectId(image.substring(1)));
+                    }
+                }
+                if (++count % BATCH_SIZE == 0 && !pause()) return null;
+            }
+        }
+        return referenced;
+    }
+
+    static boolean isOrphan(String key, Map<ObjectId, ObjectIdSet> referenced, long cutoff) {
+        String owner = StringUtils.substringBefore(key, "/");
+        // variants go along with their original
+        String name = StringUtils.substringBefore(StringUtils.substringAfter(key, "/"), "@");
+        if (!ObjectId.isValid(owner) || !ObjectId.isValid(name)) return false; // not an upload
+
+        ObjectId id = new ObjectId(name);
+        if (id.getTimestamp() > cutoff) return false; // may not be saved into a recipe yet
+
+        ObjectIdSet ids = referenced.get(new ObjectId(owner));
+        return ids == null || !ids.contains(id);
+    }
+
+    /** Throttle between batches.
+     * @return false if interrupted, and the run should stop
+     */
+    private boolean pause() {
+        if (this.pauseMillis == 0) return true;
+        try {
+            Thread.sleep(this.pauseMillis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,347 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.files;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import com.fourservings.api.Repository;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** A read-through copy of another, typically remote, repository on local
+ * disk.  Items read are saved to a {@link FileSystemRepository} in the given
+ * directory and served from there, as {@link Repository.LocalItem}s, until
+ * they're evicted, least recently used first, to keep the directory under
+ * its byte budget.  Writes go straight through to the other repository.
+ *
+ * Every read checks the local copy's Content-Hash against the other
+ * repository's head for the key, so a copy that was replaced or deleted
+ * behind our back, e.g. through another app node or while we were down, is
+ * dropped rather than served.  That costs a metadata lookup per read, but
+ * the bytes still come from disk.
+ *
+ * The index of what's on disk is rebuilt from the directory on startup, with
+ * each file's modification time standing in for when it was last used, so
+ * a restart doesn't start from cold.
+ *
+ * Reads log how it's doing every so often, for sizing FILE_TIER_MB: hits,
+ * misses, copies found stale and evictions since startup.
+ */
+public class TieredRepository implements Repository {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TieredRepository.class);
+
+    // how stale a file's modification time can get before a read bumps it
+    private static final long TOUCH_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final long REPORT_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(15);
+
+    private final Repository delegate;
+    private final FileSystemRepository disk;
+    private final long maxBytes;
+    private final long maxItemBytes;
+
+    // all guarded by "this"
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final Map<String, Object> loading = new HashMap<>();
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long stale = 0;
+    private long reported = System.currentTimeMillis();
+
+    /**
+     * @param delegate  The repository being tiered
+     * @param directory Where to keep the local copies
+     * @param maxBytes  The total disk budget for local copies
+     */
+    public TieredRepository(Repository delegate, String directory, long maxBytes) {
+        this.delegate = delegate;
+        this.disk = new FileSystemRepository(directory);
+        this.maxBytes = maxBytes;
+        // don't let a single item push out more than an eighth of the tier
+        this.maxItemBytes = Math.max(1, maxBytes / 8);
+
+        rebuild();
+    }
+
+    synchronized long getHits() { return this.hits; }
+    synchronized long getMisses() { return this.misses; }
+    /** Number of local copies found to be out of date when read */
+    synchronized long getStale() { return this.stale; }
+    synchronized long getEvictions() { return this.evictions; }
+    synchronized int getSize() { return this.entries.size(); }
+    synchronized long getBytes() { return this.bytes; }
+
+    /** Index whatever's already in the directory, oldest first.
+     */
+    private synchronized void rebuild() {
+        List<Entry> found = new ArrayList<>();
+        try (Stream<String> keys = this.disk.keys()) {
+            keys.forEach(key -> {
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(this.disk.resolve(key), BasicFileAttributes.class);
+                    found.add(new Entry(key, attributes.size(), attributes.lastModifiedTime().toMillis()));
+                } catch (IOException e) {
+                    // gone already
+                }
+            });
+        }
+
+        found.sort(Comparator.comparingLong(entry -> entry.touched));
+        for (Entry entry : found) {
+            this.entries.put(entry.key, entry);
+            this.bytes += entry.size;
+        }
+        evict();
+
+        LOGGER.info("Found {} files, {} bytes, on local disk", this.entries.size(), this.bytes);
+    }
+
+    public Item get(String key) {
+        Item local = local(key);
+        if (local != null) {
+            Item remote = this.delegate.head(key);
+            if (remote != null && matches(local, remote)) {
+                synchronized (this) {
+                    this.hits++;
+                    report();
+                }
+                return local;
+            }
+
+            synchronized (this) {
+                this.stale++;
+            }
+            invalidate(key);
+            if (remote == null) return null;
+        }
+        synchronized (this) {
+            this.misses++;
+            report();
+        }
+
+        Object token = new Object();
+        synchronized (this) {
+            this.loading.put(key, token);
+        }
+
+        try {
+            Item item = this.delegate.get(key);
+            if (item == null) return null;
+
+            long length = NumberUtils.toLong(item.metadata().get(Repository.METADATA_CONTENT_LENGTH), -1);
+            if (length < 0 || length > this.maxItemBytes) return item;
+
+            Item saved = save(item, length, token);
+            return saved == null ? item : saved;
+        } finally {
+            synchronized (this) {
+                this.loading.remove(key, token);
+            }
+        }
+    }
+
+    /** Always answered by the other repository, as it would have to be
+     * asked anyway to check the local copy.
+     */
+    public Item head(String key) {
+        return this.delegate.head(key);
+    }
+
+    /** Whether the local copy is of what the other repository has now,
+     * going by the hash, or for items stored without one, the length.
+     */
+    private static boolean matches(Item local, Item remote) {
+        String hash = remote.metadata().get(Repository.METADATA_CONTENT_HASH);
+        if (hash != null) return hash.equals(local.metadata().get(Repository.METADATA_CONTENT_HASH));
+        return Objects.equals(remote.metadata().get(Repository.METADATA_CONTENT_LENGTH),
+            local.metadata().get(Repository.METADATA_CONTENT_LENGTH));
+    }
+
+    /** The local copy, if there is one, without checking it */
+    private Item local(String key) {
+        Entry entry;
+        synchronized (this) {
+            entry = this.entries.get(key);
+            if (entry == null) return null;
+        }
+
+        Item item = this.disk.get(key);
+        if (item == null) {
+            // removed from the directory behind our back
+            synchronized (this) {
+                if (this.entries.remove(key, entry)) this.bytes -= entry.size;
+            }
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - entry.touched > TOUCH_INTERVAL_MILLIS) {
+            entry.touched = now;
+            try {
+                Files.setLastModifiedTime(this.disk.resolve(key), FileTime.fromMillis(now));
+            } catch (IOException e) {
+                // only affects the order after a restart
+            }
+        }
+        return item;
+    }
+
+    /** Log the counters once per interval.  Must be called while holding the
+     * lock.
+     */
+    private void report() {
+        long now = System.currentTimeMillis();
+        if (now - this.reported < REPORT_INTERVAL_MILLIS) return;
+        this.reported = now;
+
+        long reads = this.hits + this.misses;
+        LOGGER.info("Local tier: {} hits, {} misses ({}% hit rate), {} stale, {} evictions, {} files, {} of {} bytes",
+            this.hits, this.misses, reads == 0 ? 0 : this.hits * 100 / reads, this.stale, this.evictions,
+            this.entries.size(), this.bytes, this.maxBytes);
+    }
+
+    /** Copy the item to disk and index it, unless the key was written to
+     * while copying.  Returns null when the item couldn't be saved.
+     */
+    private Item save(Item item, long length, Object token) {
+        try (InputStream in = item.openStream()) {
+            this.disk.upsert(item.key(), in, item.metadata());
+        } catch (IOException | UncheckedIOException e) {
+            LOGGER.warn("Unable to save {} to local disk", item.key(), e);
+            this.disk.delete(item.key());
+            return null;
+        }
+
+        synchronized (this) {
+            if (this.loading.get(item.key()) != token) {
+                // changed while we were copying, so what we have is stale
+                this.disk.delete(item.key());
+                return null;
+            }
+            Entry previous = this.entries.put(item.key(), new Entry(item.key(), length, System.currentTimeMillis()));
+            if (previous != null) this.bytes -= previous.size;
+            this.bytes += length;
+            evict();
+        }
+        return this.disk.get(item.key());
+    }
+
+    public void upsert(String key, InputStream data, Map<String, String> metadata) throws IOException {
+        invalidate(key);
+        try {
+            this.delegate.upsert(key, data, metadata);
+        } finally {
+            // catch anything copied while the write was in flight
+            invalidate(key);
+        }
+    }
+
+    public void delete(String key) {
+        invalidate(key);
+        try {
+            this.delegate.delete(key);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    public boolean copy(String from, String to) throws IOException {
+        invalidate(to);
+        try {
+            return this.delegate.copy(from, to);
+        } finally {
+            invalidate(to);
+        }
+    }
+
+    public void deleteMany(Collection<String> keys) {
+        keys.forEach(this::invalidate);
+        try {
+            this.delegate.deleteMany(keys);
+        } finally {
+            keys.forEach(this::invalidate);
+        }
+    }
+
+    public Stream<String> keys() {
+        return this.delegate.keys();
+    }
+
+    private synchronized void invalidate(String key) {
+        this.loading.remove(key);
+        Entry entry = this.entries.remove(key);
+        if (entry != null) {
+            this.bytes -= entry.size;
+            this.disk.delete(key);
+        }
+    }
+
+    /** Remove the least recently used files until we're within budget.  Must
+     * be called while holding the lock.  Anyone who has already opened an
+     * evicted file's channel keeps reading it, and the filesystem frees it once
+     * they're done.  Anyone holding an item they haven't opened yet gets a
+     * NoSuchFileException from {@link LocalItem#openChannel()} and looks it
+     * up again, which loads it from the other repository.
+     */
+    private void evict() {
+        Iterator<Entry> lru = this.entries.values().iterator();
+        while (this.bytes > this.maxBytes && lru.hasNext()) {
+            Entry evicted = lru.next();
+            lru.remove();
+            this.bytes -= evicted.size;
+            this.evictions++;
+            try {
+                this.disk.delete(evicted.key);
+            } catch (UncheckedIOException e) {
+                LOGGER.warn("Unable to evict {} from local disk", evicted.key, e);
+            }
+        }
+    }
+
+    private static class Entry {
+        private final String key;
+        private final long size;
+        // when the file was last used, as near as its modification time says
+        private volatile long touched;
+
+        private Entry(String key, long size, long touched) {
+            this.key = key;
+            this.size = size;
+            this.touched = touched;
+        }
+    }
+}
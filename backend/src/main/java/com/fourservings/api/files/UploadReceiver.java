@@ -0,0 +1,357 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.files;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.ClientErrorException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response.Status;
+
+import com.fourservings.api.Repository;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Stores the files in a multipart/form-data upload as they arrive.
+ *
+ * The body is parsed off the wire with a {@link MultipartReader}, and each
+ * "file" part is piped into its own {@link Repository#upsert} running on a
+ * shared pool, so one file is still being written while the next is read.
+ * The pool never queues: when every writer is busy the file is written on
+ * the request thread instead, so slow clients holding writers can't hold up
+ * anyone else's upload, and a writer whose client stalls gives up.
+ * At most a few chunks of each file are ever held in memory, other than
+ * images being re-encoded by the {@link ImageIngest}.
+ *
+ * Uploads are refused with a 413 as soon as a file or the whole request is
+ * known to be over its limit, and anything already stored for the request is
+ * queued for deletion.
+ */
+@Singleton
+public class UploadReceiver {
+    private static final Logger LOGGER = LoggerFactory.getLogger(UploadReceiver.class);
+
+    static final String FIELD = "file";
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int PIPE_CHUNKS = 4;
+    private static final long STALL_TIMEOUT_SECONDS = 60;
+
+    private final Repository files;
+    private final ImageIngest ingest;
+    private final FileDeletionQueue deletions;
+    private final long maxFileBytes;
+    private final long maxRequestBytes;
+    private final ExecutorService executor;
+
+    /**
+     * @param maxFileMegabytes    Largest file accepted
+     * @param maxRequestMegabytes Largest total of all the files in one upload
+     * @param threads             Number of files written alongside reading the
+     *  requests, over all uploads
+     */
+    @Inject
+    public UploadReceiver(Repository files, ImageIngest ingest, FileDeletionQueue deletions,
+            @Named("FILE_UPLOAD_MAX_MB") String maxFileMegabytes,
+            @Named("FILE_UPLOAD_REQUEST_MAX_MB") String maxRequestMegabytes,
+            @Named("FILE_UPLOAD_THREADS") String threads) {
+        this.files = files;
+        this.ingest = ingest;
+        this.deletions = deletions;
+        this.maxFileBytes = NumberUtils.toLong(maxFileMegabytes, 25) * 1024 * 1024;
+        this.maxRequestBytes = NumberUtils.toLong(maxRequestMegabytes, 100) * 1024 * 1024;
+
+        AtomicInteger count = new AtomicInteger();
+        int size = Math.max(1, NumberUtils.toInt(threads, 4));
+        this.executor = new ThreadPoolExecutor(size, size, 0, TimeUnit.MILLISECONDS, new SynchronousQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "upload-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** Store the files in the upload.
+     * @param owner         Keys are scoped to this owner
+     * @param type          The multipart/form-data content type, with its boundary
+     * @param body          The request body
+     * @param contentLength Length of the body, or -1 if unknown
+     * @return the public part of each stored file's key, in order
+     */
+    public List<String> receive(ObjectId owner, MediaType type, InputStream body, long contentLength) throws IOException {
+        String boundary = type == null ? null : type.getParameters().get("boundary");
+        if (StringUtils.isBlank(boundary)) throw new BadRequestException("Missing multipart boundary");
+        if (contentLength > this.maxRequestBytes) throw tooLarge("Upload");
+
+        MultipartReader reader;
+        try {
+            reader = new MultipartReader(body, boundary);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        }
+
+        List<String> publicKeys = new ArrayList<>();
+        List<Pipe> pipes = new ArrayList<>();
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        Limits limits = new Limits();
+        try {
+            for (MultipartReader.Part part = reader.next(); part != null; part = reader.next()) {
+                if (!FIELD.equals(part.name())) continue;
+
+                // Since we automatically tack on the ownerId to the key on GET, as far as
+                // the frontend knows, the ownerId part of the key doesn't exist.
+                String publicKey = new ObjectId().toHexString();
+                String key = owner.toHexString() + "/" + publicKey;
+                Map<String, String> metadata = new HashMap<>();
+                metadata.put(Repository.METADATA_MIME_TYPE,
+                    StringUtils.defaultIfBlank(part.header("content-type"), MediaType.APPLICATION_OCTET_STREAM));
+                InputStream in = limits.limit(part.body());
+                publicKeys.add(publicKey);
+
+                Pipe pipe = new Pipe();
+                CompletableFuture<Void> write;
+                try {
+                    write = CompletableFuture.runAsync(() -> {
+                        try (InputStream piped = pipe) {
+                            this.ingest.store(this.files, key, piped, metadata);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }, this.executor);
+                } catch (RejectedExecutionException e) {
+                    // every writer is busy, so write it ourselves rather than wait for one
+                    CompletableFuture<Void> written = new CompletableFuture<>();
+                    writes.add(written);
+                    try {
+                        this.ingest.store(this.files, key, in, metadata);
+                        written.complete(null);
+                    } catch (IOException | RuntimeException failure) {
+                        written.completeExceptionally(failure);
+                        throw failure;
+                    }
+                    continue;
+                }
+                pipes.add(pipe);
+                writes.add(write);
+
+                byte[] chunk = new byte[CHUNK_SIZE];
+                for (int read = in.read(chunk); read >= 0; read = in.read(chunk)) {
+                    pipe.write(chunk, read);
+                    if (read == chunk.length) chunk = new byte[CHUNK_SIZE]; // handed to the pipe as is
+                }
+                pipe.finish();
+            }
+
+            for (CompletableFuture<Void> write : writes) {
+                write.get();
+            }
+        } catch (ClientErrorException e) {
+            pipes.forEach(Pipe::abort);
+            cleanUp(owner, publicKeys, writes);
+            throw e;
+        } catch (IOException | RuntimeException | ExecutionException | InterruptedException e) {
+            pipes.forEach(Pipe::abort);
+            cleanUp(owner, publicKeys, writes);
+            if (e instanceof InterruptedException) Thread.currentThread().interrupt();
+
+            // the repository may have wrapped it when writing on this thread
+            if (limits.exceeded != null) throw limits.exceeded;
+
+            // A failed write shows up here as the pipe to it breaking, so
+            // report why the write failed if it did
+            Throwable cause = writes.stream()
+                .filter(CompletableFuture::isCompletedExceptionally)
+                .map(write -> write.handle((ok, failure) -> failure).join())
+                .findFirst()
+                .orElse(e);
+            while ((cause instanceof CompletionException || cause instanceof ExecutionException 
+                    || cause instanceof UncheckedIOException) && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException("Upload failed", cause);
+        }
+
+        return publicKeys;
+    }
+
+    /** Wait for the writes that were started, and queue deletion of whatever
+     * they stored.
+     */
+    private void cleanUp(ObjectId owner, List<String> publicKeys, List<CompletableFuture<Void>> writes) {
+        List<String> stored = new ArrayList<>();
+        for (int i = 0; i < writes.size(); i++) {
+            try {
+                writes.get(i).get(1, TimeUnit.MINUTES);
+                stored.add(owner.toHexString() + "/" + publicKeys.get(i));
+            } catch (Exception e) {
+                // never stored
+            }
+        }
+        if (!stored.isEmpty()) {
+            LOGGER.info("Upload failed, removing {} stored files", stored.size());
+            this.deletions.enqueue(stored);
+        }
+    }
+
+    private static ClientErrorException tooLarge(String what) {
+        return new ClientErrorException(what + " is too large", Status.REQUEST_ENTITY_TOO_LARGE);
+    }
+
+    /** Counts what's read of each file in an upload, failing as soon as it or
+     * the whole upload is over its limit.  Only used by the request thread.
+     */
+    private class Limits {
+        private long total;
+        private ClientErrorException exceeded;
+
+        InputStream limit(InputStream part) {
+            return new FilterInputStream(part) {
+                private long size;
+
+                @Override
+                public int read() throws IOException {
+                    byte[] one = new byte[1];
+                    int read = read(one, 0, 1);
+                    return read < 0 ? -1 : one[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int read = super.read(b, off, len);
+                    if (read > 0) {
+                        this.size += read;
+                        Limits.this.total += read;
+                        if (this.size > UploadReceiver.this.maxFileBytes) throw exceeded("File");
+                        if (Limits.this.total > UploadReceiver.this.maxRequestBytes) throw exceeded("Upload");
+                    }
+                    return read;
+                }
+            };
+        }
+
+        private ClientErrorException exceeded(String what) {
+            this.exceeded = tooLarge(what);
+            return this.exceeded;
+        }
+    }
+
+    /** Hands a file's chunks from the request thread to the thread writing
+     * it to the repository, holding only a few at a time.
+     */
+    private static class Pipe extends InputStream {
+        private static final byte[] END = new byte[0];
+
+        private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(PIPE_CHUNKS);
+        private volatile boolean aborted;
+        private volatile boolean closed;
+        private byte[] chunk;
+        private int pos;
+
+        /** Called by the request thread with each chunk.  The chunk must not be reused. */
+        void write(byte[] data, int length) throws IOException {
+            put(length == data.length ? data : Arrays.copyOf(data, length));
+        }
+
+        void finish() throws IOException {
+            put(END);
+        }
+
+        void abort() {
+            this.aborted = true;
+            this.chunks.clear();
+            this.chunks.offer(END);
+        }
+
+        private void put(byte[] data) throws IOException {
+            try {
+                while (!this.chunks.offer(data, 100, TimeUnit.MILLISECONDS)) {
+                    if (this.closed) throw new IOException("Upload stopped reading");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int read = read(one, 0, 1);
+            return read < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (this.chunk == null || this.pos == this.chunk.length) {
+                if (this.chunk == END) return -1;
+                try {
+                    this.chunk = this.chunks.poll(STALL_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                    this.pos = 0;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted", e);
+                }
+                if (this.chunk == null) {
+                    // free the writer, and the request thread finds the pipe closed
+                    close();
+                    throw new IOException("Upload stalled");
+                }
+                if (this.aborted) throw new IOException("Upload aborted");
+            }
+
+            int count = Math.min(len, this.chunk.length - this.pos);
+            System.arraycopy(this.chunk, this.pos, b, off, count);
+            this.pos += count;
+            return count;
+        }
+
+        @Override
+        public void close() {
+            this.closed = true;
+            this.chunks.clear();
+        }
+    }
+}
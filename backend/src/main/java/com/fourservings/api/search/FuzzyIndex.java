@@ -0,0 +1,299 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.search;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Typo tolerant search over titles and ingredients, so "spagetti" finds
+ * spaghetti and "parmesean" finds parmesan.
+ *
+ * Each owner's distinct words are numbered, and each trigram of a word
+ * (padded, so "$sp", "spa", ... "ti$") has a {@link PostingList} of the
+ * words containing it.  A query word's candidates are the words sharing
+ * enough of its trigrams to be within the allowed number of edits, one edit
+ * spoiling at most four (swapping two letters); only those are checked for
+ * their actual edit distance.  Short query words may share no trigrams at
+ * all with words close to them, so their candidates are instead every word
+ * of about the same length.  Each word has a posting list of the recipes
+ * using it.
+ *
+ * A recipe matches if any of the query words are close to one of its words,
+ * ranked by how many of them are, then by the total number of edits, then
+ * newest first.  Deleted recipes are handled as in {@link KeywordIndex}.
+ */
+@Singleton
+public class FuzzyIndex implements RecipeListener {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FuzzyIndex.class);
+
+    // don't bother compacting small partitions
+    private static final int MIN_DELETED_TO_COMPACT = 256;
+
+    private final RecipeSource source;
+    private final OwnerPartitions<Partition> partitions;
+
+    /**
+     * @param maxOwners Number of owners kept in memory
+     */
+    @Inject
+    public FuzzyIndex(RecipeSource source, OwnerVersions versions, @Named("FUZZY_INDEX_MAX_OWNERS") String maxOwners) {
+        this.source = source;
+        this.partitions = new OwnerPartitions<>(this::build, versions::get, NumberUtils.toInt(maxOwners, 1000));
+    }
+
+    /** Number of owners currently indexed */
+    public int getOwners() { return this.partitions.size(); }
+    /** Number of times an owner's partition has been built */
+    public long getBuilds() { return this.partitions.getBuilds(); }
+
+    /** Every recipe with a word close to one of the keywords, best first.
+     */
+    public List<ObjectId> search(ObjectId ownerId, String keywords) {
+        List<String> words = new ArrayList<>(new LinkedHashSet<>(words(keywords)));
+        if (words.isEmpty()) return List.of();
+        return this.partitions.get(ownerId).search(words);
+    }
+
+    public void recipeSaved(ObjectId ownerId, long version, Document recipe) {
+        this.partitions.update(ownerId, version, partition -> partition.add(recipe));
+        compactIfNeeded(ownerId);
+    }
+
+    public void recipeRemoved(ObjectId ownerId, long version, ObjectId recipeId) {
+        this.partitions.update(ownerId, version, partition -> partition.remove(recipeId));
+        compactIfNeeded(ownerId);
+    }
+
+    private void compactIfNeeded(ObjectId ownerId) {
+        this.partitions.invalidateIf(ownerId, Partition::needsCompaction);
+    }
+
+    private Partition build(ObjectId ownerId) {
+        long started = System.currentTimeMillis();
+        Partition partition = new Partition();
+        this.source.forEach(ownerId, partition::add, "title", "ingredients");
+
+        LOGGER.info("Indexed {} recipes, {} words for {} in {}ms",
+            partition.docs.size(), partition.words.size(), ownerId, System.currentTimeMillis() - started);
+        return partition;
+    }
+
+    /** The words worth matching: no stop words, numbers, or words too short
+     * to tell a typo from a different word.
+     */
+    static List<String> words(String text) {
+        List<String> words = new ArrayList<>();
+        for (String word : Terms.words(text)) {
+            if (word.length() >= 3 && Character.isLetter(word.charAt(0)) && !Terms.isStopWord(word)) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+
+    /** Edits allowed for a word of the given length */
+    static int maxEdits(int length) {
+        if (length <= 3) return 0;
+        return length <= 5 ? 1 : 2;
+    }
+
+    /** The distinct trigrams of the word, padded at each end */
+    static Set<String> trigrams(String word) {
+        String padded = "$" + word + "$";
+        Set<String> trigrams = new LinkedHashSet<>();
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            trigrams.add(padded.substring(i, i + 3));
+        }
+        return trigrams;
+    }
+
+    /** Edit distance, counting insertions, deletions, substitutions and
+     * swapping adjacent letters as one edit each, or max + 1 if it's more than
+     * max.
+     */
+    static int distance(String a, String b, int max) {
+        if (Math.abs(a.length() - b.length()) > max) return max + 1;
+
+        int[] before = new int[b.length() + 1];
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) previous[j] = j;
+
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            int best = current[0];
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                int d = Math.min(Math.min(previous[j] + 1, current[j - 1] + 1), previous[j - 1] + cost);
+                if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1)) {
+                    d = Math.min(d, before[j - 2] + 1);
+                }
+                current[j] = d;
+                best = Math.min(best, d);
+            }
+            if (best > max) return max + 1; // only gets worse from here
+
+            int[] recycled = before;
+            before = previous;
+            previous = current;
+            current = recycled;
+        }
+        return Math.min(previous[b.length()], max + 1);
+    }
+
+    /** One owner's recipes */
+    static class Partition {
+        // all guarded by "this"
+        private final Map<String, Integer> dictionary = new HashMap<>();
+        private final List<String> words = new ArrayList<>();
+        private final List<PostingList> recipesUsing = new ArrayList<>();
+        private final Map<String, PostingList> wordsWith = new HashMap<>();
+        private final Map<Integer, PostingList> wordsOfLength = new HashMap<>();
+        private final List<ObjectId> docs = new ArrayList<>();
+        private final Map<ObjectId, Integer> docOf = new HashMap<>();
+        private final BitSet deleted = new BitSet();
+
+        synchronized void add(Document recipe) {
+            ObjectId id = recipe.getObjectId("_id");
+            remove(id);
+
+            Set<String> words = new LinkedHashSet<>();
+            for (String title : Terms.text(recipe, "title")) {
+                words.addAll(words(title));
+            }
+            for (String line : Terms.text(recipe, "ingredients")) {
+                words.addAll(Terms.ingredientWords(line));
+            }
+
+            int doc = this.docs.size();
+            for (String word : words) {
+                this.recipesUsing.get(number(word)).add(doc);
+            }
+            this.docs.add(id);
+            this.docOf.put(id, doc);
+        }
+
+        private int number(String word) {
+            Integer number = this.dictionary.get(word);
+            if (number != null) return number;
+
+            number = this.words.size();
+            this.dictionary.put(word, number);
+            this.words.add(word);
+            this.recipesUsing.add(new PostingList());
+            for (String trigram : trigrams(word)) {
+                // words are numbered in order, so they're appended in order
+                this.wordsWith.computeIfAbsent(trigram, t -> new PostingList()).add(number);
+            }
+            this.wordsOfLength.computeIfAbsent(word.length(), length -> new PostingList()).add(number);
+            return number;
+        }
+
+        synchronized void remove(ObjectId id) {
+            Integer doc = this.docOf.remove(id);
+            if (doc != null) this.deleted.set(doc);
+        }
+
+        synchronized boolean needsCompaction() {
+            int deleted = this.deleted.cardinality();
+            return deleted >= MIN_DELETED_TO_COMPACT && deleted > this.docOf.size();
+        }
+
+        synchronized List<ObjectId> search(List<String> query) {
+            int[] matched = new int[this.docs.size()];
+            int[] edits = new int[this.docs.size()];
+            int[] shared = new int[this.words.size()];
+
+            for (String q : query) {
+                int max = maxEdits(q.length());
+                List<List<Integer>> byDistance = new ArrayList<>(max + 1);
+                for (int d = 0; d <= max; d++) byDistance.add(new ArrayList<>());
+
+                Set<String> trigrams = trigrams(q);
+                int needed = trigrams.size() - 4 * max;
+                List<Integer> candidates = new ArrayList<>();
+                if (needed > 0) {
+                    // count the trigrams each word shares with the query word
+                    for (String trigram : trigrams) {
+                        PostingList words = this.wordsWith.get(trigram);
+                        if (words == null) continue;
+                        words.forEach(word -> {
+                            if (shared[word]++ == 0) candidates.add(word);
+                        });
+                    }
+                    candidates.removeIf(word -> {
+                        boolean enough = shared[word] >= needed;
+                        shared[word] = 0;
+                        return !enough;
+                    });
+                } else {
+                    for (int length = q.length() - max; length <= q.length() + max; length++) {
+                        PostingList words = this.wordsOfLength.get(length);
+                        if (words != null) words.forEach(candidates::add);
+                    }
+                }
+                for (int word : candidates) {
+                    int d = distance(q, this.words.get(word), max);
+                    if (d <= max) byDistance.get(d).add(word);
+                }
+
+                // closest words first, so each recipe counts its closest
+                BitSet seen = new BitSet(this.docs.size());
+                for (int d = 0; d <= max; d++) {
+                    int distance = d;
+                    for (int word : byDistance.get(d)) {
+                        this.recipesUsing.get(word).forEach(doc -> {
+                            if (seen.get(doc)) return;
+                            seen.set(doc);
+                            matched[doc]++;
+                            edits[doc] += distance;
+                        });
+                    }
+                }
+            }
+
+            List<Integer> found = new ArrayList<>();
+            for (int doc = 0; doc < matched.length; doc++) {
+                if (matched[doc] > 0 && !this.deleted.get(doc)) found.add(doc);
+            }
+            found.sort(Comparator.<Integer>comparingInt(doc -> -matched[doc])
+                .thenComparingInt(doc -> edits[doc])
+                .thenComparing(doc -> this.docs.get(doc), Comparator.reverseOrder()));
+
+            List<ObjectId> results = new ArrayList<>(found.size());
+            found.forEach(doc -> results.add(this.docs.get(doc)));
+            return results;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.search;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** "What can I cook": given the ingredients someone has, their recipes
+ * ranked by how many of the recipe's ingredients that covers.
+ *
+ * Each owner gets a dictionary numbering the (stemmed) words in their
+ * ingredient lists.  A recipe is held as the numbers in each of its lines,
+ * and each number has a {@link BitSet} of the recipes using it.  A query
+ * becomes a bitset of the numbers on hand; the union of their recipe sets
+ * gives the candidates, and a line is covered if any of its numbers is set,
+ * so "2 chicken breasts" is covered by "chicken".
+ */
+@Singleton
+public class IngredientIndex implements RecipeListener {
+    private static final Logger LOGGER = LoggerFactory.getLogger(IngredientIndex.class);
+
+    // don't bother compacting small partitions
+    private static final int MIN_DELETED_TO_COMPACT = 256;
+
+    private final RecipeSource source;
+    private final OwnerPartitions<Partition> partitions;
+
+    /**
+     * @param maxOwners Number of owners kept in memory
+     */
+    @Inject
+    public IngredientIndex(RecipeSource source, OwnerVersions versions, @Named("INGREDIENT_INDEX_MAX_OWNERS") String maxOwners) {
+        this.source = source;
+        this.partitions = new OwnerPartitions<>(this::build, versions::get, NumberUtils.toInt(maxOwners, 1000));
+    }
+
+    /** Number of owners currently indexed */
+    public int getOwners() { return this.partitions.size(); }
+    /** Number of times an owner's partition has been built */
+    public long getBuilds() { return this.partitions.getBuilds(); }
+
+    /** The terms for what someone has on hand, e.g. "Tomatoes, basil".
+     */
+    public static Set<String> terms(Collection<String> have) {
+        Set<String> terms = new LinkedHashSet<>();
+        for (String entry : have) {
+            for (String word : Terms.ingredientWords(entry)) {
+                terms.add(Terms.stem(word));
+            }
+        }
+        return terms;
+    }
+
+    /** The lines of the recipe's ingredients that aren't covered.
+     * @param have As given by {@link #terms}
+     */
+    public static List<String> missing(Document recipe, Set<String> have) {
+        List<String> missing = new ArrayList<>();
+        for (String line : Terms.text(recipe, "ingredients")) {
+            List<String> words = Terms.ingredientWords(line);
+            if (!words.isEmpty() && words.stream().map(Terms::stem).noneMatch(have::contains)) {
+                missing.add(line);
+            }
+        }
+        return missing;
+    }
+
+    /** Every recipe covered by at least one of the ingredients, best covered
+     * first, then newest first.
+     * @param have As given by {@link #terms}
+     */
+    public List<Match> search(ObjectId ownerId, Set<String> have) {
+        if (have.isEmpty()) return List.of();
+        return this.partitions.get(ownerId).search(have);
+    }
+
+    public void recipeSaved(ObjectId ownerId, long version, Document recipe) {
+        this.partitions.update(ownerId, version, partition -> partition.add(recipe));
+        compactIfNeeded(ownerId);
+    }
+
+    public void recipeRemoved(ObjectId ownerId, long version, ObjectId recipeId) {
+        this.partitions.update(ownerId, version, partition -> partition.remove(recipeId));
+        compactIfNeeded(ownerId);
+    }
+
+    private void compactIfNeeded(ObjectId ownerId) {
+        this.partitions.invalidateIf(ownerId, Partition::needsCompaction);
+    }
+
+    private Partition build(ObjectId ownerId) {
+        long started = System.currentTimeMillis();
+        Partition partition = new Partition();
+        this.source.forEach(ownerId, partition::add, "ingredients");
+
+        LOGGER.info("Indexed {} recipes, {} ingredients for {} in {}ms",
+            partition.docs.size(), partition.dictionary.size(), ownerId, System.currentTimeMillis() - started);
+        return partition;
+    }
+
+    /** How well a recipe is covered */
+    public static class Match {
+        private final ObjectId id;
+        private final int covered;
+        private final int lines;
+
+        private Match(ObjectId id, int covered, int lines) {
+            this.id = id;
+            this.covered = covered;
+            this.lines = lines;
+        }
+
+        public ObjectId getId() { return this.id; }
+        /** Number of ingredient lines covered */
+        public int getCovered() { return this.covered; }
+        /** Number of ingredient lines in all */
+        public int getLines() { return this.lines; }
+
+        private double coverage() { return (double) this.covered / this.lines; }
+    }
+
+    /** Best covered first */
+    private static final Comparator<Match> RANKING = Comparator.comparingDouble(Match::coverage).reversed()
+        .thenComparing(Comparator.comparingInt(Match::getCovered).reversed())
+        .thenComparing(Match::getId, Comparator.reverseOrder());
+
+    /** One owner's recipes */
+    static class Partition {
+        private static final int[][] NO_LINES = new int[0][];
+
+        // all guarded by "this"
+        private final Map<String, Integer> dictionary = new HashMap<>();
+        private final List<BitSet> recipesUsing = new ArrayList<>();
+        private final List<ObjectId> docs = new ArrayList<>();
+        private final List<int[][]> lines = new ArrayList<>();
+        private final Map<ObjectId, Integer> docOf = new HashMap<>();
+        private final BitSet deleted = new BitSet();
+
+        synchronized void add(Document recipe) {
+            ObjectId id = recipe.getObjectId("_id");
+            remove(id);
+
+            int doc = this.docs.size();
+            List<int[]> lines = new ArrayList<>();
+            for (String line : Terms.text(recipe, "ingredients")) {
+                Set<Integer> numbers = new LinkedHashSet<>();
+                for (String word : Terms.ingredientWords(line)) {
+                    numbers.add(number(Terms.stem(word)));
+                }
+                if (numbers.isEmpty()) continue;
+
+                int[] ids = numbers.stream().mapToInt(Integer::intValue).toArray();
+                for (int i : ids) {
+                    this.recipesUsing.get(i).set(doc);
+                }
+                lines.add(ids);
+            }
+
+            this.docs.add(id);
+            this.lines.add(lines.isEmpty() ? NO_LINES : lines.toArray(NO_LINES));
+            this.docOf.put(id, doc);
+        }
+
+        private int number(String term) {
+            return this.dictionary.computeIfAbsent(term, t -> {
+                this.recipesUsing.add(new BitSet());
+                return this.recipesUsing.size() - 1;
+            });
+        }
+
+        synchronized void remove(ObjectId id) {
+            Integer doc = this.docOf.remove(id);
+            if (doc != null) {
+                this.deleted.set(doc);
+                this.lines.set(doc, NO_LINES);
+            }
+        }
+
+        synchronized boolean needsCompaction() {
+            int deleted = this.deleted.cardinality();
+            return deleted >= MIN_DELETED_TO_COMPACT && deleted > this.docOf.size();
+        }
+
+        synchronized List<Match> search(Set<String> have) {
+            BitSet numbers = new BitSet(this.dictionary.size());
+            BitSet candidates = new BitSet(this.docs.size());
+            for (String term : have) {
+                Integer number = this.dictionary.get(term);
+                if (number != null) {
+                    numbers.set(number);
+                    candidates.or(this.recipesUsing.get(number));
+                }
+            }
+            candidates.andNot(this.deleted);
+
+            List<Match> matches = new ArrayList<>(candidates.cardinality());
+            for (int doc = candidates.nextSetBit(0); doc >= 0; doc = candidates.nextSetBit(doc + 1)) {
+                int[][] lines = this.lines.get(doc);
+                int covered = 0;
+                for (int[] line : lines) {
+                    if (anySet(numbers, line)) covered++;
+                }
+                matches.add(new Match(this.docs.get(doc), covered, lines.length));
+            }
+            matches.sort(RANKING);
+            return matches;
+        }
+
+        private static boolean anySet(BitSet numbers, int[] line) {
+            for (int number : line) {
+                if (numbers.get(number)) return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.search;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** An in-memory inverted index for keyword searches, used in place of
+ * mongo's $text index when SEARCH_ENGINE is "index".
+ *
+ * The index is partitioned by owner, since searches never cross owners.
+ * Each recipe in a partition gets a document number, and each term a
+ * {@link PostingList} of the documents containing it.  Documents are only
+ * ever appended: a changed recipe gets a new number and the old one is
+ * marked deleted, and once deleted documents outnumber live ones the
+ * partition is thrown away to be rebuilt.
+ *
+ * Queries follow $text: a recipe matches if it has any of the terms, and
+ * none of the terms prefixed with "-".
+ */
+@Singleton
+public class KeywordIndex implements RecipeListener {
+    private static final Logger LOGGER = LoggerFactory.getLogger(KeywordIndex.class);
+
+    public static final String ENGINE = "index";
+
+    // don't bother compacting small partitions
+    private static final int MIN_DELETED_TO_COMPACT = 256;
+
+    private final boolean enabled;
+    private final RecipeSource source;
+    private final OwnerPartitions<Partition> partitions;
+
+    /**
+     * @param engine    The SEARCH_ENGINE, this index is only used for {@link #ENGINE}
+     * @param maxOwners Number of owners kept in memory
+     */
+    @Inject
+    public KeywordIndex(RecipeSource source, OwnerVersions versions,
+            @Named("SEARCH_ENGINE") String engine,
+            @Named("SEARCH_INDEX_MAX_OWNERS") String maxOwners) {
+        this.enabled = ENGINE.equals(engine);
+        this.source = source;
+        this.partitions = new OwnerPartitions<>(this::build, versions::get, NumberUtils.toInt(maxOwners, 1000));
+    }
+
+    public boolean isEnabled() { return this.enabled; }
+
+    /** Number of owners currently indexed */
+    public int getOwners() { return this.partitions.size(); }
+    /** Number of times an owner's partition has been built */
+    public long getBuilds() { return this.partitions.getBuilds(); }
+
+    /** Every recipe matching the keywords, newest first.
+     */
+    public List<ObjectId> search(ObjectId ownerId, String keywords, @Nullable ObjectId groupId) {
+        return search(ownerId, keywords, groupId, false);
+    }
+
+    /** Every recipe matching the keywords, newest first, or best matches
+     * first: those with the most, and the rarest, of the terms.
+     */
+    public List<ObjectId> search(ObjectId ownerId, String keywords, @Nullable ObjectId groupId, boolean byRelevance) {
+        Set<String> include = included(keywords);
+        if (include.isEmpty()) return List.of();
+
+        return this.partitions.get(ownerId).search(include, excluded(keywords), groupId, byRelevance);
+    }
+
+    /** The terms a recipe should have to match the keywords */
+    public static Set<String> included(String keywords) {
+        Set<String> include = new LinkedHashSet<>();
+        for (String word : keywords.trim().split("\\s+")) {
+            if (!word.startsWith("-")) include.addAll(Terms.terms(word));
+        }
+        return include;
+    }
+
+    /** The terms, prefixed with "-", that a recipe mustn't have */
+    private static Set<String> excluded(String keywords) {
+        Set<String> exclude = new LinkedHashSet<>();
+        for (String word : keywords.trim().split("\\s+")) {
+            if (word.startsWith("-")) exclude.addAll(Terms.terms(word.substring(1)));
+        }
+        return exclude;
+    }
+
+    public void recipeSaved(ObjectId ownerId, long version, Document recipe) {
+        if (!this.enabled) return;
+        this.partitions.update(ownerId, version, partition -> partition.add(recipe));
+        compactIfNeeded(ownerId);
+    }
+
+    public void recipeRemoved(ObjectId ownerId, long version, ObjectId recipeId) {
+        if (!this.enabled) return;
+        this.partitions.update(ownerId, version, partition -> partition.remove(recipeId));
+        compactIfNeeded(ownerId);
+    }
+
+    private void compactIfNeeded(ObjectId ownerId) {
+        this.partitions.invalidateIf(ownerId, Partition::needsCompaction);
+    }
+
+    private Partition build(ObjectId ownerId) {
+        long started = System.currentTimeMillis();
+        Partition partition = new Partition();
+        this.source.forEach(ownerId, partition::add, ArrayUtils.add(Terms.FIELDS, "groups"));
+
+        LOGGER.info("Indexed {} recipes, {} terms for {} in {}ms",
+            partition.docs.size(), partition.postings.size(), ownerId, System.currentTimeMillis() - started);
+        return partition;
+    }
+
+    /** One owner's recipes */
+    static class Partition {
+        // all guarded by "this"
+        private final Map<String, PostingList> postings = new HashMap<>();
+        private final List<ObjectId> docs = new ArrayList<>();
+        private final List<ObjectId[]> groups = new ArrayList<>();
+        private final Map<ObjectId, Integer> docOf = new HashMap<>();
+        private final BitSet deleted = new BitSet();
+
+        synchronized void add(Document recipe) {
+            ObjectId id = recipe.getObjectId("_id");
+            remove(id);
+
+            int doc = this.docs.size();
+            this.docs.add(id);
+            this.groups.add(groupIds(recipe));
+            this.docOf.put(id, doc);
+
+            Set<String> terms = new LinkedHashSet<>();
+            for (String text : Terms.text(recipe, Terms.FIELDS)) {
+                terms.addAll(Terms.terms(text));
+            }
+            for (String term : terms) {
+                this.postings.computeIfAbsent(term, t -> new PostingList()).add(doc);
+            }
+        }
+
+        synchronized void remove(ObjectId id) {
+            Integer doc = this.docOf.remove(id);
+            if (doc != null) {
+                this.deleted.set(doc);
+                this.groups.set(doc, null);
+            }
+        }
+
+        synchronized boolean needsCompaction() {
+            int deleted = this.deleted.cardinality();
+            return deleted >= MIN_DELETED_TO_COMPACT && deleted > this.docOf.size();
+        }
+
+        synchronized List<ObjectId> search(Set<String> include, Set<String> exclude, @Nullable ObjectId groupId,
+                boolean byRelevance) {
+            BitSet matches = new BitSet(this.docs.size());
+            for (String term : include) {
+                PostingList postings = this.postings.get(term);
+                if (postings != null) postings.addTo(matches);
+            }
+            if (!exclude.isEmpty()) {
+                BitSet excluded = new BitSet(this.docs.size());
+                for (String term : exclude) {
+                    PostingList postings = this.postings.get(term);
+                    if (postings != null) postings.addTo(excluded);
+                }
+                matches.andNot(excluded);
+            }
+            matches.andNot(this.deleted);
+
+            List<ObjectId> ids = new ArrayList<>(matches.cardinality());
+            for (int doc = matches.nextSetBit(0); doc >= 0; doc = matches.nextSetBit(doc + 1)) {
+                if (groupId == null || contains(this.groups.get(doc), groupId)) {
+                    ids.add(this.docs.get(doc));
+                }
+            }
+            if (byRelevance) {
+                double[] scores = scores(include);
+                ids.sort(Comparator.<ObjectId>comparingDouble(id -> -scores[this.docOf.get(id)])
+                    .thenComparing(Comparator.reverseOrder()));
+            } else {
+                ids.sort(Collections.reverseOrder());
+            }
+            return ids;
+        }
+
+        /** Each document's score: the sum of the inverse document frequency
+         * of the terms it has, so rarer terms count for more.
+         */
+        private double[] scores(Set<String> include) {
+            double[] scores = new double[this.docs.size()];
+            int live = this.docOf.size();
+            for (String term : include) {
+                PostingList postings = this.postings.get(term);
+                if (postings == null) continue;
+                double idf = Math.log(1 + (double) live / postings.size());
+                postings.forEach(doc -> scores[doc] += idf);
+            }
+            return scores;
+        }
+
+        private static boolean contains(ObjectId[] groups, ObjectId groupId) {
+            for (ObjectId group : groups) {
+                if (group.equals(groupId)) return true;
+            }
+            return false;
+        }
+
+        private static ObjectId[] groupIds(Document recipe) {
+            List<ObjectId> ids = new ArrayList<>();
+            for (Document group : recipe.getList("groups", Document.class, List.of())) {
+                ObjectId id = group.getObjectId("_id");
+                if (id != null) ids.add(id);
+            }
+            return ids.toArray(new ObjectId[0]);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.search;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+import org.bson.types.ObjectId;
+
+/** Per-owner pieces of an in-memory index, built from the database the
+ * first time an owner needs one and kept, least recently used first, up to
+ * a maximum number of owners.
+ *
+ * Each piece notes the owner's {@link OwnerVersions version} read just
+ * before it was built, and moves on a version with each change applied.
+ * Changes come with the version they made, so any the build already saw are
+ * skipped, and those arriving while it's being built are held and applied
+ * once it's done.  Changes for owners with nothing built are dropped, since
+ * a later build will see them in the database.  A piece that has fallen
+ * behind the owner's version, because of a change made on another node, a
+ * change to their groups, or one that arrived out of order, is rebuilt the
+ * next time it's needed.
+ * Changes must therefore be safe to apply twice.
+ */
+class OwnerPartitions<T> {
+    private final Function<ObjectId, T> builder;
+    private final ToLongFunction<ObjectId> versions;
+    private final int maxOwners;
+
+    // guarded by "this"
+    private final LinkedHashMap<ObjectId, Slot<T>> slots = new LinkedHashMap<>(16, 0.75f, true);
+    private long builds = 0;
+
+    /**
+     * @param builder   Builds an owner's piece from the database
+     * @param versions  Each owner's current version
+     * @param maxOwners How many owners' pieces to keep
+     */
+    OwnerPartitions(Function<ObjectId, T> builder, ToLongFunction<ObjectId> versions, int maxOwners) {
+        this.builder = builder;
+        this.versions = versions;
+        this.maxOwners = Math.max(1, maxOwners);
+    }
+
+    /** The owner's piece, building it if needed.
+     */
+    T get(ObjectId ownerId) {
+        // read first, so the build sees everything up to this version
+        long version = this.versions.applyAsLong(ownerId);
+        Slot<T> slot;
+        synchronized (this) {
+            slot = this.slots.get(ownerId);
+            while (slot != null && slot.value == null) {
+                // someone else is building it
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted waiting for index", e);
+                }
+                slot = this.slots.get(ownerId);
+            }
+            if (slot != null && slot.version >= version) return slot.value;
+
+            slot = new Slot<>(version);
+            this.slots.put(ownerId, slot);
+            this.builds++;
+        }
+
+        T value;
+        try {
+            value = this.builder.apply(ownerId);
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                this.slots.remove(ownerId, slot);
+                notifyAll();
+            }
+            throw e;
+        }
+
+        Slot<T> built = slot;
+        synchronized (this) {
+            built.value = value;
+            built.pending.forEach(pending -> built.apply(pending.version, pending.change));
+            built.pending = null;
+            evict();
+            notifyAll();
+        }
+        return value;
+    }
+
+    /** Apply a change to the owner's piece, if there is one.
+     * @param version The owner's version once the change was written
+     */
+    synchronized void update(ObjectId ownerId, long version, Consumer<T> change) {
+        Slot<T> slot = this.slots.get(ownerId);
+        if (slot == null) return;
+
+        if (slot.value == null) {
+            slot.pending.add(new Pending<>(version, change));
+        } else {
+            slot.apply(version, change);
+        }
+    }
+
+    /** Forget the owner's piece if it's built and matches, so it's rebuilt
+     * next time it's needed.
+     */
+    synchronized void invalidateIf(ObjectId ownerId, Predicate<T> test) {
+        Slot<T> slot = this.slots.get(ownerId);
+        if (slot != null && slot.value != null && test.test(slot.value)) this.slots.remove(ownerId);
+    }
+
+    synchronized int size() { return this.slots.size(); }
+    synchronized long getBuilds() { return this.builds; }
+
+    /** The pieces that are built, e.g. to total up their memory use */
+    synchronized List<T> values() {
+        List<T> values = new ArrayList<>();
+        for (Slot<T> slot : this.slots.values()) {
+            if (slot.value != null) values.add(slot.value);
+        }
+        return values;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<ObjectId, Slot<T>>> lru = this.slots.entrySet().iterator();
+        int over = this.slots.size() - this.maxOwners;
+        while (over > 0 && lru.hasNext()) {
+            if (lru.next().getValue().value != null) {
+                lru.remove();
+                over--;
+            }
+        }
+    }
+
+    private static class Slot<T> {
+        private volatile T value;
+        private long version;
+        private List<Pending<T>> pending = new ArrayList<>();
+
+        private Slot(long version) {
+            this.version = version;
+        }
+
+        private void apply(long version, Consumer<T> change) {
+            // already seen by the build, or superseded by a later change
+            if (version <= this.version) return;
+
+            change.accept(this.value);
+            // anything else leaves a gap, so it's behind until rebuilt
+            if (version == this.version + 1) this.version = version;
+        }
+    }
+
+    private static class Pending<T> {
+        private final long version;
+        private final Consumer<T> change;
+
+        private Pending(long version, Consumer<T> change) {
+            this.version = version;
+            this.change = change;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.search;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Updates;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+/** A count of the changes to each owner's recipes and groups, kept in mongo
+ * so that every app node sees every other node's changes.  Anything held in
+ * memory for an owner, e.g. cached search results, notes the version it was
+ * read at, and is stale once the version has moved on.
+ *
+ * Checking costs one read by _id.  Owners who've never changed anything are
+ * at version 0.
+ */
+@Singleton
+public class OwnerVersions {
+    static final String COLLECTION = "owner_version";
+
+    private final Provider<MongoDatabase> mongo;
+
+    @Inject
+    public OwnerVersions(Provider<MongoDatabase> mongo) {
+        this.mongo = mongo;
+    }
+
+    private MongoCollection<Document> versions() {
+        return this.mongo.get().getCollection(COLLECTION);
+    }
+
+    /** The owner's current version.
+     */
+    public long get(ObjectId ownerId) {
+        Document version = versions().find(Filters.eq("_id", ownerId)).first();
+        return version == null ? 0 : version.get("version", Number.class).longValue();
+    }
+
+    /** Note a change to the owner's recipes or groups, once it's written.
+     * @return the owner's new version
+     */
+    public long changed(ObjectId ownerId) {
+        Document version = versions().findOneAndUpdate(Filters.eq("_id", ownerId), Updates.inc("version", 1L),
+            new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER));
+        return version.get("version", Number.class).longValue();
+    }
+}
@@ -0,0 +1,90 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.search;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.IntConsumer;
+
+/** An ascending list of document numbers, stored as variable length
+ * deltas, so a term on thousands of consecutive recipes costs about a byte
+ * each.  Numbers can only be appended in increasing order.
+ */
+class PostingList {
+    private byte[] data = new byte[4];
+    private int length = 0;
+    private int last = -1;
+    private int size = 0;
+
+    /** Append the document, if it's not already the last one.
+     * @throws IllegalArgumentException if it's lower than the last one
+     */
+    void add(int doc) {
+        if (doc == this.last) return;
+        if (doc < this.last) throw new IllegalArgumentException(doc + " added after " + this.last);
+
+        int delta = doc - this.last;
+        if (this.length + 5 > this.data.length) {
+            this.data = Arrays.copyOf(this.data, Math.max(this.length + 5, this.data.length * 2));
+        }
+        while ((delta & ~0x7F) != 0) {
+            this.data[this.length++] = (byte) ((delta & 0x7F) | 0x80);
+            delta >>>= 7;
+        }
+        this.data[this.length++] = (byte) delta;
+        this.last = doc;
+        this.size++;
+    }
+
+    int size() { return this.size; }
+
+    /** Bytes used to hold the list */
+    int bytes() { return this.data.length; }
+
+    /** Set the bit of every document in the list.
+     */
+    void addTo(BitSet docs) {
+        forEach(docs::set);
+    }
+
+    /** Visit every document in the list, in order.
+     */
+    void forEach(IntConsumer visitor) {
+        int doc = -1;
+        int pos = 0;
+        while (pos < this.length) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = this.data[pos++];
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            doc += delta;
+            visitor.accept(doc);
+        }
+    }
+
+    /** Just the documents, e.g. for tests */
+    int[] toArray() {
+        BitSet docs = new BitSet();
+        addTo(docs);
+        return docs.stream().toArray();
+    }
+}
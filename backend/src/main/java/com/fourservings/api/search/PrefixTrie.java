@@ -0,0 +1,203 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.search;
+
+import java.util.Arrays;
+import java.util.function.BiPredicate;
+
+/** A map from strings to values that can list everything under a prefix.
+ *
+ * Kept as a radix tree: chains of single-child nodes are collapsed into one
+ * node with a multi-character label, and children are held in a small array
+ * sorted by their first character, so a node costs a few dozen bytes rather
+ * than a hash map per character.  Not thread safe.
+ */
+class PrefixTrie<V> {
+    private static final Node<?>[] NO_CHILDREN = new Node<?>[0];
+
+    private final Node<V> root = new Node<>(new char[0]);
+    private int size = 0;
+
+    int size() { return this.size; }
+
+    V get(String key) {
+        Node<V> node = find(key);
+        return node == null ? null : node.value;
+    }
+
+    void put(String key, V value) {
+        if (value == null) throw new IllegalArgumentException("null value");
+
+        Node<V> node = this.root;
+        int pos = 0;
+        while (pos < key.length()) {
+            int index = node.indexOf(key.charAt(pos));
+            if (index < 0) {
+                node.insert(-index - 1, new Node<>(key.substring(pos).toCharArray()));
+                node = node.children[-index - 1];
+                pos = key.length();
+                break;
+            }
+
+            Node<V> child = node.children[index];
+            int common = common(child.label, key, pos);
+            if (common < child.label.length) {
+                // split the child's label where the key leaves it
+                Node<V> split = new Node<>(Arrays.copyOf(child.label, common));
+                child.label = Arrays.copyOfRange(child.label, common, child.label.length);
+                split.insert(0, child);
+                node.children[index] = split;
+                child = split;
+            }
+            node = child;
+            pos += common;
+        }
+
+        if (node.value == null) this.size++;
+        node.value = value;
+    }
+
+    /** Remove the key, and with it any nodes that are no longer needed.
+     */
+    V remove(String key) {
+        return remove(this.root, key, 0);
+    }
+
+    private V remove(Node<V> node, String key, int pos) {
+        if (pos == key.length()) {
+            V removed = node.value;
+            if (removed != null) this.size--;
+            node.value = null;
+            return removed;
+        }
+
+        int index = node.indexOf(key.charAt(pos));
+        if (index < 0) return null;
+        Node<V> child = node.children[index];
+        if (common(child.label, key, pos) < child.label.length) return null;
+
+        V removed = remove(child, key, pos + child.label.length);
+        if (removed != null && child.value == null) {
+            if (child.children.length == 0) {
+                node.delete(index);
+            } else if (child.children.length == 1) {
+                // fold the only grandchild back into the child
+                Node<V> only = child.children[0];
+                char[] label = Arrays.copyOf(child.label, child.label.length + only.label.length);
+                System.arraycopy(only.label, 0, label, child.label.length, only.label.length);
+                only.label = label;
+                node.children[index] = only;
+            }
+        }
+        return removed;
+    }
+
+    /** Visit every key starting with the prefix, in order, with its value,
+     * until the visitor returns false.
+     */
+    void forEachWithPrefix(String prefix, BiPredicate<String, V> visitor) {
+        Node<V> node = this.root;
+        StringBuilder path = new StringBuilder();
+        int pos = 0;
+        while (pos < prefix.length()) {
+            int index = node.indexOf(prefix.charAt(pos));
+            if (index < 0) return;
+            node = node.children[index];
+
+            int common = common(node.label, prefix, pos);
+            if (common < node.label.length && pos + common < prefix.length()) return;
+            path.append(node.label);
+            pos += node.label.length;
+        }
+        visit(node, path, visitor);
+    }
+
+    private static <V> boolean visit(Node<V> node, StringBuilder path, BiPredicate<String, V> visitor) {
+        if (node.value != null && !visitor.test(path.toString(), node.value)) return false;
+        for (Node<V> child : node.children) {
+            int length = path.length();
+            path.append(child.label);
+            boolean more = visit(child, path, visitor);
+            path.setLength(length);
+            if (!more) return false;
+        }
+        return true;
+    }
+
+    private Node<V> find(String key) {
+        Node<V> node = this.root;
+        int pos = 0;
+        while (pos < key.length()) {
+            int index = node.indexOf(key.charAt(pos));
+            if (index < 0) return null;
+            node = node.children[index];
+            if (common(node.label, key, pos) < node.label.length) return null;
+            pos += node.label.length;
+        }
+        return node;
+    }
+
+    /** How many characters of the label match the key from pos */
+    private static int common(char[] label, String key, int pos) {
+        int i = 0;
+        while (i < label.length && pos + i < key.length() && label[i] == key.charAt(pos + i)) i++;
+        return i;
+    }
+
+    private static class Node<V> {
+        private char[] label;
+        @SuppressWarnings("unchecked")
+        private Node<V>[] children = (Node<V>[]) NO_CHILDREN;
+        private V value;
+
+        private Node(char[] label) {
+            this.label = label;
+        }
+
+        /** Index of the child starting with c, or -(insertion point) - 1 */
+        private int indexOf(char c) {
+            int low = 0;
+            int high = this.children.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                char first = this.children[mid].label[0];
+                if (first < c) {
+                    low = mid + 1;
+                } else if (first > c) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -low - 1;
+        }
+
+        private void insert(int index, Node<V> child) {
+            Node<V>[] children = Arrays.copyOf(this.children, this.children.length + 1);
+            System.arraycopy(children, index, children, index + 1, this.children.length - index);
+            children[index] = child;
+            this.children = children;
+        }
+
+        private void delete(int index) {
+            Node<V>[] children = Arrays.copyOf(this.children, this.children.length - 1);
+            System.arraycopy(this.children, index + 1, children, index, children.length - index);
+            this.children = children;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.search;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+/** Told about every change to a recipe, once it's been written, so in-memory
+ * indexes can keep up.  Bound into a set, see {@link com.fourservings.api.AllModules}.
+ * Only changes made on this node are told, each with the owner's
+ * {@link OwnerVersions version} after it, so indexes can tell when they've
+ * missed any.
+ *
+ * Called on the request thread, so implementations should be quick, and
+ * must not throw.
+ */
+public interface RecipeListener {
+    /** A recipe was created or replaced.
+     * @param version The owner's version after the change
+     * @param recipe  The whole recipe as stored
+     */
+    public void recipeSaved(ObjectId ownerId, long version, Document recipe);
+
+    public void recipeRemoved(ObjectId ownerId, long version, ObjectId recipeId);
+}
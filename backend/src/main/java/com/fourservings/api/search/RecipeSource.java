@@ -0,0 +1,59 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.search;
+
+import java.util.function.Consumer;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import com.fourservings.api.RecipeManager;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+/** Reads an owner's recipes from mongo, for building in-memory indexes.
+ */
+@Singleton
+public class RecipeSource {
+    static final int BATCH_SIZE = 500;
+
+    private final Provider<MongoDatabase> mongo;
+
+    @Inject
+    public RecipeSource(Provider<MongoDatabase> mongo) {
+        this.mongo = mongo;
+    }
+
+    /** Every recipe the owner has, oldest first.
+     * @param fields The fields needed, _id is always included
+     */
+    public void forEach(ObjectId ownerId, Consumer<Document> consumer, String... fields) {
+        this.mongo.get().getCollection(RecipeManager.COLLECTION_RECIPE)
+            .find(Filters.eq("ownerId", ownerId))
+            .projection(Projections.include(fields))
+            .sort(Sorts.ascending("_id"))
+            .batchSize(BATCH_SIZE)
+            .forEach(consumer);
+    }
+}
@@ -0,0 +1,209 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.search;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Caches pages of search results, up to SEARCH_CACHE_MB in all, least
+ * recently used first.
+ *
+ * Results are stored with the owner's {@link OwnerVersions version} they
+ * were searched at, and only served while it's still current, so a change
+ * on any app node makes all of the owner's cached pages stale at once
+ * without having to find them; they're dropped as they're next looked up,
+ * or age out.  A hit costs the one read of the version.
+ *
+ * Results are copied in and out, since callers change the documents they
+ * get back.
+ *
+ * The hit rate and memory used are logged at most every quarter hour while
+ * searches are coming in, to tell whether SEARCH_CACHE_MB is paying off.
+ */
+@Singleton
+public class SearchCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SearchCache.class);
+
+    // rough per-entry and per-value overheads, for sizing
+    private static final int ENTRY_OVERHEAD = 200;
+    private static final int VALUE_OVERHEAD = 40;
+    private static final long REPORT_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(15);
+
+    private final OwnerVersions versions;
+    private final long maxBytes;
+
+    // all guarded by "this"
+    private final LinkedHashMap<List<Object>, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long reported = System.currentTimeMillis();
+
+    /**
+     * @param maxMegabytes Memory to use for cached results, 0 to disable
+     */
+    @Inject
+    public SearchCache(OwnerVersions versions, @Named("SEARCH_CACHE_MB") String maxMegabytes) {
+        this.versions = versions;
+        this.maxBytes = Math.max(0, NumberUtils.toLong(maxMegabytes, 0)) * 1024 * 1024;
+    }
+
+    public boolean isEnabled() { return this.maxBytes > 0; }
+
+    synchronized long getHits() { return this.hits; }
+    synchronized long getMisses() { return this.misses; }
+    synchronized long getEvictions() { return this.evictions; }
+    synchronized int getSize() { return this.entries.size(); }
+    synchronized long getBytes() { return this.bytes; }
+
+    /** Fraction of lookups answered from the cache */
+    synchronized double getHitRate() {
+        long lookups = this.hits + this.misses;
+        return lookups == 0 ? 0 : (double) this.hits / lookups;
+    }
+
+    /** The cached results of the owner's query, or else the results of the
+     * search, which are cached for next time.
+     * @param query Everything, other than the owner, that affects the results
+     */
+    public Pair<List<Document>, Integer> get(ObjectId ownerId, List<Object> query,
+            Supplier<Pair<List<Document>, Integer>> search) {
+        if (!isEnabled()) return search.get();
+
+        List<Object> key = new ArrayList<>(query.size() + 1);
+        key.add(ownerId);
+        key.addAll(query);
+
+        // read before searching, so a change made during the search makes its results stale
+        long version = this.versions.get(ownerId);
+        synchronized (this) {
+            report();
+            Entry entry = this.entries.get(key);
+            if (entry != null && entry.version == version) {
+                this.hits++;
+                return copy(entry.results);
+            }
+            if (entry != null) {
+                this.entries.remove(key);
+                this.bytes -= entry.size;
+            }
+            this.misses++;
+        }
+
+        Pair<List<Document>, Integer> results = search.get();
+        Entry entry = new Entry(version, copy(results));
+        if (entry.size > this.maxBytes / 8) return results; // not worth pushing out everything else for
+
+        synchronized (this) {
+            Entry previous = this.entries.put(key, entry);
+            if (previous != null) this.bytes -= previous.size;
+            this.bytes += entry.size;
+
+            Iterator<Entry> lru = this.entries.values().iterator();
+            while (this.bytes > this.maxBytes && lru.hasNext()) {
+                this.bytes -= lru.next().size;
+                lru.remove();
+                this.evictions++;
+            }
+        }
+        return results;
+    }
+
+    /** Log how it's doing, if it's been long enough.  Must be called while
+     * holding the lock.
+     */
+    private void report() {
+        long now = System.currentTimeMillis();
+        if (now - this.reported < REPORT_INTERVAL_MILLIS) return;
+        this.reported = now;
+
+        LOGGER.info("Search cache: {} hits, {} misses ({}% hit rate), {} evictions, {} pages in {} of {} bytes",
+            this.hits, this.misses, Math.round(getHitRate() * 100), this.evictions,
+            this.entries.size(), this.bytes, this.maxBytes);
+    }
+
+    private static Pair<List<Document>, Integer> copy(Pair<List<Document>, Integer> results) {
+        List<Document> documents = new ArrayList<>(results.getLeft().size());
+        results.getLeft().forEach(document -> documents.add((Document) copy(document)));
+        return ImmutablePair.of(documents, results.getRight());
+    }
+
+    private static Object copy(Object value) {
+        if (value instanceof Document) {
+            Document copy = new Document();
+            ((Document) value).forEach((name, field) -> copy.append(name, copy(field)));
+            return copy;
+        } else if (value instanceof Collection) {
+            List<Object> copy = new ArrayList<>(((Collection<?>) value).size());
+            ((Collection<?>) value).forEach(item -> copy.add(copy(item)));
+            return copy;
+        }
+        return value; // immutable: strings, numbers, ObjectIds, dates
+    }
+
+    /** Rough bytes of heap the value takes up */
+    static long sizeOf(Object value) {
+        if (value instanceof Document) {
+            long size = VALUE_OVERHEAD;
+            for (Map.Entry<String, Object> field : ((Document) value).entrySet()) {
+                size += VALUE_OVERHEAD + 2L * field.getKey().length() + sizeOf(field.getValue());
+            }
+            return size;
+        } else if (value instanceof Collection) {
+            long size = VALUE_OVERHEAD;
+            for (Object item : (Collection<?>) value) {
+                size += sizeOf(item);
+            }
+            return size;
+        } else if (value instanceof CharSequence) {
+            return VALUE_OVERHEAD + 2L * ((CharSequence) value).length();
+        }
+        return VALUE_OVERHEAD;
+    }
+
+    private static class Entry {
+        private final long version;
+        private final Pair<List<Document>, Integer> results;
+        private final long size;
+
+        private Entry(long version, Pair<List<Document>, Integer> results) {
+            this.version = version;
+            this.results = results;
+            this.size = ENTRY_OVERHEAD + sizeOf(results.getLeft());
+        }
+    }
+}
@@ -0,0 +1,119 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.search;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.bson.Document;
+
+/** Short extracts from a recipe's ingredients and directions showing where
+ * the search terms matched.
+ *
+ * Each snippet is {field, text, highlights}, where highlights are [start,
+ * end) offsets of the matched words in the text, so the client can mark
+ * them up without the text having to be escaped.  A short entry, e.g. an
+ * ingredient, is its own snippet; a long one is cut down to the words
+ * around its first match.  Entries are scanned one at a time, and each only
+ * as far as its snippet goes, stopping once there are enough snippets.
+ */
+public class Snippets {
+    /** The fields snippets come from, in order */
+    public static final String[] FIELDS = { "ingredients", "directions" };
+
+    // characters kept either side of the first match in a long entry
+    static final int CONTEXT = 50;
+
+    private static final Pattern WORD = Pattern.compile("[\\p{L}\\p{M}\\p{N}]+");
+    private static final String ELLIPSIS = "…";
+
+    /** Up to max snippets, in the order they appear in the recipe.
+     * @param terms As given by {@link KeywordIndex#included}
+     */
+    public static List<Document> extract(Document recipe, Set<String> terms, int max) {
+        List<Document> snippets = new ArrayList<>();
+        if (terms.isEmpty()) return snippets;
+
+        for (String field : FIELDS) {
+            for (String text : Terms.text(recipe, field)) {
+                if (snippets.size() >= max) return snippets;
+                Document snippet = snippet(field, text, terms);
+                if (snippet != null) snippets.add(snippet);
+            }
+        }
+        return snippets;
+    }
+
+    private static Document snippet(String field, String text, Set<String> terms) {
+        int from = 0;
+        int to = text.length();
+        List<int[]> matched = new ArrayList<>();
+
+        Matcher words = WORD.matcher(text);
+        while (words.find()) {
+            if (!matched.isEmpty() && words.end() > to) break; // past the end of the snippet
+            if (!isMatch(words.group(), terms)) continue;
+
+            if (matched.isEmpty() && text.length() > 2 * CONTEXT) {
+                from = wordStart(text, Math.max(0, words.start() - CONTEXT), words.start());
+                to = wordEnd(text, Math.min(text.length(), words.end() + CONTEXT), words.end());
+            }
+            matched.add(new int[] { words.start(), words.end() });
+        }
+        if (matched.isEmpty()) return null;
+
+        String prefix = from > 0 ? ELLIPSIS : "";
+        String suffix = to < text.length() ? ELLIPSIS : "";
+        int shift = prefix.length() - from;
+        List<List<Integer>> highlights = new ArrayList<>(matched.size());
+        for (int[] match : matched) {
+            highlights.add(List.of(match[0] + shift, match[1] + shift));
+        }
+        return new Document("field", field)
+            .append("text", prefix + text.substring(from, to) + suffix)
+            .append("highlights", highlights);
+    }
+
+    private static boolean isMatch(String word, Set<String> terms) {
+        for (String term : Terms.terms(word)) {
+            if (terms.contains(term)) return true;
+        }
+        return false;
+    }
+
+    /** Where to start so as not to cut a word in two, but not after limit */
+    private static int wordStart(String text, int from, int limit) {
+        if (from == 0 || Character.isWhitespace(text.charAt(from - 1))) return from;
+        for (int i = from; i < limit; i++) {
+            if (Character.isWhitespace(text.charAt(i))) return i + 1;
+        }
+        return limit;
+    }
+
+    /** Where to end so as not to cut a word in two, but not before limit */
+    private static int wordEnd(String text, int to, int limit) {
+        if (to == text.length() || Character.isWhitespace(text.charAt(to))) return to;
+        for (int i = to; i > limit; i--) {
+            if (Character.isWhitespace(text.charAt(i - 1))) return i - 1;
+        }
+        return limit;
+    }
+}
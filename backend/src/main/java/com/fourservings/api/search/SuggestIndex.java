@@ -0,0 +1,217 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.search;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Typeahead suggestions for the search box: recipe titles starting with
+ * what's been typed so far, and ingredients starting with the word being
+ * typed, most used first.
+ *
+ * Each owner's titles and ingredient words are held in a pair of
+ * {@link PrefixTrie}s, built the first time the owner asks for suggestions
+ * and kept up to date as recipes change, for up to SUGGEST_MAX_OWNERS owners.
+ */
+@Singleton
+public class SuggestIndex implements RecipeListener {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SuggestIndex.class);
+
+    public static final int MAX_LIMIT = 50;
+
+    private final RecipeSource source;
+    private final OwnerPartitions<Partition> partitions;
+
+    /**
+     * @param maxOwners Number of owners kept in memory
+     */
+    @Inject
+    public SuggestIndex(RecipeSource source, OwnerVersions versions, @Named("SUGGEST_MAX_OWNERS") String maxOwners) {
+        this.source = source;
+        this.partitions = new OwnerPartitions<>(this::build, versions::get, NumberUtils.toInt(maxOwners, 1000));
+    }
+
+    /** Number of owners currently indexed */
+    public int getOwners() { return this.partitions.size(); }
+    /** Number of times an owner's partition has been built */
+    public long getBuilds() { return this.partitions.getBuilds(); }
+
+    /** Suggestions for what's been typed.
+     * @param limit Most titles, and most ingredients, to return
+     * @return "titles", a list of {_id, title}, and "ingredients", a list of words
+     */
+    public Document suggest(ObjectId ownerId, String prefix, int limit) {
+        List<String> words = Terms.words(prefix);
+        limit = Math.max(1, Math.min(limit, MAX_LIMIT));
+        if (words.isEmpty()) {
+            return new Document("titles", List.of()).append("ingredients", List.of());
+        }
+
+        Partition partition = this.partitions.get(ownerId);
+        return new Document("titles", partition.titles(String.join(" ", words), limit))
+            .append("ingredients", partition.ingredients(words.get(words.size() - 1), limit));
+    }
+
+    public void recipeSaved(ObjectId ownerId, long version, Document recipe) {
+        this.partitions.update(ownerId, version, partition -> partition.add(recipe));
+    }
+
+    public void recipeRemoved(ObjectId ownerId, long version, ObjectId recipeId) {
+        this.partitions.update(ownerId, version, partition -> partition.remove(recipeId));
+    }
+
+    private Partition build(ObjectId ownerId) {
+        long started = System.currentTimeMillis();
+        Partition partition = new Partition();
+        this.source.forEach(ownerId, partition::add, "title", "ingredients");
+
+        LOGGER.info("Indexed {} titles, {} ingredients for {} in {}ms",
+            partition.titles.size(), partition.ingredients.size(), ownerId, System.currentTimeMillis() - started);
+        return partition;
+    }
+
+    /** One owner's recipes */
+    static class Partition {
+        // all guarded by "this"
+        private final PrefixTrie<Title> titles = new PrefixTrie<>();
+        private final PrefixTrie<int[]> ingredients = new PrefixTrie<>();
+        // what each recipe added, so it can be taken out again
+        private final Map<ObjectId, Added> added = new HashMap<>();
+
+        synchronized void add(Document recipe) {
+            ObjectId id = recipe.getObjectId("_id");
+            remove(id);
+
+            String title = Terms.text(recipe, "title").stream().findFirst().map(String::trim).orElse("");
+            String titleKey = StringUtils.trimToNull(String.join(" ", Terms.words(title)));
+            if (titleKey != null) {
+                this.titles.put(titleKey, new Title(id, title, this.titles.get(titleKey)));
+            }
+
+            Set<String> words = new LinkedHashSet<>();
+            for (String line : Terms.text(recipe, "ingredients")) {
+                words.addAll(Terms.ingredientWords(line));
+            }
+            for (String word : words) {
+                int[] count = this.ingredients.get(word);
+                if (count == null) this.ingredients.put(word, count = new int[1]);
+                count[0]++;
+            }
+
+            this.added.put(id, new Added(titleKey, words.toArray(new String[0])));
+        }
+
+        synchronized void remove(ObjectId id) {
+            Added added = this.added.remove(id);
+            if (added == null) return;
+
+            if (added.titleKey != null) {
+                Title remaining = Title.without(this.titles.get(added.titleKey), id);
+                if (remaining == null) {
+                    this.titles.remove(added.titleKey);
+                } else {
+                    this.titles.put(added.titleKey, remaining);
+                }
+            }
+            for (String word : added.words) {
+                int[] count = this.ingredients.get(word);
+                if (count != null && --count[0] <= 0) this.ingredients.remove(word);
+            }
+        }
+
+        /** Titles in alphabetical order */
+        synchronized List<Document> titles(String prefix, int limit) {
+            List<Document> found = new ArrayList<>();
+            this.titles.forEachWithPrefix(prefix, (key, title) -> {
+                for (Title t = title; t != null && found.size() < limit; t = t.next) {
+                    found.add(new Document("_id", t.id).append("title", t.title));
+                }
+                return found.size() < limit;
+            });
+            return found;
+        }
+
+        /** Ingredients in the most recipes first */
+        synchronized List<String> ingredients(String prefix, int limit) {
+            // worst first, so it's the one dropped: fewest recipes, then last alphabetically
+            Comparator<Map.Entry<String, Integer>> worstFirst = Map.Entry.<String, Integer>comparingByValue()
+                .thenComparing(Map.Entry.comparingByKey(Comparator.reverseOrder()));
+            PriorityQueue<Map.Entry<String, Integer>> top = new PriorityQueue<>(limit + 1, worstFirst);
+            this.ingredients.forEachWithPrefix(prefix, (word, count) -> {
+                top.add(Map.entry(word, count[0]));
+                if (top.size() > limit) top.poll();
+                return true;
+            });
+
+            List<Map.Entry<String, Integer>> sorted = new ArrayList<>(top);
+            sorted.sort(worstFirst.reversed());
+            List<String> found = new ArrayList<>(sorted.size());
+            sorted.forEach(entry -> found.add(entry.getKey()));
+            return found;
+        }
+    }
+
+    /** The recipes sharing a title, as a linked list since it's nearly always
+     * just the one.
+     */
+    private static class Title {
+        private final ObjectId id;
+        private final String title;
+        private final Title next;
+
+        private Title(ObjectId id, String title, Title next) {
+            this.id = id;
+            this.title = title;
+            this.next = next;
+        }
+
+        private static Title without(Title list, ObjectId id) {
+            if (list == null) return null;
+            if (list.id.equals(id)) return list.next;
+            Title rest = without(list.next, id);
+            return rest == list.next ? list : new Title(list.id, list.title, rest);
+        }
+    }
+
+    private static class Added {
+        private final String titleKey;
+        private final String[] words;
+
+        private Added(String titleKey, String[] words) {
+            this.titleKey = titleKey;
+            this.words = words;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.search;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.bson.Document;
+
+/** Breaks recipe text into the terms indexes are keyed by.
+ *
+ * Text is lower cased, accents are dropped, and it's split on anything that
+ * isn't a letter or digit.  For matching, words are reduced to a crude stem,
+ * just enough that plurals find their singular ("tomatoes", "tomato") the way
+ * mongo's $text does, and common English words are skipped.
+ */
+public class Terms {
+    /** The recipe fields searched by keyword */
+    public static final String[] FIELDS = { "title", "ingredients", "directions" };
+
+    private static final Pattern SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+
+    private static final Set<String> STOP_WORDS = Set.of(
+        "a", "an", "and", "are", "as", "at", "be", "but", "by", "for", "from", "in", "into",
+        "is", "it", "its", "of", "on", "or", "so", "that", "the", "then", "this", "to", "until",
+        "with");
+
+    // measures and preparation that say nothing about what the ingredient is
+    private static final Set<String> INGREDIENT_NOISE = Set.of(
+        "bunch", "can", "chopped", "clove", "cup", "dash", "diced", "fresh", "gram", "grated",
+        "large", "litre", "liter", "medium", "minced", "optional", "ounce", "package", "peeled",
+        "pinch", "pint", "pound", "quart", "sliced", "small", "tablespoon", "taste", "tbsp",
+        "teaspoon", "tsp", "whole");
+
+    /** Lower cased, unaccented words, in order, including stop words.
+     */
+    public static List<String> words(String text) {
+        List<String> words = new ArrayList<>();
+        if (text == null) return words;
+
+        String folded = MARKS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("")
+            .toLowerCase(Locale.ROOT);
+        for (String word : SEPARATOR.split(folded)) {
+            if (!word.isEmpty()) words.add(word);
+        }
+        return words;
+    }
+
+    /** The stemmed terms to index or search for, in order, without stop words.
+     */
+    public static List<String> terms(String text) {
+        List<String> terms = new ArrayList<>();
+        for (String word : words(text)) {
+            if (!STOP_WORDS.contains(word)) terms.add(stem(word));
+        }
+        return terms;
+    }
+
+    /** Whether the word is too common to be worth searching for.
+     */
+    public static boolean isStopWord(String word) {
+        return STOP_WORDS.contains(word);
+    }
+
+    /** The words in a line of a recipe's ingredients that name things, i.e.
+     * without quantities, measures or preparation: "2 cups chopped onions"
+     * gives "onions".
+     */
+    public static List<String> ingredientWords(String line) {
+        List<String> words = new ArrayList<>();
+        for (String word : words(line)) {
+            if (word.length() < 3 || !Character.isLetter(word.charAt(0)) || STOP_WORDS.contains(word)) continue;
+            if (!INGREDIENT_NOISE.contains(stem(word))) words.add(word);
+        }
+        return words;
+    }
+
+    /** Strip plural endings, after Harman's "S" stemmer.
+     */
+    public static String stem(String word) {
+        if (word.length() <= 3) return word;
+
+        if (word.endsWith("ies") && !word.endsWith("eies") && !word.endsWith("aies")) {
+            return word.substring(0, word.length() - 3) + "y";
+        }
+        if (word.endsWith("oes") || word.endsWith("ches") || word.endsWith("shes") || word.endsWith("sses")) {
+            return word.substring(0, word.length() - 2);
+        }
+        if (word.endsWith("s") && !word.endsWith("us") && !word.endsWith("ss")) {
+            return word.substring(0, word.length() - 1);
+        }
+        return word;
+    }
+
+    /** All the searchable text in a recipe, field by field.  Lists, e.g. of
+     * ingredients, give one string per entry.
+     */
+    public static List<String> text(Document recipe, String... fields) {
+        List<String> text = new ArrayList<>();
+        for (String field : fields) {
+            Object value = recipe.get(field);
+            if (value instanceof String) {
+                text.add((String) value);
+            } else if (value instanceof Collection) {
+                for (Object entry : (Collection<?>) value) {
+                    if (entry instanceof String) text.add((String) entry);
+                }
+            }
+        }
+        return text;
+    }
+}
@@ -21,6 +21,8 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.concurrent.TimeUnit;
+
 import org.bson.types.ObjectId;
 import org.junit.Test;
 
@@ -43,4 +45,36 @@ public class AuthenticatorTest {
         assertEquals("authenticated", id, auth.authenticate(token).orElse(null));
         assertNull("not authenticated", auth.authenticate(id.toHexString() + ".999999.ABDEF19190").orElse(null));
     }
+
+    @Test
+    public void testFileCapability() {
+        Authenticator auth = new Authenticator(new Signature(null));
+
+        ObjectId id = new ObjectId();
+        String capability = auth.generateFileCapability(id);
+
+        assertEquals("authenticated", id, auth.authenticateFileCapability(capability).orElse(null));
+        assertNull("other account", auth.authenticateFileCapability(
+            new ObjectId().toHexString() + capability.substring(24)).orElse(null));
+        assertNull("garbage", auth.authenticateFileCapability("nope").orElse(null));
+
+        // good for the rest of this week and all of the next, then expires
+        long now = System.currentTimeMillis();
+        long week = TimeUnit.DAYS.toMillis(7);
+        String issued = auth.generateFileCapability(id, now);
+        assertEquals("same all week", issued, auth.generateFileCapability(id, now - now % week + week - 1));
+        assertEquals("next week", id, auth.authenticateFileCapability(issued, now + week).orElse(null));
+        assertNull("expired", auth.authenticateFileCapability(issued, now + 2 * week).orElse(null));
+        long expires = now - now % week + 2 * week;
+        assertEquals("seconds left", (expires - now) / 1000, auth.fileCapabilitySecondsLeft(issued, now));
+        assertEquals("none left", 0, auth.fileCapabilitySecondsLeft(issued, expires));
+        String[] split = issued.split("\\.");
+        assertNull("extended", auth.authenticateFileCapability(
+            split[0] + "." + (Long.valueOf(split[1]) + 1) + "." + split[2], now).orElse(null));
+
+        // an auth token's signature doesn't work as a capability
+        String[] token = auth.generateSignedToken(id).split("\\.");
+        assertNull("auth token", auth.authenticateFileCapability(
+            id.toHexString() + "." + token[1] + "." + token[2]).orElse(null));
+    }
 }
@@ -0,0 +1,45 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Optional;
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+public class PageCursorsTest {
+    @Test
+    public void testAll() {
+        PageCursors cursors = new PageCursors(new Signature("the key"));
+        ObjectId account = new ObjectId();
+        ObjectId last = new ObjectId();
+
+        String cursor = cursors.generate(account, "soup/", last);
+        assertEquals("round trip", Optional.of(last), cursors.verify(account, "soup/", cursor));
+
+        assertFalse("other account", cursors.verify(new ObjectId(), "soup/", cursor).isPresent());
+        assertFalse("other query", cursors.verify(account, "stew/", cursor).isPresent());
+        assertFalse("edited", cursors.verify(account, "soup/", new ObjectId().toHexString() + cursor.substring(24)).isPresent());
+        assertFalse("other key", new PageCursors(new Signature("another key")).verify(account, "soup/", cursor).isPresent());
+        assertFalse("garbage", cursors.verify(account, "soup/", "xyz").isPresent());
+        assertFalse("blank", cursors.verify(account, "soup/", "").isPresent());
+    }
+}
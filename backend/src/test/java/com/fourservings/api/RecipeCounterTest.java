@@ -0,0 +1,108 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.fourservings.api.db.AbstractMongoTest;
+import com.fourservings.api.files.FileDeletionQueue;
+import com.fourservings.api.search.FuzzyIndex;
+import com.fourservings.api.search.IngredientIndex;
+import com.fourservings.api.search.KeywordIndex;
+import com.fourservings.api.search.OwnerVersions;
+import com.fourservings.api.search.RecipeSource;
+import com.fourservings.api.search.SearchCache;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Updates;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+public class RecipeCounterTest extends AbstractMongoTest {
+    @Test
+    public void testCounts() {
+        MongoCollection<Document> col = db.getCollection(RecipeManager.COLLECTION_RECIPE);
+        ObjectId ownerId = new ObjectId();
+        ObjectId group1 = new ObjectId();
+        ObjectId group2 = new ObjectId();
+        col.insertMany(List.of(
+            new Document("ownerId", ownerId).append("groups", List.of(new Document("_id", group1))),
+            new Document("ownerId", ownerId)));
+
+        RecipeCounter counter = new RecipeCounter(() -> db, "0");
+        KeywordIndex keywords = new KeywordIndex(new RecipeSource(() -> db), new OwnerVersions(() -> db), "mongo", "");
+        IngredientIndex ingredients = new IngredientIndex(new RecipeSource(() -> db), new OwnerVersions(() -> db), "");
+        RecipeManager mgr = new RecipeManager(db, mock(Repository.class), mock(FileDeletionQueue.class),
+            Set.of(), keywords, ingredients, new FuzzyIndex(new RecipeSource(() -> db), new OwnerVersions(() -> db), ""), counter, new SearchCache(new OwnerVersions(() -> db), "0"), new OwnerVersions(() -> db), "false");
+
+        assertEquals("seeded", 2, counter.get(ownerId, null));
+        assertEquals("seeded group", 1, counter.get(ownerId, group1));
+        assertEquals("seeded empty group", 0, counter.get(ownerId, group2));
+        assertEquals("seeds", 3, counter.getSeeds());
+
+        Document recipe = mgr.create(ownerId, new Document("title", "New")
+            .append("groups", List.of(new Document("_id", group1))));
+        assertEquals("created", 3, counter.get(ownerId, null));
+        assertEquals("created in group", 2, counter.get(ownerId, group1));
+
+        mgr.update(ownerId, new Document("_id", recipe.get("_id"))
+            .append("groups", List.of(new Document("_id", group2))));
+        assertEquals("moved out", 1, counter.get(ownerId, group1));
+        assertEquals("moved in", 1, counter.get(ownerId, group2));
+        assertEquals("search total", Integer.valueOf(1), mgr.search(ownerId, null, group2, 0, 10).getRight());
+
+        mgr.remove(ownerId, recipe.getObjectId("_id"));
+        assertEquals("removed", 2, counter.get(ownerId, null));
+        assertEquals("removed from group", 0, counter.get(ownerId, group2));
+        assertEquals("no more seeds", 3, counter.getSeeds());
+
+        // drift, e.g. from a write that didn't make it
+        db.getCollection(RecipeCounter.COLLECTION).updateOne(
+            Filters.eq("_id", new Document("ownerId", ownerId).append("groupId", null)), Updates.inc("count", 5));
+        assertEquals("drifted", 7, counter.get(ownerId, null));
+
+        counter.reconcile();
+        assertEquals("reconciled", 2, counter.get(ownerId, null));
+        assertEquals("unchanged", 1, counter.get(ownerId, group1));
+        assertEquals("empty group removed, so seeded again", 0, counter.get(ownerId, group2));
+        assertEquals("seeds", 4, counter.getSeeds());
+    }
+
+    @Test
+    public void testLease() {
+        db.getCollection(RecipeCounter.LEASE_COLLECTION).drop();
+        RecipeCounter node1 = new RecipeCounter(() -> db, "24");
+        RecipeCounter node2 = new RecipeCounter(() -> db, "24");
+        Date now = new Date();
+
+        assertTrue("first takes it", node1.lease(now));
+        assertFalse("held", node2.lease(now));
+        assertFalse("held until the next run", node1.lease(new Date(now.getTime() + TimeUnit.HOURS.toMillis(23))));
+        assertTrue("next run", node2.lease(new Date(now.getTime() + TimeUnit.HOURS.toMillis(24))));
+    }
+}
@@ -0,0 +1,53 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import javax.ws.rs.BadRequestException;
+
+import org.bson.Document;
+import org.junit.Test;
+
+public class RecipeFieldsTest {
+    @Test
+    public void testProjection() {
+        assertNull("none", RecipeFields.projection(null));
+        assertNull("blank", RecipeFields.projection(" , "));
+
+        assertEquals("listed, with id", new Document("_id", 1).append("title", 1).append("notes", 1),
+            RecipeFields.projection("title, notes"));
+
+        Document summary = RecipeFields.projection("summary,notes");
+        assertEquals("summary and more", RecipeFields.SUMMARY_FIELDS.size() + 2, summary.size());
+        assertEquals("summary", 1, summary.get("title"));
+        assertEquals("more", 1, summary.get("notes"));
+        assertNull("no long text", summary.get("directions"));
+
+        for (String invalid : new String[] { "$where", "groups.name", "title:0", "a b" }) {
+            try {
+                RecipeFields.projection(invalid);
+                fail("accepted " + invalid);
+            } catch (BadRequestException e) {
+                // expected
+            }
+        }
+    }
+}
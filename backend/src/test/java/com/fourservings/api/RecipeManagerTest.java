@@ -21,11 +21,19 @@ import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
 import java.util.List;
+import java.util.Set;
 
 import javax.ws.rs.BadRequestException;
 import javax.ws.rs.NotFoundException;
 
 import com.fourservings.api.db.AbstractMongoTest;
+import com.fourservings.api.files.FileDeletionQueue;
+import com.fourservings.api.search.FuzzyIndex;
+import com.fourservings.api.search.IngredientIndex;
+import com.fourservings.api.search.KeywordIndex;
+import com.fourservings.api.search.OwnerVersions;
+import com.fourservings.api.search.RecipeSource;
+import com.fourservings.api.search.SearchCache;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.model.Filters;
 
@@ -35,6 +43,27 @@ import org.bson.types.ObjectId;
 import org.junit.Test;
 
 public class RecipeManagerTest extends AbstractMongoTest {
+    private static RecipeManager manager(Repository repo, FileDeletionQueue deletions) {
+        return manager(repo, deletions, new KeywordIndex(new RecipeSource(() -> db), new OwnerVersions(() -> db), "mongo", ""));
+    }
+
+    private static RecipeManager manager(Repository repo, FileDeletionQueue deletions, KeywordIndex keywords) {
+        return manager(repo, deletions, keywords, "false");
+    }
+
+    private static RecipeManager manager(Repository repo, FileDeletionQueue deletions, KeywordIndex keywords, String facet) {
+        return manager(repo, deletions, keywords, facet, "0");
+    }
+
+    private static RecipeManager manager(Repository repo, FileDeletionQueue deletions, KeywordIndex keywords,
+            String facet, String cacheMegabytes) {
+        IngredientIndex ingredients = new IngredientIndex(new RecipeSource(() -> db), new OwnerVersions(() -> db), "");
+        FuzzyIndex fuzzy = new FuzzyIndex(new RecipeSource(() -> db), new OwnerVersions(() -> db), "");
+        OwnerVersions versions = new OwnerVersions(() -> db);
+        return new RecipeManager(db, repo, deletions, Set.of(keywords, ingredients, fuzzy), keywords, ingredients,
+            fuzzy, new RecipeCounter(() -> db, "0"), new SearchCache(versions, cacheMegabytes), versions, facet);
+    }
+
     @Test
     public void testRecipeCRUD() {
         Repository repo = mock(Repository.class);
@@ -44,7 +73,7 @@ public class RecipeManagerTest extends AbstractMongoTest {
         
         ObjectId ownerId = new ObjectId();
         
-        RecipeManager mgr = new RecipeManager(db, repo);
+        RecipeManager mgr = manager(repo, mock(FileDeletionQueue.class));
         Document recipe = mgr.create(ownerId, new Document("title", "Title"));
         assertNotNull("new recipe id", recipe.get("_id"));
 
@@ -97,13 +126,14 @@ public class RecipeManagerTest extends AbstractMongoTest {
     @Test
     public void testPhotoRemoval() {
         Repository repo = mock(Repository.class);
+        FileDeletionQueue deletions = mock(FileDeletionQueue.class);
 
         MongoCollection<Document> col = db.getCollection(RecipeManager.COLLECTION_RECIPE);
         col.drop();
         
         ObjectId ownerId = new ObjectId();
         
-        RecipeManager mgr = new RecipeManager(db, repo);
+        RecipeManager mgr = manager(repo, deletions);
         ObjectId id = mgr.create(ownerId, new Document("images", List.of(
             "/a123", "/b123", "https://fourservings.com/image.jpg"
         ))).get("_id", ObjectId.class);
@@ -114,12 +144,44 @@ public class RecipeManagerTest extends AbstractMongoTest {
             .append("images", List.of(
                 "/a123", "https://fourservings.com/image.jpg"
             )));
-        verify(repo).delete(ownerId.toHexString() + "/b123");
+        verify(deletions).enqueue(List.of(ownerId.toHexString() + "/b123"));
 
         mgr.remove(ownerId, id);
 
-        verify(repo).delete(ownerId.toHexString() + "/a123");
-        verify(repo, times(2)).delete(any()); // repo called twice and only twice
+        verify(deletions).enqueue(List.of(ownerId.toHexString() + "/a123"));
+        verify(deletions, times(2)).enqueue(any()); // queued twice and only twice
+        verify(repo, never()).delete(any()); // nothing deleted within the request
+    }
+
+    @Test
+    public void testDuplicateCopiesPhotos() throws Exception {
+        Repository repo = mock(Repository.class);
+        when(repo.copy(any(), any())).thenReturn(true);
+
+        MongoCollection<Document> col = db.getCollection(RecipeManager.COLLECTION_RECIPE);
+        col.drop();
+
+        ObjectId ownerId = new ObjectId();
+
+        RecipeManager mgr = manager(repo, mock(FileDeletionQueue.class));
+        mgr.create(ownerId, new Document("images", List.of("/a123", "/b123")));
+        verify(repo, never()).copy(any(), any());
+
+        // the same images in a second recipe get copied rather than shared
+        Document copy = mgr.create(ownerId, new Document("images", List.of(
+            "/a123", "/c123", "https://fourservings.com/image.jpg"
+        )));
+        List<String> images = copy.getList("images", String.class);
+        assertEquals(3, images.size());
+        assertNotEquals("/a123", images.get(0));
+        assertEquals("/c123", images.get(1));
+        assertEquals("https://fourservings.com/image.jpg", images.get(2));
+        verify(repo).copy(ownerId.toHexString() + "/a123", ownerId.toHexString() + images.get(0));
+        verify(repo, times(1)).copy(any(), any());
+
+        // and other owners' recipes don't count
+        mgr.create(new ObjectId(), new Document("images", List.of("/b123")));
+        verify(repo, times(1)).copy(any(), any());
     }
 
     @Test
@@ -150,7 +212,7 @@ public class RecipeManagerTest extends AbstractMongoTest {
                 .append("title", "Chicken Kiev")
         ));
         
-        RecipeManager mgr = new RecipeManager(db, mock(Repository.class));
+        RecipeManager mgr = manager(mock(Repository.class), mock(FileDeletionQueue.class));
 
         Pair<List<Document>, Integer> results = mgr.search(ownerId, null, null, 0, 2);
         assertEquals("search all, total", Integer.valueOf(4), results.getRight());
@@ -159,6 +221,146 @@ public class RecipeManagerTest extends AbstractMongoTest {
         assertEquals("keyword search results", Integer.valueOf(3), mgr.search(ownerId, "chicken", null, 0, 100).getRight());
 
         assertEquals("group search", Integer.valueOf(2), mgr.search(ownerId, null, group1, 0, 100).getRight());
+
+        results = mgr.search(ownerId, null, null, results.getLeft().get(1).getObjectId("_id"), 0, 2);
+        assertEquals("after, total is still all of them", Integer.valueOf(4), results.getRight());
+        assertEquals("after, the rest", 2, results.getLeft().size());
+        assertEquals("after, oldest last", "Chicken Soup", results.getLeft().get(1).get("title"));
+
+        RecipeManager faceted = manager(mock(Repository.class), mock(FileDeletionQueue.class),
+            new KeywordIndex(new RecipeSource(() -> db), new OwnerVersions(() -> db), "mongo", ""), "true");
+        results = faceted.search(ownerId, "chicken", null, 0, 2);
+        assertEquals("faceted total", Integer.valueOf(3), results.getRight());
+        assertEquals("faceted page", 2, results.getLeft().size());
+        results = faceted.search(ownerId, "chicken", null, results.getLeft().get(1).getObjectId("_id"), 0, 2);
+        assertEquals("faceted, after", 1, results.getLeft().size());
+        assertEquals("faceted, nothing", Integer.valueOf(0), faceted.search(ownerId, "durian", null, 0, 2).getRight());
+
+        RecipeManager indexed = manager(mock(Repository.class), mock(FileDeletionQueue.class),
+            new KeywordIndex(new RecipeSource(() -> db), new OwnerVersions(() -> db), KeywordIndex.ENGINE, ""));
+        assertEquals("indexed keyword search", Integer.valueOf(3), indexed.search(ownerId, "chicken", null, 0, 100).getRight());
+        assertEquals("indexed keyword search, group", Integer.valueOf(2), indexed.search(ownerId, "chicken", group1, 0, 100).getRight());
+        assertEquals("indexed keyword search, excluded", Integer.valueOf(1), indexed.search(ownerId, "soup -chicken", null, 0, 100).getRight());
+
+        Document created = indexed.create(ownerId, new Document("title", "Chicken Pot Pie"));
+        results = indexed.search(ownerId, "chicken", null, 0, 1);
+        assertEquals("indexed after create", Integer.valueOf(4), results.getRight());
+        assertEquals("newest first", created.get("_id"), results.getLeft().get(0).get("_id"));
+
+        results = indexed.search(ownerId, "chicken", null, created.getObjectId("_id"), 0, 100);
+        assertEquals("indexed, after", 3, results.getLeft().size());
+
+        indexed.remove(ownerId, created.getObjectId("_id"));
+        assertEquals("unindexed after remove", Integer.valueOf(3), indexed.search(ownerId, "chicken", null, 0, 100).getRight());
+
+        Document summary = RecipeFields.projection(RecipeFields.SUMMARY);
+        for (RecipeManager m : List.of(mgr, faceted, indexed)) {
+            results = m.search(ownerId, "chicken", null, null, 0, 100, summary);
+            assertEquals("projected, total", Integer.valueOf(3), results.getRight());
+            for (Document recipe : results.getLeft()) {
+                assertNotNull("projected, has id", recipe.get("_id"));
+                assertFalse("projected, no ingredients", recipe.containsKey("ingredients"));
+                assertFalse("projected, no directions", recipe.containsKey("directions"));
+            }
+        }
+        results = mgr.search(ownerId, null, group1, null, 0, 100, RecipeFields.projection("title"));
+        assertEquals("projected, just the title", Set.of("_id", "title"), results.getLeft().get(1).keySet());
+        Document titleOnly = mgr.get(ownerId, results.getLeft().get(1).getObjectId("_id"), RecipeFields.projection("title"));
+        assertEquals("projected get", Set.of("_id", "title"), titleOnly.keySet());
+
+        results = mgr.searchFuzzy(ownerId, "chiken soop", 0, 100, null);
+        assertEquals("fuzzy, either word", Integer.valueOf(3), results.getRight());
+        assertEquals("fuzzy, both words first", "Chicken Soup", results.getLeft().get(0).get("title"));
+        assertEquals("fuzzy, nothing close", Integer.valueOf(0), mgr.searchFuzzy(ownerId, "durian", 0, 100, null).getRight());
+
+        for (RecipeManager m : List.of(mgr, indexed)) {
+            results = m.searchByRelevance(ownerId, "chicken soup", null, 0, 100, summary);
+            assertEquals("relevance, total", Integer.valueOf(4), results.getRight());
+            assertEquals("relevance, both terms first", "Chicken Soup", results.getLeft().get(0).get("title"));
+            Document whole = results.getLeft().stream()
+                .filter(recipe -> recipe.getList("snippets", Document.class).stream()
+                    .anyMatch(snippet -> "ingredients".equals(snippet.get("field"))))
+                .findFirst().orElseThrow();
+            assertEquals("relevance, snippet", "1 whole chicken",
+                whole.getList("snippets", Document.class).get(0).get("text"));
+            assertFalse("relevance, still projected", whole.containsKey("ingredients"));
+        }
+        assertEquals("relevance, group", Integer.valueOf(2), mgr.searchByRelevance(ownerId, "chicken", group1, 0, 100, null).getRight());
+    }
+
+    @Test
+    public void searchCacheAcrossNodes() {
+        db.getCollection(RecipeManager.COLLECTION_RECIPE).drop();
+        db.getCollection(RecipeCounter.COLLECTION).drop();
+        ObjectId ownerId = new ObjectId();
+
+        // two app nodes, each with its own cache
+        RecipeManager node1 = manager(mock(Repository.class), mock(FileDeletionQueue.class),
+            new KeywordIndex(new RecipeSource(() -> db), new OwnerVersions(() -> db), "mongo", ""), "false", "1");
+        RecipeManager node2 = manager(mock(Repository.class), mock(FileDeletionQueue.class),
+            new KeywordIndex(new RecipeSource(() -> db), new OwnerVersions(() -> db), "mongo", ""), "false", "1");
+
+        node1.create(ownerId, new Document("title", "Chicken Soup"));
+        assertEquals("cached", Integer.valueOf(1), node2.search(ownerId, null, null, 0, 10).getRight());
+        assertEquals("cached", Integer.valueOf(1), node2.search(ownerId, null, null, 0, 10).getRight());
+
+        Document created = node1.create(ownerId, new Document("title", "Tomato Soup"));
+        assertEquals("other node's create", Integer.valueOf(2), node2.search(ownerId, null, null, 0, 10).getRight());
+
+        node1.remove(ownerId, created.getObjectId("_id"));
+        assertEquals("other node's remove", Integer.valueOf(1), node2.search(ownerId, null, null, 0, 10).getRight());
+    }
+
+    @Test
+    public void indexesAcrossNodes() {
+        db.getCollection(RecipeManager.COLLECTION_RECIPE).drop();
+        db.getCollection(RecipeCounter.COLLECTION).drop();
+        ObjectId ownerId = new ObjectId();
+
+        // two app nodes, each with its own indexes
+        RecipeManager node1 = manager(mock(Repository.class), mock(FileDeletionQueue.class),
+            new KeywordIndex(new RecipeSource(() -> db), new OwnerVersions(() -> db), KeywordIndex.ENGINE, ""));
+        RecipeManager node2 = manager(mock(Repository.class), mock(FileDeletionQueue.class),
+            new KeywordIndex(new RecipeSource(() -> db), new OwnerVersions(() -> db), KeywordIndex.ENGINE, ""));
+
+        node1.create(ownerId, new Document("title", "Chicken Soup"));
+        assertEquals("built", Integer.valueOf(1), node2.search(ownerId, "chicken", null, 0, 10).getRight());
+
+        Document created = node1.create(ownerId, new Document("title", "Chicken Kiev"));
+        assertEquals("other node's create", Integer.valueOf(2), node2.search(ownerId, "chicken", null, 0, 10).getRight());
+
+        node1.remove(ownerId, created.getObjectId("_id"));
+        assertEquals("other node's remove", Integer.valueOf(1), node2.search(ownerId, "chicken", null, 0, 10).getRight());
+    }
+
+    @Test
+    public void searchByIngredients() {
+        MongoCollection<Document> col = db.getCollection(RecipeManager.COLLECTION_RECIPE);
+        col.drop();
+
+        ObjectId ownerId = new ObjectId();
+        col.insertMany(List.of(
+            new Document("ownerId", ownerId)
+                .append("title", "Chicken Soup")
+                .append("ingredients", List.of("1 whole chicken", "2 carrots", "1 onion")),
+            new Document("ownerId", ownerId)
+                .append("title", "Roast Chicken")
+                .append("ingredients", List.of("1 whole chicken", "Salt")),
+            new Document("ownerId", new ObjectId())
+                .append("title", "Chicken Kiev")
+                .append("ingredients", List.of("2 chicken breasts"))
+        ));
+
+        RecipeManager mgr = manager(mock(Repository.class), mock(FileDeletionQueue.class));
+
+        Pair<List<Document>, Integer> results = mgr.searchByIngredients(ownerId, List.of("chicken, carrots"), 0, 10);
+        assertEquals("total", Integer.valueOf(2), results.getRight());
+        assertEquals("best covered first", "Chicken Soup", results.getLeft().get(0).get("title"));
+
+        Document match = results.getLeft().get(0).get("match", Document.class);
+        assertEquals("have", 2, match.get("have"));
+        assertEquals("of", 3, match.get("of"));
+        assertEquals("missing", List.of("1 onion"), match.get("missing"));
     }
 
     @Test
@@ -176,7 +378,7 @@ public class RecipeManagerTest extends AbstractMongoTest {
             new Document("ownerId", new ObjectId()).append("name", "Other Owner's")
         ));
 
-        RecipeManager mgr = new RecipeManager(db, mock(Repository.class));
+        RecipeManager mgr = manager(mock(Repository.class), mock(FileDeletionQueue.class));
 
         assertEquals("get all groups", 2, mgr.getGroups(ownerId).size());
 
@@ -0,0 +1,127 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api;
+
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import com.fourservings.api.config.Configuration;
+import com.fourservings.api.db.MongoDatabaseProvider;
+import com.fourservings.api.files.FileDeletionQueue;
+import com.fourservings.api.search.FuzzyIndex;
+import com.fourservings.api.search.IngredientIndex;
+import com.fourservings.api.search.KeywordIndex;
+import com.fourservings.api.search.OwnerVersions;
+import com.fourservings.api.search.RecipeSource;
+import com.fourservings.api.search.SearchCache;
+import com.mongodb.client.MongoDatabase;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+/** Compares keyword searches that count and then find, against a single
+ * $facet aggregation (SEARCH_FACET).  Needs a mongo at MONGODB_URI, and
+ * isn't run with the tests; run it with, e.g.:
+ *
+ *   mvn test-compile exec:java -Dexec.classpathScope=test \
+ *       -Dexec.mainClass=com.fourservings.api.SearchBenchmark -Dexec.args="20000 200"
+ */
+public class SearchBenchmark {
+    private static final String[] WORDS = {
+        "chicken", "beef", "tomato", "onion", "garlic", "soup", "roast", "salad", "bread", "rice",
+        "lemon", "butter", "pepper", "cheese", "pasta", "curry", "bean", "carrot", "potato", "apple" };
+
+    /**
+     * @param args Number of recipes, and number of searches per mode
+     */
+    public static void main(String[] args) {
+        int recipes = args.length > 0 ? NumberUtils.toInt(args[0], 20000) : 20000;
+        int searches = args.length > 1 ? NumberUtils.toInt(args[1], 200) : 200;
+
+        MongoDatabaseProvider provider = new MongoDatabaseProvider(
+            Configuration.get("MONGODB_URI"), "benchmark_" + System.currentTimeMillis());
+        MongoDatabase db = provider.get();
+        try {
+            ObjectId ownerId = new ObjectId();
+            RecipeManager counting = manager(db, "false");
+            RecipeManager faceted = manager(db, "true");
+
+            Random random = new Random(1);
+            List<Document> batch = new ArrayList<>();
+            for (int i = 0; i < recipes; i++) {
+                batch.add(new Document("ownerId", ownerId)
+                    .append("title", WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)])
+                    .append("ingredients", List.of(WORDS[random.nextInt(WORDS.length)], WORDS[random.nextInt(WORDS.length)])));
+                if (batch.size() == 1000) {
+                    db.getCollection(RecipeManager.COLLECTION_RECIPE).insertMany(batch);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) db.getCollection(RecipeManager.COLLECTION_RECIPE).insertMany(batch);
+
+            // warm up both, then alternate so neither gets a warmer cache
+            run(counting, ownerId, searches / 4, random);
+            run(faceted, ownerId, searches / 4, random);
+            long[] countingNanos = new long[searches];
+            long[] facetedNanos = new long[searches];
+            for (int i = 0; i < searches; i++) {
+                countingNanos[i] = run(counting, ownerId, 1, random);
+                facetedNanos[i] = run(faceted, ownerId, 1, random);
+            }
+
+            System.out.printf("%d recipes, %d searches each%n", recipes, searches);
+            report("count + find", countingNanos);
+            report("$facet", facetedNanos);
+        } finally {
+            db.drop();
+            provider.close();
+        }
+    }
+
+    private static RecipeManager manager(MongoDatabase db, String facet) {
+        return new RecipeManager(db, mock(Repository.class), mock(FileDeletionQueue.class), Set.of(),
+            new KeywordIndex(new RecipeSource(() -> db), new OwnerVersions(() -> db), "mongo", ""),
+            new IngredientIndex(new RecipeSource(() -> db), new OwnerVersions(() -> db), ""),
+            new FuzzyIndex(new RecipeSource(() -> db), new OwnerVersions(() -> db), ""),
+            new RecipeCounter(() -> db, "0"), new SearchCache(new OwnerVersions(() -> db), "0"), new OwnerVersions(() -> db), facet);
+    }
+
+    /** Run searches for random words and pages, returning the nanoseconds taken */
+    private static long run(RecipeManager mgr, ObjectId ownerId, int searches, Random random) {
+        long started = System.nanoTime();
+        for (int i = 0; i < searches; i++) {
+            mgr.search(ownerId, WORDS[random.nextInt(WORDS.length)], null, random.nextInt(20) * 20, 20);
+        }
+        return System.nanoTime() - started;
+    }
+
+    private static void report(String label, long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        System.out.printf("%-14s median %6.2fms  p95 %6.2fms  mean %6.2fms%n", label,
+            sorted[sorted.length / 2] / 1e6,
+            sorted[(int) (sorted.length * 0.95)] / 1e6,
+            Arrays.stream(sorted).average().orElse(0) / 1e6);
+    }
+}
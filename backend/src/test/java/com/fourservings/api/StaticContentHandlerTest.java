@@ -0,0 +1,37 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class StaticContentHandlerTest {
+    @Test
+    public void testAccepts() {
+        assertTrue(StaticContentHandler.accepts("gzip, deflate, br", "br"));
+        assertTrue(StaticContentHandler.accepts("gzip;q=0.5, br", "gzip"));
+        assertTrue("case insensitive", StaticContentHandler.accepts("GZIP", "gzip"));
+        assertTrue("wildcard", StaticContentHandler.accepts("*", "br"));
+        assertFalse("refused", StaticContentHandler.accepts("gzip, br;q=0", "br"));
+        assertFalse("refused despite wildcard", StaticContentHandler.accepts("*, br; q=0.0", "br"));
+        assertFalse("not listed", StaticContentHandler.accepts("gzip", "br"));
+        assertFalse("no header", StaticContentHandler.accepts(null, "gzip"));
+    }
+}
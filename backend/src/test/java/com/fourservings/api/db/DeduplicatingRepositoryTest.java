@@ -0,0 +1,277 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.fourservings.api.ContentHash;
+import com.fourservings.api.Repository;
+import com.fourservings.api.Repository.Item;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Updates;
+
+import org.apache.commons.io.IOUtils;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DeduplicatingRepositoryTest extends AbstractMongoTest {
+    private MongoRepository blobs;
+    private DeduplicatingRepository repo;
+
+    @Before
+    public void setUp() {
+        db.getCollection(MongoRepository.COLLECTION).drop();
+        db.getCollection(DeduplicatingRepository.COLLECTION_ALIAS).drop();
+        db.getCollection(DeduplicatingRepository.COLLECTION_BLOB).drop();
+
+        blobs = new MongoRepository(() -> db);
+        repo = new DeduplicatingRepository(() -> db, blobs);
+    }
+
+    private static InputStream stream(String data) throws Exception {
+        return new ByteArrayInputStream(data.getBytes("UTF-8"));
+    }
+
+    private int refs(String hash) {
+        return db.getCollection(DeduplicatingRepository.COLLECTION_BLOB)
+            .find(Filters.eq("_id", hash)).first().getInteger("refs");
+    }
+
+    @Test
+    public void testSharedBlob() throws Exception {
+        String hash = ContentHash.of("hello, world".getBytes("UTF-8"));
+
+        repo.upsert("a/1", stream("hello, world"), Map.of(Repository.METADATA_MIME_TYPE, "text/plain"));
+        repo.upsert("b/1", stream("hello, world"), Map.of(Repository.METADATA_MIME_TYPE, "application/octet-stream"));
+        assertEquals("stored once", 1, db.getCollection(MongoRepository.COLLECTION).countDocuments());
+        assertNotNull(blobs.get(hash));
+        assertEquals(2, refs(hash));
+
+        Item item = repo.get("b/1");
+        assertEquals("b/1", item.key());
+        assertEquals("metadata kept per key", Map.of(
+            Repository.METADATA_CONTENT_LENGTH, "12",
+            Repository.METADATA_CONTENT_HASH, hash,
+            Repository.METADATA_MIME_TYPE, "application/octet-stream"), item.metadata());
+        try (InputStream in = item.openStream()) {
+            assertEquals("hello, world", new String(IOUtils.toByteArray(in), "UTF-8"));
+        }
+
+        repo.delete("a/1");
+        assertNull(repo.get("a/1"));
+        assertNotNull("still referenced", repo.get("b/1"));
+        assertEquals(1, refs(hash));
+
+        repo.delete("b/1");
+        assertNull(repo.get("b/1"));
+        assertNull("unreferenced blob removed", blobs.get(hash));
+    }
+
+    @Test
+    public void testStoredBeforeDeduplication() throws Exception {
+        blobs.upsert("a/old", stream("old"), Map.of(Repository.METADATA_MIME_TYPE, "text/plain"));
+        repo.upsert("a/new", stream("new"), Map.of());
+
+        try (InputStream in = repo.get("a/old").openStream()) {
+            assertEquals("still readable", "old", new String(IOUtils.toByteArray(in), "UTF-8"));
+        }
+        assertNotNull("head", repo.head("a/old"));
+        try (Stream<String> keys = repo.keys()) {
+            assertEquals("listed, without the blobs", Set.of("a/new", "a/old"), keys.collect(Collectors.toSet()));
+        }
+
+        assertTrue(repo.copy("a/old", "a/copy"));
+        assertNotNull("copied alongside", blobs.get("a/copy"));
+
+        repo.deleteMany(List.of("a/old", "a/new"));
+        assertNull("deleted", blobs.get("a/old"));
+        assertNull("deleted", repo.get("a/new"));
+        repo.delete("a/copy");
+        assertNull("deleted", blobs.get("a/copy"));
+    }
+
+    @Test
+    public void testOverwriteAndCopy() throws Exception {
+        String first = ContentHash.of("first".getBytes("UTF-8"));
+        String second = ContentHash.of("second".getBytes("UTF-8"));
+
+        repo.upsert("a/1", stream("first"), Map.of());
+        assertTrue(repo.copy("a/1", "a/2"));
+        assertFalse(repo.copy("a/missing", "a/3"));
+        assertEquals(2, refs(first));
+
+        // overwriting with the same content doesn't leak a reference
+        repo.upsert("a/1", stream("first"), Map.of());
+        assertEquals(2, refs(first));
+
+        repo.upsert("a/1", stream("second"), Map.of());
+        assertEquals(1, refs(first));
+        assertEquals(1, refs(second));
+
+        try (InputStream in = repo.get("a/2").openStream()) {
+            assertEquals("first", new String(IOUtils.toByteArray(in), "UTF-8"));
+        }
+
+        repo.delete("a/2");
+        assertNull(blobs.get(first));
+        assertNotNull(blobs.get(second));
+    }
+
+    @Test
+    public void testFirstWriterFails() throws Exception {
+        String hash = ContentHash.of("shared".getBytes("UTF-8"));
+        CountDownLatch firstStoring = new CountDownLatch(1);
+        CountDownLatch secondDone = new CountDownLatch(1);
+        AtomicBoolean failed = new AtomicBoolean();
+
+        // the first store of the blob waits for the second upload, then fails
+        Repository failingOnce = new Repository() {
+            public Item get(String key) { return blobs.get(key); }
+            public void delete(String key) { blobs.delete(key); }
+            public void upsert(String key, InputStream data, Map<String, String> metadata) throws IOException {
+                if (failed.compareAndSet(false, true)) {
+                    firstStoring.countDown();
+                    try {
+                        secondDone.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    throw new IOException("disk full");
+                }
+                blobs.upsert(key, data, metadata);
+            }
+        };
+        DeduplicatingRepository flaky = new DeduplicatingRepository(() -> db, failingOnce);
+
+        AtomicReference<Throwable> firstError = new AtomicReference<>();
+        Thread first = new Thread(() -> {
+            try {
+                flaky.upsert("a/1", stream("shared"), Map.of());
+            } catch (Throwable e) {
+                firstError.set(e);
+            }
+        });
+        first.start();
+        assertTrue(firstStoring.await(10, TimeUnit.SECONDS));
+
+        flaky.upsert("b/1", stream("shared"), Map.of());
+        secondDone.countDown();
+        first.join();
+
+        assertTrue("first failed", firstError.get() instanceof IOException);
+        assertNull("never aliased", repo.get("a/1"));
+        try (InputStream in = repo.get("b/1").openStream()) {
+            assertEquals("stored by the second", "shared", new String(IOUtils.toByteArray(in), "UTF-8"));
+        }
+        assertEquals(1, refs(hash));
+        assertEquals(DeduplicatingRepository.STATE_STORED, db.getCollection(DeduplicatingRepository.COLLECTION_BLOB)
+            .find(Filters.eq("_id", hash)).first().getString("state"));
+    }
+
+    @Test
+    public void testDeleteMany() throws Exception {
+        String first = ContentHash.of("first".getBytes("UTF-8"));
+        String second = ContentHash.of("second".getBytes("UTF-8"));
+        repo.upsert("a/1", stream("first"), Map.of());
+        repo.upsert("a/2", stream("first"), Map.of());
+        repo.upsert("a/3", stream("second"), Map.of());
+        repo.upsert("b/1", stream("second"), Map.of());
+
+        repo.deleteMany(List.of("a/1", "a/2", "a/3", "a/missing"));
+        assertNull(repo.get("a/1"));
+        assertNull(repo.get("a/3"));
+        assertNull("unreferenced blob removed", blobs.get(first));
+        assertEquals("released once", 1, refs(second));
+        assertNotNull("still referenced", repo.get("b/1"));
+        repo.deleteMany(List.of());
+
+        // a deleteMany that died after claiming, which doesn't hold up writes for ever
+        db.getCollection(DeduplicatingRepository.COLLECTION_ALIAS).updateOne(Filters.eq("_id", "b/1"),
+            Updates.set("deleting", new ObjectId(new Date(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1)))));
+        repo.upsert("b/1", stream("first"), Map.of());
+        assertNull("replaced blob removed", blobs.get(second));
+        repo.deleteMany(List.of("b/1"));
+        assertEquals("no refs left", 0, db.getCollection(DeduplicatingRepository.COLLECTION_BLOB).countDocuments());
+    }
+
+    @Test
+    public void testConcurrentUploadsAndDeletes() throws Exception {
+        String hash = ContentHash.of("popular".getBytes("UTF-8"));
+        // every upload of the same bytes racing every other one's delete:
+        // each must be readable until it's deleted
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> uploaders = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                String prefix = "t" + t + "/";
+                uploaders.add(executor.submit(() -> {
+                    for (int i = 0; i < 50; i++) {
+                        String key = prefix + i;
+                        repo.upsert(key, stream("popular"), Map.of());
+                        if (i % 5 == 0) assertTrue("copied", repo.copy(key, key + "-copy"));
+
+                        Item item = repo.get(key);
+                        assertNotNull(key + " readable", item);
+                        try (InputStream in = item.openStream()) {
+                            assertEquals(key, "popular", new String(IOUtils.toByteArray(in), "UTF-8"));
+                        }
+
+                        repo.delete(key);
+                        if (i % 5 == 0) repo.delete(key + "-copy");
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> uploader : uploaders) {
+                uploader.get(60, TimeUnit.SECONDS); // rethrows any failed assertion
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertNull("unreferenced blob removed", blobs.get(hash));
+        assertEquals("no refs left", 0, db.getCollection(DeduplicatingRepository.COLLECTION_BLOB).countDocuments());
+
+        repo.upsert("last", stream("popular"), Map.of());
+        assertNotNull("stored again", blobs.get(hash));
+        assertEquals(1, refs(hash));
+    }
+}
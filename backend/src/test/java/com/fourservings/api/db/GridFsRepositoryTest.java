@@ -0,0 +1,90 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.db;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Random;
+
+import com.fourservings.api.ContentHash;
+import com.fourservings.api.Repository.Item;
+import com.mongodb.client.gridfs.GridFSBuckets;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class GridFsRepositoryTest extends AbstractMongoTest {
+    @Test    
+    public void testSaveGetDelete() throws Exception {
+        GridFSBuckets.create(db, GridFsRepository.BUCKET).drop();
+
+        GridFsRepository repo = new GridFsRepository(() -> db);
+
+        repo.upsert("hello/world.txt", 
+            new ByteArrayInputStream("hello, world".getBytes("UTF-8")),
+            Map.of(GridFsRepository.METADATA_MIME_TYPE, "text/plain")
+        );
+
+        Item item = repo.get("hello/world.txt");
+        assertNotNull("found item", item);
+        assertEquals("key", "hello/world.txt", item.key());
+        assertEquals("metadata content length", Map.of(
+            GridFsRepository.METADATA_CONTENT_LENGTH, "12",
+            GridFsRepository.METADATA_CONTENT_HASH, ContentHash.of("hello, world".getBytes("UTF-8")),
+            GridFsRepository.METADATA_MIME_TYPE, "text/plain"), item.metadata());
+        
+        try (InputStream in = item.openStream()) {
+            String read = new String(IOUtils.toByteArray(in), "UTF-8");
+            assertEquals("data", "hello, world", read);
+        }
+
+        repo.delete("hello/world.txt");
+
+        assertNull("deleted", repo.get("hello/world.txt"));
+    }
+
+    @Test
+    public void testMultiChunkOverwrite() throws Exception {
+        GridFSBuckets.create(db, GridFsRepository.BUCKET).drop();
+
+        GridFsRepository repo = new GridFsRepository(() -> db);
+
+        // Bigger than mongo's 16MB document cap, spanning many chunks
+        byte[] data = new byte[17 * 1024 * 1024];
+        new Random(42).nextBytes(data);
+
+        repo.upsert("big", new ByteArrayInputStream("small".getBytes("UTF-8")), Map.of());
+        repo.upsert("big", new ByteArrayInputStream(data), Map.of());
+
+        Item item = repo.get("big");
+        assertEquals("content length", Integer.toString(data.length), 
+            item.metadata().get(GridFsRepository.METADATA_CONTENT_LENGTH));
+        try (InputStream in = item.openStream()) {
+            assertArrayEquals("data", data, IOUtils.toByteArray(in));
+        }
+        assertEquals("old revision removed", 1, 
+            GridFSBuckets.create(db, GridFsRepository.BUCKET).find().into(new ArrayList<>()).size());
+    }
+}
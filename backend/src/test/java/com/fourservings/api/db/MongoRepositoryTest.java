@@ -23,8 +23,10 @@ import static org.junit.Assert.assertNull;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.util.List;
 import java.util.Map;
 
+import com.fourservings.api.ContentHash;
 import com.fourservings.api.Repository.Item;
 import com.mongodb.client.MongoCollection;
 
@@ -49,7 +51,8 @@ public class MongoRepositoryTest extends AbstractMongoTest {
         assertNotNull("found item", item);
         assertEquals("key", "hello/world.txt", item.key());
         assertEquals("metadata content length", Map.of(
-            MongoRepository.METADATA_CONTENT_LENGTH, "12", 
+            MongoRepository.METADATA_CONTENT_LENGTH, "12",
+            MongoRepository.METADATA_CONTENT_HASH, ContentHash.of("hello, world".getBytes("UTF-8")),
             MongoRepository.METADATA_MIME_TYPE, "text/plain"), item.metadata());
         
         try (InputStream in = item.openStream()) {
@@ -61,4 +64,46 @@ public class MongoRepositoryTest extends AbstractMongoTest {
 
         assertNull("deleted", repo.get("hello/world.txt"));
     }
+
+    @Test
+    public void testHead() throws Exception {
+        MongoCollection<Document> col = db.getCollection(MongoRepository.COLLECTION);
+        col.drop();
+
+        MongoRepository repo = new MongoRepository(() -> db);
+
+        repo.upsert("hello/world.txt", 
+            new ByteArrayInputStream("hello, world".getBytes("UTF-8")),
+            Map.of(MongoRepository.METADATA_MIME_TYPE, "text/plain")
+        );
+        // stored before lengths were recorded
+        col.insertOne(new Document("_id", "old")
+            .append("metadata", new Document())
+            .append("data", "old".getBytes("UTF-8")));
+
+        Item item = repo.head("hello/world.txt");
+        assertEquals("metadata", repo.get("hello/world.txt").metadata(), item.metadata());
+        try (InputStream in = item.openStream()) {
+            assertEquals("loaded on open", "hello, world", new String(IOUtils.toByteArray(in), "UTF-8"));
+        }
+
+        assertEquals("3", repo.head("old").metadata().get(MongoRepository.METADATA_CONTENT_LENGTH));
+        assertNull(repo.head("missing"));
+    }
+
+    @Test
+    public void testMany() throws Exception {
+        db.getCollection(MongoRepository.COLLECTION).drop();
+
+        MongoRepository repo = new MongoRepository(() -> db);
+        for (String key : List.of("a", "b", "c")) {
+            repo.upsert(key, new ByteArrayInputStream(key.getBytes("UTF-8")), Map.of());
+        }
+
+        repo.deleteMany(List.of("a", "b", "missing"));
+        assertNull("deleted", repo.head("a"));
+        assertNull("deleted", repo.head("b"));
+        assertNotNull("kept", repo.head("c"));
+        repo.deleteMany(List.of());
+    }
 }
@@ -0,0 +1,56 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.endpoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class ByteRangeTest {
+    @Test
+    public void testParse() {
+        assertNull("no header", ByteRange.parse(null, 100));
+        assertNull("not bytes", ByteRange.parse("items=1-2", 100));
+        assertNull("multiple ranges", ByteRange.parse("bytes=0-1,5-6", 100));
+        assertNull("garbage", ByteRange.parse("bytes=a-b", 100));
+        assertNull("backwards", ByteRange.parse("bytes=10-5", 100));
+        assertNull("unknown length", ByteRange.parse("bytes=0-5", -1));
+
+        ByteRange range = ByteRange.parse("bytes=10-19", 100);
+        assertEquals("start", 10, range.start);
+        assertEquals("length", 10, range.length);
+        assertEquals("content range", "bytes 10-19/100", range.toContentRange(100));
+
+        range = ByteRange.parse("bytes=90-", 100);
+        assertEquals("open ended start", 90, range.start);
+        assertEquals("open ended length", 10, range.length);
+
+        range = ByteRange.parse("bytes=90-500", 100);
+        assertEquals("clamped to content", "bytes 90-99/100", range.toContentRange(100));
+
+        range = ByteRange.parse("bytes=-30", 100);
+        assertEquals("suffix", "bytes 70-99/100", range.toContentRange(100));
+        range = ByteRange.parse("bytes=-300", 100);
+        assertEquals("suffix longer than content", "bytes 0-99/100", range.toContentRange(100));
+
+        assertSame("past the end", ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=100-", 100));
+        assertSame("empty suffix", ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=-0", 100));
+    }
+}
@@ -0,0 +1,163 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.fourservings.api.Repository;
+import com.fourservings.api.Repository.Item;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class CachingRepositoryTest {
+    private static Item item(String key, byte[] data) {
+        return new Item() {
+            public String key() { return key; }
+            public Map<String, String> metadata() { 
+                return Map.of(Repository.METADATA_CONTENT_LENGTH, Integer.toString(data.length));
+            }
+            public InputStream openStream() { return new ByteArrayInputStream(data); }
+        };
+    }
+
+    private static byte[] read(Item item) throws Exception {
+        try (InputStream in = item.openStream()) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+
+    @Test
+    public void testHitMissInvalidate() throws Exception {
+        byte[] data = new byte[CachingRepository.SLAB_SIZE * 2 + 17];
+        new Random(1).nextBytes(data);
+
+        Repository delegate = mock(Repository.class);
+        when(delegate.get("a")).thenReturn(item("a", data));
+
+        CachingRepository cache = new CachingRepository(delegate, 32 * CachingRepository.SLAB_SIZE);
+
+        assertNull("missing", cache.get("missing"));
+        assertArrayEquals("miss", data, read(cache.get("a")));
+        assertArrayEquals("hit", data, read(cache.get("a")));
+        verify(delegate, times(1)).get("a");
+        assertEquals("hits", 1, cache.getHits());
+        assertEquals("misses", 2, cache.getMisses());
+
+        cache.upsert("a", new ByteArrayInputStream(new byte[0]), Map.of());
+        verify(delegate).upsert(eq("a"), any(), any());
+        cache.get("a");
+        verify(delegate, times(2)).get("a");
+
+        cache.delete("a");
+        verify(delegate).delete("a");
+        assertEquals("invalidated", 0, cache.getSize());
+    }
+
+    @Test
+    public void testHead() throws Exception {
+        byte[] data = new byte[100];
+        Repository delegate = mock(Repository.class);
+        when(delegate.get("a")).thenReturn(item("a", data));
+        when(delegate.head("a")).thenReturn(item("a", data));
+
+        CachingRepository cache = new CachingRepository(delegate, 32 * CachingRepository.SLAB_SIZE);
+
+        cache.head("a");
+        verify(delegate).head("a");
+        assertEquals("not loaded by head", 0, cache.getSize());
+
+        read(cache.get("a"));
+        assertEquals("100", cache.head("a").metadata().get(Repository.METADATA_CONTENT_LENGTH));
+        verify(delegate, times(1)).head("a");
+    }
+
+    @Test
+    public void testMany() throws Exception {
+        byte[] data = new byte[100];
+        Repository delegate = mock(Repository.class);
+        when(delegate.get("a")).thenReturn(item("a", data));
+
+        CachingRepository cache = new CachingRepository(delegate, 32 * CachingRepository.SLAB_SIZE);
+        read(cache.get("a"));
+        assertEquals("cached", 1, cache.getSize());
+
+        cache.deleteMany(List.of("a", "b"));
+        verify(delegate).deleteMany(List.of("a", "b"));
+        assertEquals("invalidated", 0, cache.getSize());
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        byte[] data = new byte[CachingRepository.SLAB_SIZE];
+        new Random(2).nextBytes(data);
+
+        Repository delegate = mock(Repository.class);
+        for (String key : new String[] { "a", "b", "c", "d", "e", "f", "g", "h", "i" }) {
+            when(delegate.get(key)).thenReturn(item(key, data));
+        }
+
+        // room for 8 single slab items
+        CachingRepository cache = new CachingRepository(delegate, 8 * CachingRepository.SLAB_SIZE);
+        for (String key : new String[] { "a", "b", "c", "d", "e", "f", "g", "h" }) {
+            read(cache.get(key));
+        }
+        assertEquals("no evictions yet", 0, cache.getEvictions());
+
+        read(cache.get("a")); // touch a, so b is least recently used
+        read(cache.get("i"));
+        assertEquals("evicted one", 1, cache.getEvictions());
+
+        read(cache.get("a"));
+        verify(delegate, times(1)).get("a");
+        read(cache.get("b"));
+        verify(delegate, times(2)).get("b");
+    }
+
+    @Test
+    public void testEvictedWhileReading() throws Exception {
+        byte[] a = new byte[CachingRepository.SLAB_SIZE];
+        byte[] b = new byte[CachingRepository.SLAB_SIZE];
+        new Random(3).nextBytes(a);
+        new Random(4).nextBytes(b);
+
+        Repository delegate = mock(Repository.class);
+        when(delegate.get("a")).thenReturn(item("a", a));
+        when(delegate.get("b")).thenReturn(item("b", b));
+
+        CachingRepository cache = new CachingRepository(delegate, CachingRepository.SLAB_SIZE * 8);
+        read(cache.get("a"));
+
+        try (InputStream in = cache.get("a").openStream()) {
+            cache.delete("a");
+            // slabs held by the open stream must not be handed out again
+            read(cache.get("b"));
+            assertArrayEquals("still reading evicted entry", a, IOUtils.toByteArray(in));
+        }
+        assertArrayEquals("b intact", b, read(cache.get("b")));
+    }
+}
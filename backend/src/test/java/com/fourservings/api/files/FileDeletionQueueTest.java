@@ -0,0 +1,69 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fourservings.api.Repository;
+import com.fourservings.api.db.AbstractMongoTest;
+import com.mongodb.client.model.Filters;
+
+import org.junit.Test;
+
+public class FileDeletionQueueTest extends AbstractMongoTest {
+    @Test
+    public void testDrain() throws Exception {
+        db.getCollection(FileDeletionQueue.COLLECTION).drop();
+
+        Repository repo = mock(Repository.class);
+        doThrow(new IllegalStateException("down")).when(repo).delete("bad");
+        doThrow(new IllegalStateException("down")).when(repo).deleteMany(argThat(batch -> batch.contains("bad")));
+
+        // long interval, so only the pass triggered by enqueue runs
+        FileDeletionQueue queue = new FileDeletionQueue(() -> db, repo, "3600");
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < FileDeletionQueue.BATCH_SIZE + 10; i++) {
+            keys.add("key" + i);
+        }
+        keys.add("bad");
+        queue.enqueue(keys);
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (db.getCollection(FileDeletionQueue.COLLECTION).countDocuments(Filters.eq("attempts", 1)) == 0) {
+            assertTrue("drained in the background", System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+        verify(repo).deleteMany(argThat(batch -> batch.contains("key0")));
+        verify(repo, never()).delete("key0");
+        verify(repo).delete("key" + (FileDeletionQueue.BATCH_SIZE + 9));
+        assertEquals("failure kept for retry", 1, db.getCollection(FileDeletionQueue.COLLECTION).countDocuments());
+
+        // and the queue survives into a new instance, e.g. after a restart
+        queue = new FileDeletionQueue(() -> db, repo, "3600");
+        for (int i = 1; i < FileDeletionQueue.MAX_ATTEMPTS; i++) {
+            assertEquals(0, queue.drain());
+        }
+        assertEquals("gave up", 0, db.getCollection(FileDeletionQueue.COLLECTION).countDocuments());
+        verify(repo, times(FileDeletionQueue.MAX_ATTEMPTS)).delete("bad");
+    }
+}
@@ -0,0 +1,163 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.fourservings.api.ContentHash;
+import com.fourservings.api.Repository;
+import com.fourservings.api.Repository.Item;
+import com.fourservings.api.Repository.LocalItem;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileSystemRepositoryTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSaveGetDelete() throws Exception {
+        FileSystemRepository repo = new FileSystemRepository(folder.getRoot().getPath());
+
+        repo.upsert("abcdef/world.txt",
+            new ByteArrayInputStream("hello, world".getBytes("UTF-8")),
+            Map.of(Repository.METADATA_MIME_TYPE, "text/plain")
+        );
+
+        assertTrue("sharded by owner prefix", 
+            Files.isRegularFile(folder.getRoot().toPath().resolve("ab/abcdef/world.txt")));
+
+        Item item = repo.get("abcdef/world.txt");
+        assertNotNull("found item", item);
+        assertEquals("key", "abcdef/world.txt", item.key());
+        assertEquals("metadata content length", Map.of(
+            Repository.METADATA_CONTENT_LENGTH, "12",
+            Repository.METADATA_CONTENT_HASH, ContentHash.of("hello, world".getBytes("UTF-8")),
+            Repository.METADATA_MIME_TYPE, "text/plain"), item.metadata());
+        assertTrue("local item", item instanceof Repository.LocalItem);
+
+        try (InputStream in = item.openStream()) {
+            String read = new String(IOUtils.toByteArray(in), "UTF-8");
+            assertEquals("data", "hello, world", read);
+        }
+
+        repo.upsert("abcdef/world.txt",
+            new ByteArrayInputStream("bye".getBytes("UTF-8")),
+            Map.of(Repository.METADATA_MIME_TYPE, "text/html"));
+        item = repo.get("abcdef/world.txt");
+        assertEquals("overwritten type", "text/html", item.metadata().get(Repository.METADATA_MIME_TYPE));
+        assertEquals("overwritten length", "3", item.metadata().get(Repository.METADATA_CONTENT_LENGTH));
+
+        repo.delete("abcdef/world.txt");
+
+        assertNull("deleted", repo.get("abcdef/world.txt"));
+    }
+
+    @Test
+    public void testTornUpsert() throws Exception {
+        FileSystemRepository repo = new FileSystemRepository(folder.getRoot().getPath());
+        Path metadata = folder.getRoot().toPath().resolve("ab/abcdef/world.txt.meta");
+
+        repo.upsert("abcdef/world.txt", new ByteArrayInputStream(new byte[] { 1 }), Map.of());
+        byte[] first = Files.readAllBytes(metadata);
+        repo.upsert("abcdef/world.txt", new ByteArrayInputStream(new byte[] { 2 }), Map.of());
+        assertNotNull("consistent", repo.get("abcdef/world.txt"));
+
+        // as if caught between moving the data and the metadata into place
+        Files.write(metadata, first);
+        assertNull("metadata for other data", repo.get("abcdef/world.txt"));
+
+        // written before the generation was recorded
+        Files.write(metadata, new byte[0]);
+        assertNotNull("no generation", repo.get("abcdef/world.txt"));
+    }
+
+    @Test
+    public void testOpenChannel() throws Exception {
+        FileSystemRepository repo = new FileSystemRepository(folder.getRoot().getPath());
+
+        repo.upsert("abcdef/world.txt", new ByteArrayInputStream(new byte[] { 1 }), Map.of());
+        LocalItem item = (LocalItem) repo.get("abcdef/world.txt");
+        try (FileChannel channel = item.openChannel()) {
+            // once open, it's the file the metadata was read from whatever happens
+            repo.upsert("abcdef/world.txt", new ByteArrayInputStream(new byte[] { 2, 2 }), Map.of());
+            assertEquals("opened file", 1, channel.size());
+        }
+
+        try {
+            item.openChannel().close();
+            fail("replaced");
+        } catch (NoSuchFileException e) {
+            // expected
+        }
+
+        item = (LocalItem) repo.get("abcdef/world.txt");
+        repo.delete("abcdef/world.txt");
+        try {
+            item.openChannel().close();
+            fail("deleted");
+        } catch (NoSuchFileException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testKeys() throws Exception {
+        FileSystemRepository repo = new FileSystemRepository(folder.getRoot().getPath());
+
+        repo.upsert("abcdef/one", new ByteArrayInputStream(new byte[1]), Map.of());
+        repo.upsert("abcdef/two@320", new ByteArrayInputStream(new byte[1]), Map.of());
+        repo.upsert("x", new ByteArrayInputStream(new byte[1]), Map.of());
+
+        try (Stream<String> keys = repo.keys()) {
+            assertEquals(Set.of("abcdef/one", "abcdef/two@320", "x"), keys.collect(Collectors.toSet()));
+        }
+    }
+
+    @Test
+    public void testInvalidKeys() throws Exception {
+        FileSystemRepository repo = new FileSystemRepository(folder.newFolder("repo").getPath());
+
+        assertNull("parent reference", repo.get("abcdef/../../etc/passwd"));
+        assertNull("metadata file", repo.get("abcdef/world.txt.meta"));
+        try {
+            repo.upsert("abcdef/..", new ByteArrayInputStream(new byte[0]), Map.of());
+            fail("upsert outside of root");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,181 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import javax.imageio.ImageIO;
+
+import com.fourservings.api.Repository;
+import com.fourservings.api.Repository.Item;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ImageIngestTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** A JPEG as a phone would save it, with an EXIF orientation */
+    static byte[] photo(int width, int height, int orientation) throws Exception {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        Images.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), Images.MIME_JPEG, 0.9f, bout);
+        byte[] jpeg = bout.toByteArray();
+
+        byte[] app1 = {
+            (byte) 0xFF, (byte) 0xE1, 0, 34,
+            'E', 'x', 'i', 'f', 0, 0,
+            'M', 'M', 0, 0x2A, 0, 0, 0, 8,          // big endian, IFD0 at 8
+            0, 1,                                   // one entry
+            0x01, 0x12, 0, 3, 0, 0, 0, 1, 0, (byte) orientation, 0, 0,
+            0, 0, 0, 0                              // no next IFD
+        };
+        ByteArrayOutputStream spliced = new ByteArrayOutputStream();
+        spliced.write(jpeg, 0, 2);
+        spliced.write(app1);
+        spliced.write(jpeg, 2, jpeg.length - 2);
+        return spliced.toByteArray();
+    }
+
+    @Test
+    public void testExifOrientation() throws Exception {
+        assertEquals("on its side", 6, Images.exifOrientation(photo(10, 10, 6)));
+        assertEquals("invalid", 1, Images.exifOrientation(photo(10, 10, 16)));
+        assertEquals("not a jpeg", 1, Images.exifOrientation(new byte[] { 1, 2, 3 }));
+    }
+
+    @Test
+    public void testOrient() {
+        BufferedImage image = new BufferedImage(20, 10, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, Color.RED.getRGB());
+
+        BufferedImage rotated = Images.orient(image, 6);
+        assertEquals("width", 10, rotated.getWidth());
+        assertEquals("height", 20, rotated.getHeight());
+        assertEquals("top left moves to top right", Color.RED.getRGB(), rotated.getRGB(9, 0));
+
+        BufferedImage flipped = Images.orient(image, 2);
+        assertEquals("mirrored", Color.RED.getRGB(), flipped.getRGB(19, 0));
+    }
+
+    @Test
+    public void testStore() throws Exception {
+        FileSystemRepository repo = new FileSystemRepository(folder.getRoot().getPath());
+        ImageIngest ingest = new ImageIngest("true", "500", "0.8", "1024");
+
+        byte[] original = photo(1000, 600, 6);
+        ingest.store(repo, "abcdef/photo", new ByteArrayInputStream(original),
+            Map.of(Repository.METADATA_MIME_TYPE, Images.MIME_JPEG));
+
+        Item item = repo.get("abcdef/photo");
+        assertEquals("original length", Integer.toString(original.length),
+            item.metadata().get(ImageIngest.METADATA_ORIGINAL_LENGTH));
+        try (InputStream in = item.openStream()) {
+            byte[] stored = in.readAllBytes();
+            assertEquals("exif dropped", 1, Images.exifOrientation(stored));
+
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(stored));
+            assertEquals("turned upright and capped", 300, image.getWidth());
+            assertEquals("turned upright and capped", 500, image.getHeight());
+        }
+    }
+
+    @Test
+    public void testStoreAsUploaded() throws Exception {
+        FileSystemRepository repo = new FileSystemRepository(folder.getRoot().getPath());
+        byte[] original = photo(100, 100, 6);
+
+        new ImageIngest("false", "50", "", "").store(repo, "abcdef/disabled", new ByteArrayInputStream(original),
+            Map.of(Repository.METADATA_MIME_TYPE, Images.MIME_JPEG));
+        new ImageIngest("true", "50", "", "").store(repo, "abcdef/other", new ByteArrayInputStream(original),
+            Map.of(Repository.METADATA_MIME_TYPE, "application/pdf"));
+        new ImageIngest("true", "50", "", "").store(repo, "abcdef/broken", new ByteArrayInputStream(new byte[] { 1, 2, 3 }),
+            Map.of(Repository.METADATA_MIME_TYPE, Images.MIME_JPEG));
+
+        for (String key : new String[] { "abcdef/disabled", "abcdef/other" }) {
+            Item item = repo.get(key);
+            assertNull(key, item.metadata().get(ImageIngest.METADATA_ORIGINAL_LENGTH));
+            try (InputStream in = item.openStream()) {
+                assertArrayEquals(key, original, in.readAllBytes());
+            }
+        }
+        try (InputStream in = repo.get("abcdef/broken").openStream()) {
+            assertArrayEquals("undecodable", new byte[] { 1, 2, 3 }, in.readAllBytes());
+        }
+    }
+
+    @Test
+    public void testPngMetadata() throws Exception {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        Images.write(new BufferedImage(100, 100, BufferedImage.TYPE_INT_RGB), Images.MIME_PNG, 1f, bout);
+        byte[] png = bout.toByteArray();
+
+        // a location after the header, where phones and editors put it
+        byte[] text = "GPSLatitude\u000043.6532".getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer chunk = ByteBuffer.allocate(12 + text.length);
+        chunk.putInt(text.length).put("tEXt".getBytes(StandardCharsets.US_ASCII)).put(text);
+        CRC32 crc = new CRC32();
+        crc.update(chunk.array(), 4, 4 + text.length);
+        chunk.putInt((int) crc.getValue());
+        ByteArrayOutputStream spliced = new ByteArrayOutputStream();
+        spliced.write(png, 0, 33); // signature and IHDR
+        spliced.write(chunk.array());
+        spliced.write(png, 33, png.length - 33);
+        byte[] tagged = spliced.toByteArray();
+
+        assertArrayEquals("only the metadata taken out", png, Images.withoutPngMetadata(tagged));
+        assertNull("not a png", Images.withoutPngMetadata(photo(10, 10, 1)));
+
+        byte[] stored = new ImageIngest("true", "1000", "", "").normalize(tagged, Images.MIME_PNG);
+        assertFalse("location dropped", new String(stored, StandardCharsets.ISO_8859_1).contains("GPSLatitude"));
+        assertEquals("still an image", 100, ImageIO.read(new ByteArrayInputStream(stored)).getWidth());
+    }
+
+    @Test
+    public void testByteBudget() throws Exception {
+        BufferedImage noise = new BufferedImage(400, 400, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(1);
+        for (int y = 0; y < 400; y++) {
+            for (int x = 0; x < 400; x++) {
+                noise.setRGB(x, y, random.nextInt());
+            }
+        }
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        Images.write(noise, Images.MIME_JPEG, 1f, bout);
+
+        byte[] unlimited = new ImageIngest("true", "1000", "1", "0").normalize(bout.toByteArray(), Images.MIME_JPEG);
+        byte[] limited = new ImageIngest("true", "1000", "1", "100").normalize(bout.toByteArray(), Images.MIME_JPEG);
+        assertTrue("quality lowered to fit", limited.length < unlimited.length);
+    }
+}
@@ -0,0 +1,152 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.*;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import javax.imageio.ImageIO;
+
+import com.fourservings.api.Repository;
+import com.fourservings.api.Repository.Item;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ImageVariantsTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testKeys() {
+        ImageVariants variants = new ImageVariants("640, 320,bogus,1280", "1");
+        assertEquals("variant keys", List.of("a/b@320", "a/b@640", "a/b@1280"), variants.variantKeys("a/b"));
+        assertEquals("smallest", "a/b@320", variants.keyFor("a/b", 100));
+        assertEquals("exact", "a/b@640", variants.keyFor("a/b", 640));
+        assertEquals("next size up", "a/b@1280", variants.keyFor("a/b", 641));
+        assertEquals("bigger than all variants", "a/b", variants.keyFor("a/b", 2000));
+
+        assertFalse("disabled", new ImageVariants("", "1").isEnabled());
+    }
+
+    @Test
+    public void testGenerate() throws Exception {
+        FileSystemRepository repo = new FileSystemRepository(folder.getRoot().getPath());
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        Images.write(new BufferedImage(1000, 500, BufferedImage.TYPE_INT_RGB), Images.MIME_JPEG, 0.9f, bout);
+        repo.upsert("abcdef/photo", new ByteArrayInputStream(bout.toByteArray()), 
+            Map.of(Repository.METADATA_MIME_TYPE, Images.MIME_JPEG));
+
+        ImageVariants variants = new ImageVariants("320,640,1280", "1");
+        variants.generateNow(repo, "abcdef/photo");
+
+        Item small = repo.get("abcdef/photo@320");
+        assertNotNull("320 variant", small);
+        assertEquals("variant type", Images.MIME_JPEG, small.metadata().get(Repository.METADATA_MIME_TYPE));
+        try (InputStream in = small.openStream()) {
+            BufferedImage image = ImageIO.read(in);
+            assertEquals("320 width", 320, image.getWidth());
+            assertEquals("320 height", 160, image.getHeight());
+        }
+        assertNotNull("640 variant", repo.get("abcdef/photo@640"));
+        try (InputStream in = repo.get("abcdef/photo@1280").openStream()) {
+            assertArrayEquals("not upscaled, the original stands in", bout.toByteArray(), in.readAllBytes());
+        }
+    }
+
+    @Test
+    public void testOrientation() throws Exception {
+        FileSystemRepository repo = new FileSystemRepository(folder.getRoot().getPath());
+        repo.upsert("abcdef/portrait", new ByteArrayInputStream(ImageIngestTest.photo(1000, 500, 6)),
+            Map.of(Repository.METADATA_MIME_TYPE, Images.MIME_JPEG));
+
+        new ImageVariants("320", "1").generateNow(repo, "abcdef/portrait");
+
+        try (InputStream in = repo.get("abcdef/portrait@320").openStream()) {
+            BufferedImage image = ImageIO.read(in);
+            assertEquals("turned upright", 320, image.getWidth());
+            assertEquals("portrait", 640, image.getHeight());
+        }
+    }
+
+    @Test
+    public void testLargeImages() throws Exception {
+        FileSystemRepository repo = new FileSystemRepository(folder.getRoot().getPath());
+        ImageVariants variants = new ImageVariants("320", "1");
+
+        // subsampled as it's decoded, but still at least twice the width needed
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        Images.write(new BufferedImage(4000, 2000, BufferedImage.TYPE_INT_RGB), Images.MIME_PNG, 1f, bout);
+        repo.upsert("abcdef/wide", new ByteArrayInputStream(bout.toByteArray()),
+            Map.of(Repository.METADATA_MIME_TYPE, Images.MIME_PNG));
+        assertEquals("decoded width", 667,
+            Images.read(new ByteArrayInputStream(bout.toByteArray()), 320, Integer.MAX_VALUE).getWidth());
+        variants.generateNow(repo, "abcdef/wide");
+        try (InputStream in = repo.get("abcdef/wide@320").openStream()) {
+            assertEquals("320 width", 320, ImageIO.read(in).getWidth());
+        }
+
+        // a header claiming 100000 x 100000 pixels, refused before decoding any
+        bout.reset();
+        Images.write(new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB), Images.MIME_PNG, 1f, bout);
+        ByteBuffer png = ByteBuffer.wrap(bout.toByteArray());
+        png.putInt(16, 100_000).putInt(20, 100_000);
+        CRC32 crc = new CRC32();
+        crc.update(png.array(), 12, 17);
+        png.putInt(29, (int) crc.getValue());
+        repo.upsert("abcdef/bomb", new ByteArrayInputStream(png.array()),
+            Map.of(Repository.METADATA_MIME_TYPE, Images.MIME_PNG));
+        try {
+            variants.generateNow(repo, "abcdef/bomb");
+            fail("decoded");
+        } catch (IOException e) {
+            assertTrue("too large", e.getMessage().contains("100000x100000"));
+        }
+        assertNull("no variant", repo.get("abcdef/bomb@320"));
+    }
+
+    @Test
+    public void testRepository() throws Exception {
+        Repository delegate = mock(Repository.class);
+        ImageVariantRepository repo = new ImageVariantRepository(delegate, new ImageVariants("320,640", "1"));
+
+        repo.delete("a/b");
+        verify(delegate).deleteMany(List.of("a/b", "a/b@320", "a/b@640"));
+
+        repo.deleteMany(List.of("a/b", "a/c"));
+        verify(delegate).deleteMany(List.of("a/b", "a/c", "a/b@320", "a/b@640", "a/c@320", "a/c@640"));
+    }
+}
@@ -0,0 +1,96 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class MultipartReaderTest {
+    static byte[] multipart(String boundary, byte[]... files) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(("preamble\r\n--" + boundary + "\r\n"
+            + "Content-Disposition: form-data; name=\"title\"\r\n\r\n"
+            + "hello").getBytes(StandardCharsets.ISO_8859_1));
+        for (int i = 0; i < files.length; i++) {
+            out.write(("\r\n--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"" + i + ".jpg\"\r\n"
+                + "Content-Type: image/jpeg\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.write(files[i]);
+        }
+        out.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        return out.toByteArray();
+    }
+
+    /** Hand out the data a few bytes at a time, like a slow network */
+    static InputStream trickle(byte[] data) {
+        return new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 7));
+            }
+        };
+    }
+
+    @Test
+    public void testParts() throws Exception {
+        byte[] big = new byte[300 * 1024];
+        new Random(42).nextBytes(big);
+        // something that looks nearly like the delimiter
+        byte[] tricky = "a\r\n--boundar\r\n-\r\n--bound".getBytes(StandardCharsets.ISO_8859_1);
+
+        MultipartReader reader = new MultipartReader(trickle(multipart("boundary", big, tricky, new byte[0])), "boundary");
+
+        MultipartReader.Part part = reader.next();
+        assertEquals("title", part.name());
+        // left unread, skipped by next()
+
+        part = reader.next();
+        assertEquals("file", part.name());
+        assertEquals("image/jpeg", part.header("content-type"));
+        assertArrayEquals(big, IOUtils.toByteArray(part.body()));
+
+        part = reader.next();
+        assertArrayEquals(tricky, IOUtils.toByteArray(part.body()));
+
+        part = reader.next();
+        assertEquals(0, IOUtils.toByteArray(part.body()).length);
+
+        assertNull(reader.next());
+        assertNull(reader.next());
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncated() throws Exception {
+        byte[] body = multipart("boundary", new byte[1000]);
+        MultipartReader reader = new MultipartReader(
+            new ByteArrayInputStream(body, 0, body.length - 20), "boundary");
+        reader.next();
+        IOUtils.toByteArray(reader.next().body());
+    }
+}
@@ -0,0 +1,51 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+public class ObjectIdSetTest {
+    @Test
+    public void testAddContains() {
+        List<ObjectId> ids = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            ids.add(new ObjectId());
+        }
+
+        ObjectIdSet set = new ObjectIdSet();
+        for (int i = 0; i < ids.size(); i += 2) {
+            set.add(ids.get(i));
+        }
+        set.add(ids.get(0)); // duplicate
+
+        assertEquals(ids.size() / 2, set.size());
+        for (int i = 0; i < ids.size(); i++) {
+            assertEquals("contains " + i, i % 2 == 0, set.contains(ids.get(i)));
+        }
+        assertFalse(set.contains(new ObjectId()));
+        assertTrue(set.contains(new ObjectId(ids.get(2).toHexString())));
+    }
+}
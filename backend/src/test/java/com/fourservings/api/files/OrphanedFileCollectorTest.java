@@ -0,0 +1,78 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.files;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.*;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.fourservings.api.RecipeManager;
+import com.fourservings.api.Repository;
+import com.fourservings.api.db.AbstractMongoTest;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+public class OrphanedFileCollectorTest extends AbstractMongoTest {
+    private static ObjectId daysOld(int days) {
+        return new ObjectId(new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(days)));
+    }
+
+    @Test
+    public void testCollect() {
+        db.getCollection(RecipeManager.COLLECTION_RECIPE).drop();
+
+        ObjectId owner = new ObjectId();
+        ObjectId otherOwner = new ObjectId();
+        ObjectId used = daysOld(3);
+        ObjectId unused = daysOld(3);
+        ObjectId recent = daysOld(0);
+        ObjectId otherOwners = daysOld(3);
+
+        db.getCollection(RecipeManager.COLLECTION_RECIPE).insertMany(List.of(
+            new Document("ownerId", owner).append("images", List.of("/" + used, "https://example.com/a.jpg")),
+            new Document("ownerId", otherOwner).append("images", List.of("/" + otherOwners))
+        ));
+
+        String o = owner.toHexString() + "/";
+        Repository repo = mock(Repository.class);
+        when(repo.keys()).thenAnswer(invocation -> List.of(
+            o + used, o + used + "@320",
+            o + unused, o + unused + "@320",
+            o + recent,
+            owner.toHexString() + "/" + otherOwners, // another owner's image under this owner
+            otherOwner.toHexString() + "/" + otherOwners,
+            "not-an-upload"
+        ).stream());
+        FileDeletionQueue deletions = mock(FileDeletionQueue.class);
+
+        OrphanedFileCollector collector = new OrphanedFileCollector(() -> db, repo, deletions, "0", "24", "0");
+        assertEquals(3, collector.collect());
+
+        verify(deletions).enqueue(List.of(
+            o + unused, o + unused + "@320", 
+            owner.toHexString() + "/" + otherOwners));
+        assertEquals(1, collector.getRuns());
+        assertEquals(8, collector.getScanned());
+        assertEquals(3, collector.getOrphaned());
+    }
+}
@@ -0,0 +1,208 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.util.Map;
+import java.util.Random;
+
+import com.fourservings.api.ContentHash;
+import com.fourservings.api.Repository;
+import com.fourservings.api.Repository.Item;
+import com.fourservings.api.Repository.LocalItem;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TieredRepositoryTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** Stub the item in the delegate, along with its head */
+    private static void stored(Repository delegate, String key, byte[] data) {
+        when(delegate.get(key)).thenReturn(item(key, data));
+        when(delegate.head(key)).thenReturn(item(key, data));
+    }
+
+    private static Item item(String key, byte[] data) {
+        return new Item() {
+            public String key() { return key; }
+            public Map<String, String> metadata() {
+                return Map.of(Repository.METADATA_CONTENT_LENGTH, Integer.toString(data.length),
+                    Repository.METADATA_CONTENT_HASH, ContentHash.of(data),
+                    Repository.METADATA_MIME_TYPE, "image/jpeg");
+            }
+            public InputStream openStream() { return new ByteArrayInputStream(data); }
+        };
+    }
+
+    private static byte[] read(Item item) throws Exception {
+        try (InputStream in = item.openStream()) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+
+    @Test
+    public void testHitMissInvalidate() throws Exception {
+        byte[] data = new byte[1000];
+        new Random(1).nextBytes(data);
+
+        Repository delegate = mock(Repository.class);
+        stored(delegate, "abc/a", data);
+
+        TieredRepository tier = new TieredRepository(delegate, folder.getRoot().getPath(), 100_000);
+
+        assertNull("missing", tier.get("abc/missing"));
+        assertArrayEquals("miss", data, read(tier.get("abc/a")));
+        Item hit = tier.get("abc/a");
+        assertTrue("served from disk", hit instanceof LocalItem);
+        assertArrayEquals("hit", data, read(hit));
+        assertEquals("metadata kept", "image/jpeg", hit.metadata().get(Repository.METADATA_MIME_TYPE));
+        verify(delegate, times(1)).get("abc/a");
+        assertEquals("bytes", 1000, tier.getBytes());
+
+        tier.upsert("abc/a", new ByteArrayInputStream(new byte[0]), Map.of());
+        verify(delegate).upsert(eq("abc/a"), any(), any());
+        assertEquals("invalidated", 0, tier.getSize());
+        tier.get("abc/a");
+        verify(delegate, times(2)).get("abc/a");
+
+        tier.delete("abc/a");
+        verify(delegate).delete("abc/a");
+        assertEquals("invalidated", 0, tier.getSize());
+        assertEquals("nothing left on disk", 0, new FileSystemRepository(folder.getRoot().getPath()).keys().count());
+    }
+
+    @Test
+    public void testEvictionAndRestart() throws Exception {
+        byte[] data = new byte[1000];
+        String[] keys = { "abc/a", "abc/b", "abc/c", "abc/d", "abc/e", "abc/f", "abc/g", "abc/h", "abc/i" };
+        Repository delegate = mock(Repository.class);
+        for (String key : keys) {
+            stored(delegate, key, data);
+        }
+
+        // room for 8
+        TieredRepository tier = new TieredRepository(delegate, folder.getRoot().getPath(), 8000);
+        for (int i = 0; i < 8; i++) {
+            read(tier.get(keys[i]));
+        }
+        assertEquals("no evictions yet", 0, tier.getEvictions());
+
+        read(tier.get("abc/a")); // so b is least recently used
+        read(tier.get("abc/i"));
+        assertEquals("evicted one", 1, tier.getEvictions());
+        assertEquals("size", 8, tier.getSize());
+
+        read(tier.get("abc/a"));
+        verify(delegate, times(1)).get("abc/a");
+        read(tier.get("abc/b"));
+        verify(delegate, times(2)).get("abc/b");
+
+        TieredRepository restarted = new TieredRepository(delegate, folder.getRoot().getPath(), 8000);
+        assertEquals("index rebuilt", 8, restarted.getSize());
+        assertEquals("bytes rebuilt", 8000, restarted.getBytes());
+        read(restarted.get("abc/b"));
+        verify(delegate, times(2)).get("abc/b");
+
+        TieredRepository shrunk = new TieredRepository(delegate, folder.getRoot().getPath(), 1500);
+        assertEquals("evicted down to the new budget", 1, shrunk.getSize());
+    }
+
+    @Test
+    public void testEvictedWhileServing() throws Exception {
+        byte[] data = new byte[1000];
+        Repository delegate = mock(Repository.class);
+        for (int i = 0; i <= 16; i++) {
+            stored(delegate, "abc/" + i, data);
+        }
+
+        // room for 8
+        TieredRepository tier = new TieredRepository(delegate, folder.getRoot().getPath(), 8000);
+        read(tier.get("abc/0"));
+        try (FileChannel channel = ((LocalItem) tier.get("abc/0")).openChannel()) {
+            for (int i = 1; i <= 8; i++) {
+                read(tier.get("abc/" + i));
+            }
+            assertEquals("evicted", 1, tier.getEvictions());
+            assertEquals("still readable once opened", 1000, channel.size());
+        }
+
+        LocalItem unopened = (LocalItem) tier.get("abc/1");
+        for (int i = 9; i <= 16; i++) {
+            read(tier.get("abc/" + i));
+        }
+        try {
+            unopened.openChannel().close();
+            fail("evicted before it was opened");
+        } catch (NoSuchFileException e) {
+            // expected, so it's looked up again
+        }
+        assertArrayEquals("from the other repository", data, read(tier.get("abc/1")));
+        verify(delegate, times(2)).get("abc/1");
+    }
+
+    @Test
+    public void testChangedElsewhere() throws Exception {
+        byte[] data = new byte[1000];
+        byte[] changed = new byte[1000];
+        changed[0] = 1;
+        Repository delegate = mock(Repository.class);
+        stored(delegate, "abc/a", data);
+
+        TieredRepository tier = new TieredRepository(delegate, folder.getRoot().getPath(), 100_000);
+        read(tier.get("abc/a"));
+        assertTrue("hit", tier.get("abc/a") instanceof LocalItem);
+
+        // replaced through another node, or while we were down
+        stored(delegate, "abc/a", changed);
+        TieredRepository restarted = new TieredRepository(delegate, folder.getRoot().getPath(), 100_000);
+        assertArrayEquals("reloaded", changed, read(restarted.get("abc/a")));
+        assertArrayEquals("then served from disk", changed, read(restarted.get("abc/a")));
+        assertEquals("stale", 1, restarted.getStale());
+        assertEquals("hits", 1, restarted.getHits());
+
+        when(delegate.get("abc/a")).thenReturn(null);
+        when(delegate.head("abc/a")).thenReturn(null);
+        assertNull("deleted", restarted.get("abc/a"));
+        assertEquals("dropped", 0, restarted.getSize());
+        assertEquals("nothing left on disk", 0, new FileSystemRepository(folder.getRoot().getPath()).keys().count());
+    }
+
+    @Test
+    public void testTooLarge() throws Exception {
+        Repository delegate = mock(Repository.class);
+        stored(delegate, "abc/big", new byte[1000]);
+
+        TieredRepository tier = new TieredRepository(delegate, folder.getRoot().getPath(), 4000);
+        read(tier.get("abc/big"));
+        assertEquals("passed through", 0, tier.getSize());
+    }
+}
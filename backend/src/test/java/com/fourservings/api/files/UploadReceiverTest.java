@@ -0,0 +1,127 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.ClientErrorException;
+import javax.ws.rs.core.MediaType;
+
+import com.fourservings.api.Repository;
+
+import org.apache.commons.io.IOUtils;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+public class UploadReceiverTest {
+    private static final MediaType TYPE = MediaType.valueOf("multipart/form-data; boundary=xyz");
+
+    private static Repository storing(Map<String, byte[]> stored) throws Exception {
+        Repository repo = mock(Repository.class);
+        doAnswer(invocation -> {
+            stored.put(invocation.getArgument(0), IOUtils.toByteArray((InputStream) invocation.getArgument(1)));
+            return null;
+        }).when(repo).upsert(any(), any(), any());
+        return repo;
+    }
+
+    @Test
+    public void testReceive() throws Exception {
+        Map<String, byte[]> stored = new ConcurrentHashMap<>();
+        UploadReceiver receiver = new UploadReceiver(storing(stored), new ImageIngest("false", "", "", ""), mock(FileDeletionQueue.class), "1", "2", "2");
+
+        byte[] first = new byte[512 * 1024];
+        byte[] second = new byte[100];
+        new Random(1).nextBytes(first);
+        new Random(2).nextBytes(second);
+        byte[] body = MultipartReaderTest.multipart("xyz", first, second);
+
+        ObjectId owner = new ObjectId();
+        List<String> keys = receiver.receive(owner, TYPE, MultipartReaderTest.trickle(body), body.length);
+
+        assertEquals(2, keys.size());
+        assertArrayEquals(first, stored.get(owner.toHexString() + "/" + keys.get(0)));
+        assertArrayEquals(second, stored.get(owner.toHexString() + "/" + keys.get(1)));
+    }
+
+    @Test
+    public void testWritersBusy() throws Exception {
+        Map<String, String> threads = new ConcurrentHashMap<>();
+        CountDownLatch inline = new CountDownLatch(1);
+        Repository repo = mock(Repository.class);
+        doAnswer(invocation -> {
+            IOUtils.toByteArray((InputStream) invocation.getArgument(1));
+            threads.put(invocation.getArgument(0), Thread.currentThread().getName());
+            if (Thread.currentThread().getName().startsWith("upload-")) {
+                // hold the only writer until the next file has been written
+                assertTrue("written while the writer was busy", inline.await(10, TimeUnit.SECONDS));
+            } else {
+                inline.countDown();
+            }
+            return null;
+        }).when(repo).upsert(any(), any(), any());
+        UploadReceiver receiver = new UploadReceiver(repo, new ImageIngest("false", "", "", ""), mock(FileDeletionQueue.class), "1", "2", "1");
+
+        byte[] body = MultipartReaderTest.multipart("xyz", new byte[1000], new byte[1000]);
+        ObjectId owner = new ObjectId();
+        List<String> keys = receiver.receive(owner, TYPE, new ByteArrayInputStream(body), body.length);
+
+        assertEquals("writer", "upload-1", threads.get(owner.toHexString() + "/" + keys.get(0)));
+        assertEquals("request thread", Thread.currentThread().getName(), threads.get(owner.toHexString() + "/" + keys.get(1)));
+    }
+
+    @Test
+    public void testLimits() throws Exception {
+        Map<String, byte[]> stored = new ConcurrentHashMap<>();
+        FileDeletionQueue deletions = mock(FileDeletionQueue.class);
+        UploadReceiver receiver = new UploadReceiver(storing(stored), new ImageIngest("false", "", "", ""), deletions, "1", "2", "2");
+
+        byte[] small = new byte[1000];
+        byte[] tooBig = new byte[1024 * 1024 + 1];
+        byte[] body = MultipartReaderTest.multipart("xyz", small, tooBig);
+        try {
+            receiver.receive(new ObjectId(), TYPE, new ByteArrayInputStream(body), -1);
+            fail("file limit");
+        } catch (ClientErrorException e) {
+            assertEquals(413, e.getResponse().getStatus());
+        }
+        verify(deletions).enqueue(List.copyOf(stored.keySet()));
+        assertEquals("the small file was written, then queued for deletion", 1, stored.size());
+
+        // refused up front from the declared length
+        try {
+            receiver.receive(new ObjectId(), TYPE, new ByteArrayInputStream(new byte[0]), 3 * 1024 * 1024);
+            fail("request limit");
+        } catch (ClientErrorException e) {
+            assertEquals(413, e.getResponse().getStatus());
+        }
+    }
+}
@@ -0,0 +1,125 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+/** Times fuzzy searches of one owner's recipes, with a typo in each query
+ * word.  Needs no database, and isn't run with the tests; run it with, e.g.:
+ *
+ *   mvn test-compile exec:java -Dexec.classpathScope=test \
+ *       -Dexec.mainClass=com.fourservings.api.search.FuzzyBenchmark -Dexec.args="10000 2000"
+ */
+public class FuzzyBenchmark {
+    private static final String[] FOODS = {
+        "chicken", "beef", "tomato", "onion", "garlic", "soup", "roast", "salad", "bread", "rice",
+        "lemon", "butter", "pepper", "cheese", "pasta", "curry", "bean", "carrot", "potato", "apple",
+        "spaghetti", "parmesan", "mozzarella", "zucchini", "broccoli", "cinnamon", "coriander",
+        "cumin", "paprika", "oregano", "basil", "thyme", "rosemary", "mushroom", "spinach", "salmon",
+        "shrimp", "lentil", "chickpea", "yogurt", "vanilla", "chocolate", "almond", "walnut", "ginger" };
+    private static final String LETTERS = "abcdefghijklmnopqrstuvwxyz";
+
+    /**
+     * @param args Number of recipes, and number of searches
+     */
+    public static void main(String[] args) {
+        int recipes = args.length > 0 ? NumberUtils.toInt(args[0], 10000) : 10000;
+        int searches = args.length > 1 ? NumberUtils.toInt(args[1], 2000) : 2000;
+
+        // real food names, and made up words for the long tail of a vocabulary
+        Random random = new Random(1);
+        List<String> vocabulary = new ArrayList<>(Arrays.asList(FOODS));
+        while (vocabulary.size() < 5000) {
+            vocabulary.add(word(random, 4 + random.nextInt(7)));
+        }
+
+        long started = System.nanoTime();
+        FuzzyIndex.Partition partition = new FuzzyIndex.Partition();
+        for (int i = 0; i < recipes; i++) {
+            List<String> ingredients = new ArrayList<>();
+            for (int j = 0; j < 8; j++) {
+                ingredients.add((1 + random.nextInt(4)) + " cups " + pick(vocabulary, random) + " " + pick(vocabulary, random));
+            }
+            partition.add(new Document("_id", new ObjectId())
+                .append("title", pick(vocabulary, random) + " " + pick(vocabulary, random))
+                .append("ingredients", ingredients));
+        }
+        System.out.printf("%d recipes indexed in %dms%n", recipes, (System.nanoTime() - started) / 1_000_000);
+
+        // warm up, then time each search
+        for (int i = 0; i < searches; i++) {
+            partition.search(query(vocabulary, random));
+        }
+        long[] nanos = new long[searches];
+        int found = 0;
+        for (int i = 0; i < searches; i++) {
+            List<String> query = query(vocabulary, random);
+            long start = System.nanoTime();
+            found += partition.search(query).size();
+            nanos[i] = System.nanoTime() - start;
+        }
+
+        Arrays.sort(nanos);
+        System.out.printf("%d searches, %d results on average%n", searches, found / searches);
+        System.out.printf("median %6.2fms  p99 %6.2fms  max %6.2fms  mean %6.2fms%n",
+            nanos[nanos.length / 2] / 1e6,
+            nanos[(int) (nanos.length * 0.99)] / 1e6,
+            nanos[nanos.length - 1] / 1e6,
+            Arrays.stream(nanos).average().orElse(0) / 1e6);
+    }
+
+    /** Skewed towards the start of the vocabulary, i.e. the real foods, as
+     * ingredients are
+     */
+    private static String pick(List<String> vocabulary, Random random) {
+        int index = (int) (Math.pow(random.nextDouble(), 3) * vocabulary.size());
+        return vocabulary.get(index);
+    }
+
+    /** One or two words, each with a typo */
+    private static List<String> query(List<String> vocabulary, Random random) {
+        List<String> query = new ArrayList<>();
+        int words = 1 + random.nextInt(2);
+        for (int i = 0; i < words; i++) {
+            StringBuilder word = new StringBuilder(pick(vocabulary, random));
+            int at = random.nextInt(word.length());
+            if (random.nextBoolean()) {
+                word.deleteCharAt(at);
+            } else {
+                word.setCharAt(at, LETTERS.charAt(random.nextInt(LETTERS.length())));
+            }
+            query.add(word.toString());
+        }
+        return query;
+    }
+
+    private static String word(Random random, int length) {
+        StringBuilder word = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            word.append(LETTERS.charAt(random.nextInt(LETTERS.length())));
+        }
+        return word.toString();
+    }
+}
@@ -0,0 +1,111 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.*;
+
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+public class FuzzyIndexTest {
+    private static final ObjectId OWNER = new ObjectId();
+    private static final MemoryVersions VERSIONS = new MemoryVersions();
+
+    private static FuzzyIndex index(List<Document> recipes) {
+        RecipeSource source = mock(RecipeSource.class);
+        doAnswer(invocation -> {
+            Consumer<Document> consumer = invocation.getArgument(1);
+            recipes.forEach(consumer);
+            return null;
+        }).when(source).forEach(eq(OWNER), any(), any());
+        return new FuzzyIndex(source, VERSIONS, "");
+    }
+
+    @Test
+    public void testDistance() {
+        assertEquals("same", 0, FuzzyIndex.distance("parmesan", "parmesan", 2));
+        assertEquals("inserted", 1, FuzzyIndex.distance("parmesean", "parmesan", 2));
+        assertEquals("missing", 1, FuzzyIndex.distance("spagetti", "spaghetti", 2));
+        assertEquals("swapped", 1, FuzzyIndex.distance("chikcen", "chicken", 2));
+        assertEquals("substituted", 1, FuzzyIndex.distance("basel", "bagel", 2));
+        assertEquals("too far", 2, FuzzyIndex.distance("tomato", "potato", 1));
+        assertEquals("too long", 2, FuzzyIndex.distance("pie", "pierogi", 1));
+    }
+
+    @Test
+    public void testTrigrams() {
+        assertEquals(Set.of("$ba", "ban", "ana", "nan", "na$"), FuzzyIndex.trigrams("banana"));
+    }
+
+    @Test
+    public void testSwaps() {
+        Document pesto = new Document("_id", new ObjectId())
+            .append("title", "Pesto")
+            .append("ingredients", List.of("2 cups basil", "1/2 cup pine nuts"));
+        Document risotto = new Document("_id", new ObjectId())
+            .append("title", "Risotto")
+            .append("ingredients", List.of("1 cup arborio rice", "4 cups stock"));
+        Document chowder = new Document("_id", new ObjectId())
+            .append("title", "Chowder")
+            .append("ingredients", List.of("4 potatoes", "1 cup sweetcorn"));
+        FuzzyIndex index = index(List.of(pesto, risotto, chowder));
+
+        // a swap spoils four trigrams, all of a four letter word's
+        assertEquals("four letters", List.of(risotto.get("_id")), index.search(OWNER, "rcie"));
+        assertEquals("five letters", List.of(pesto.get("_id")), index.search(OWNER, "bsail"));
+        assertEquals("two swaps", List.of(chowder.get("_id")), index.search(OWNER, "optaotes"));
+    }
+
+    @Test
+    public void testSearch() {
+        Document spaghetti = new Document("_id", new ObjectId())
+            .append("title", "Spaghetti Carbonara")
+            .append("ingredients", List.of("400g spaghetti", "100g parmesan", "4 eggs"));
+        Document lasagna = new Document("_id", new ObjectId())
+            .append("title", "Lasagna")
+            .append("ingredients", List.of("1 cup grated parmesan", "Lasagna sheets"));
+        Document bagels = new Document("_id", new ObjectId())
+            .append("title", "Bagels")
+            .append("ingredients", List.of("Flour", "Water"));
+        Document pasta = new Document("_id", new ObjectId())
+            .append("title", "Pasta Bake");
+        Document pastry = new Document("_id", new ObjectId())
+            .append("title", "Pastry");
+        FuzzyIndex index = index(List.of(spaghetti, lasagna, bagels, pasta, pastry));
+
+        assertEquals("typo", List.of(spaghetti.get("_id")), index.search(OWNER, "spagetti"));
+        assertEquals("both words first, then newest", List.of(spaghetti.get("_id"), lasagna.get("_id")),
+            index.search(OWNER, "spagetti parmesean"));
+        // older, but closer
+        assertEquals("fewest edits first", List.of(pasta.get("_id"), pastry.get("_id")),
+            index.search(OWNER, "pastas"));
+        assertEquals("short words exact", List.of(), index.search(OWNER, "egs"));
+        assertEquals("nothing close", List.of(), index.search(OWNER, "durian"));
+        assertEquals("no words", List.of(), index.search(OWNER, "the 12"));
+
+        index.recipeRemoved(OWNER, VERSIONS.changed(OWNER), spaghetti.getObjectId("_id"));
+        index.recipeSaved(OWNER, VERSIONS.changed(OWNER), new Document(bagels).append("title", "Spaghetti Bagels"));
+        assertEquals("changes", List.of(bagels.get("_id")), index.search(OWNER, "spagetti"));
+    }
+}
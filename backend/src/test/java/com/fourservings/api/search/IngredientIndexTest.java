@@ -0,0 +1,90 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.*;
+
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+public class IngredientIndexTest {
+    private static final ObjectId OWNER = new ObjectId();
+    private static final MemoryVersions VERSIONS = new MemoryVersions();
+
+    private static IngredientIndex index(List<Document> recipes) {
+        RecipeSource source = mock(RecipeSource.class);
+        doAnswer(invocation -> {
+            Consumer<Document> consumer = invocation.getArgument(1);
+            recipes.forEach(consumer);
+            return null;
+        }).when(source).forEach(eq(OWNER), any(), any());
+        return new IngredientIndex(source, VERSIONS, "");
+    }
+
+    private static List<ObjectId> ids(List<IngredientIndex.Match> matches) {
+        return matches.stream().map(IngredientIndex.Match::getId).collect(Collectors.toList());
+    }
+
+    @Test
+    public void testTerms() {
+        assertEquals(Set.of("tomato", "basil", "chicken"), IngredientIndex.terms(List.of("Tomatoes, basil", "1 chicken")));
+    }
+
+    @Test
+    public void testSearch() {
+        Document soup = new Document("_id", new ObjectId())
+            .append("ingredients", List.of("1 whole chicken", "2 carrots", "1 onion", "Salt"));
+        Document salad = new Document("_id", new ObjectId())
+            .append("ingredients", List.of("4 tomatoes", "1 bunch basil"));
+        Document roast = new Document("_id", new ObjectId())
+            .append("ingredients", List.of("2 chicken breasts", "1 tbsp olive oil"));
+        Document bread = new Document("_id", new ObjectId())
+            .append("ingredients", List.of("500g flour", "Water"));
+        IngredientIndex index = index(List.of(soup, salad, roast, bread));
+
+        List<IngredientIndex.Match> matches = index.search(OWNER, IngredientIndex.terms(List.of("chicken", "carrot", "tomatoes")));
+        // all half covered, so most lines covered first, then newest
+        assertEquals("ranked", List.of(soup.get("_id"), roast.get("_id"), salad.get("_id")), ids(matches));
+        assertEquals("soup", 2, matches.get(0).getCovered());
+        assertEquals("lines", 4, matches.get(0).getLines());
+        assertEquals("line covered by one word", 1, matches.get(1).getCovered());
+
+        assertEquals("all covered", List.of(salad.get("_id")),
+            ids(index.search(OWNER, IngredientIndex.terms(List.of("tomato", "basil")))).subList(0, 1));
+        assertEquals("unknown", List.of(), index.search(OWNER, Set.of("durian")));
+        assertEquals("nothing", List.of(), index.search(OWNER, Set.of()));
+
+        index.recipeRemoved(OWNER, VERSIONS.changed(OWNER), roast.getObjectId("_id"));
+        index.recipeSaved(OWNER, VERSIONS.changed(OWNER), new Document(bread).append("ingredients", List.of("1 chicken")));
+        assertEquals("changes", List.of(bread.get("_id"), soup.get("_id")),
+            ids(index.search(OWNER, Set.of("chicken"))));
+    }
+
+    @Test
+    public void testMissing() {
+        Document recipe = new Document("ingredients", List.of("2 chicken breasts", "1 tbsp olive oil", "salt and pepper"));
+        assertEquals(List.of("1 tbsp olive oil"), IngredientIndex.missing(recipe, Set.of("chicken", "salt")));
+    }
+}
@@ -0,0 +1,160 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+public class KeywordIndexTest {
+    private static RecipeSource source(List<Document> recipes) {
+        RecipeSource source = mock(RecipeSource.class);
+        doAnswer(invocation -> {
+            ObjectId ownerId = invocation.getArgument(0);
+            Consumer<Document> consumer = invocation.getArgument(1);
+            for (Document recipe : recipes) {
+                if (ownerId.equals(recipe.get("ownerId"))) consumer.accept(recipe);
+            }
+            return null;
+        }).when(source).forEach(any(), any(), any());
+        return source;
+    }
+
+    @Test
+    public void testSearch() {
+        ObjectId ownerId = new ObjectId();
+        ObjectId group = new ObjectId();
+        Document soup = new Document("_id", new ObjectId()).append("ownerId", ownerId)
+            .append("title", "Chicken Soup")
+            .append("groups", List.of(new Document("_id", group)));
+        Document roast = new Document("_id", new ObjectId()).append("ownerId", ownerId)
+            .append("directions", List.of("Roast the chickens"));
+        Document tomato = new Document("_id", new ObjectId()).append("ownerId", ownerId)
+            .append("ingredients", List.of("4 tomatoes"));
+        Document other = new Document("_id", new ObjectId()).append("ownerId", new ObjectId())
+            .append("title", "Chicken Kiev");
+
+        KeywordIndex index = new KeywordIndex(source(List.of(soup, roast, tomato, other)), new MemoryVersions(),
+            KeywordIndex.ENGINE, "");
+        assertEquals("newest first", List.of(roast.get("_id"), soup.get("_id")), index.search(ownerId, "chicken", null));
+        assertEquals("any term", 3, index.search(ownerId, "CHICKEN tomato", null).size());
+        assertEquals("excluded", List.of(tomato.get("_id")), index.search(ownerId, "soup tomato -chicken", null));
+        assertEquals("group", List.of(soup.get("_id")), index.search(ownerId, "chicken", group));
+        assertEquals("only stop words", List.of(), index.search(ownerId, "the and", null));
+        assertEquals("built once", 1, index.getBuilds());
+
+        assertEquals("most terms first", List.of(soup.get("_id"), roast.get("_id")),
+            index.search(ownerId, "chicken soup", null, true));
+        assertEquals("rarest terms first, then newest", List.of(tomato.get("_id"), roast.get("_id"), soup.get("_id")),
+            index.search(ownerId, "chicken tomato", null, true));
+        assertEquals("included", Set.of("chicken", "tomato"), KeywordIndex.included("Chickens the tomato -soup"));
+    }
+
+    @Test
+    public void testChanges() {
+        ObjectId ownerId = new ObjectId();
+        List<Document> recipes = new ArrayList<>();
+        Document recipe = new Document("_id", new ObjectId()).append("ownerId", ownerId).append("title", "Apple Pie");
+        recipes.add(recipe);
+
+        MemoryVersions versions = new MemoryVersions();
+        KeywordIndex index = new KeywordIndex(source(recipes), versions, KeywordIndex.ENGINE, "1");
+        assertEquals("built", 1, index.search(ownerId, "apple", null).size());
+
+        index.recipeSaved(ownerId, versions.changed(ownerId), new Document(recipe).append("title", "Cherry Pie"));
+        assertEquals("old terms gone", 0, index.search(ownerId, "apple", null).size());
+        assertEquals("new terms", 1, index.search(ownerId, "cherries", null).size());
+
+        index.recipeRemoved(ownerId, versions.changed(ownerId), recipe.getObjectId("_id"));
+        assertEquals("removed", 0, index.search(ownerId, "pie", null).size());
+
+        ObjectId otherId = new ObjectId();
+        index.recipeSaved(otherId, versions.changed(otherId), new Document("_id", new ObjectId()).append("title", "Pie"));
+        assertEquals("not built, so ignored", 1, index.getOwners());
+
+        index.search(otherId, "pie", null);
+        assertEquals("least recently used owner dropped", 1, index.getOwners());
+        index.search(ownerId, "pie", null);
+        assertEquals("rebuilt", 3, index.getBuilds());
+    }
+
+    @Test
+    public void testVersions() {
+        ObjectId ownerId = new ObjectId();
+        List<Document> recipes = new ArrayList<>();
+        Document recipe = new Document("_id", new ObjectId()).append("ownerId", ownerId).append("title", "Apple Pie");
+        recipes.add(recipe);
+
+        MemoryVersions versions = new MemoryVersions();
+        KeywordIndex index = new KeywordIndex(source(recipes), versions, KeywordIndex.ENGINE, "");
+        long before = versions.changed(ownerId);
+        assertEquals("built", 1, index.search(ownerId, "apple", null).size());
+
+        index.recipeRemoved(ownerId, before, recipe.getObjectId("_id"));
+        assertEquals("already seen by the build, so skipped", 1, index.search(ownerId, "apple", null).size());
+
+        // changed on another node, which doesn't tell this one
+        recipes.set(0, new Document(recipe).append("title", "Cherry Pie"));
+        versions.changed(ownerId);
+        assertEquals("rebuilt", 1, index.search(ownerId, "cherry", null).size());
+        assertEquals("old terms gone", 0, index.search(ownerId, "apple", null).size());
+        assertEquals("builds", 2, index.getBuilds());
+
+        // another node changes it in between two changes here
+        long first = versions.changed(ownerId);
+        versions.changed(ownerId);
+        index.recipeSaved(ownerId, first, recipes.get(0));
+        index.recipeSaved(ownerId, versions.changed(ownerId), recipes.get(0));
+        index.search(ownerId, "cherry", null);
+        assertEquals("behind, so rebuilt", 3, index.getBuilds());
+        index.search(ownerId, "cherry", null);
+        assertEquals("caught up", 3, index.getBuilds());
+    }
+
+    @Test
+    public void testCompaction() {
+        ObjectId ownerId = new ObjectId();
+        Document recipe = new Document("_id", new ObjectId()).append("ownerId", ownerId).append("title", "Bread");
+        MemoryVersions versions = new MemoryVersions();
+        KeywordIndex index = new KeywordIndex(source(List.of(recipe)), versions, KeywordIndex.ENGINE, "");
+        index.search(ownerId, "bread", null);
+
+        for (int i = 0; i < 300; i++) {
+            index.recipeSaved(ownerId, versions.changed(ownerId), recipe);
+        }
+        assertEquals("thrown away", 0, index.getOwners());
+        assertEquals("rebuilt", 1, index.search(ownerId, "bread", null).size());
+    }
+
+    @Test
+    public void testDisabled() {
+        RecipeSource source = mock(RecipeSource.class);
+        KeywordIndex index = new KeywordIndex(source, new MemoryVersions(), "mongo", "");
+        index.recipeSaved(new ObjectId(), 1, new Document("_id", new ObjectId()));
+        index.recipeRemoved(new ObjectId(), 1, new ObjectId());
+        verifyNoInteractions(source);
+    }
+}
@@ -0,0 +1,46 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.search;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bson.types.ObjectId;
+
+/** Owner versions kept in memory, standing in for mongo.  Call
+ * {@link #changed} for a change, as the recipe manager would, and pass the
+ * version it returns to the listener, or don't, as for a change made on
+ * another node.
+ */
+class MemoryVersions extends OwnerVersions {
+    private final Map<ObjectId, Long> versions = new ConcurrentHashMap<>();
+
+    MemoryVersions() {
+        super(null);
+    }
+
+    @Override
+    public long get(ObjectId ownerId) {
+        return this.versions.getOrDefault(ownerId, 0L);
+    }
+
+    @Override
+    public long changed(ObjectId ownerId) {
+        return this.versions.merge(ownerId, 1L, Long::sum);
+    }
+}
@@ -0,0 +1,60 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.search;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class PostingListTest {
+    @Test
+    public void testRoundTrip() {
+        PostingList list = new PostingList();
+        int[] docs = { 0, 1, 2, 127, 128, 16_384, 3_000_000 };
+        for (int doc : docs) {
+            list.add(doc);
+        }
+        list.add(3_000_000); // repeated
+        assertEquals("size", docs.length, list.size());
+        assertArrayEquals("docs", docs, list.toArray());
+    }
+
+    @Test
+    public void testCompact() {
+        PostingList list = new PostingList();
+        for (int doc = 0; doc < 10_000; doc++) {
+            list.add(doc);
+        }
+        assertTrue("about a byte each", list.bytes() < 20_000);
+    }
+
+    @Test
+    public void testDescending() {
+        PostingList list = new PostingList();
+        list.add(5);
+        try {
+            list.add(4);
+            fail("descending");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
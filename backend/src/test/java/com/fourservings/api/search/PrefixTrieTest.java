@@ -0,0 +1,99 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class PrefixTrieTest {
+    private static List<String> keys(PrefixTrie<?> trie, String prefix) {
+        List<String> keys = new ArrayList<>();
+        trie.forEachWithPrefix(prefix, (key, value) -> keys.add(key));
+        return keys;
+    }
+
+    @Test
+    public void testPrefixes() {
+        PrefixTrie<Integer> trie = new PrefixTrie<>();
+        trie.put("tomato", 1);
+        trie.put("tomatoes", 2);
+        trie.put("tofu", 3);
+        trie.put("thyme", 4);
+        trie.put("to", 5);
+
+        assertEquals("size", 5, trie.size());
+        assertEquals("exact", Integer.valueOf(1), trie.get("tomato"));
+        assertNull("only a prefix", trie.get("tom"));
+        assertEquals("in order", List.of("to", "tofu", "tomato", "tomatoes"), keys(trie, "to"));
+        assertEquals("inside a label", List.of("tomato", "tomatoes"), keys(trie, "tom"));
+        assertEquals("all", 5, keys(trie, "").size());
+        assertEquals("none", List.of(), keys(trie, "tomb"));
+
+        assertEquals("removed", Integer.valueOf(1), trie.remove("tomato"));
+        assertNull("not there", trie.remove("tomato"));
+        assertEquals("children kept", List.of("tomatoes"), keys(trie, "tom"));
+        trie.remove("to");
+        assertEquals("folded", List.of("tofu", "tomatoes"), keys(trie, "to"));
+        assertEquals("size", 3, trie.size());
+    }
+
+    @Test
+    public void testStop() {
+        PrefixTrie<Integer> trie = new PrefixTrie<>();
+        for (String key : new String[] { "a", "ab", "abc", "abd" }) {
+            trie.put(key, 1);
+        }
+        List<String> visited = new ArrayList<>();
+        trie.forEachWithPrefix("a", (key, value) -> visited.add(key) && visited.size() < 2);
+        assertEquals(List.of("a", "ab"), visited);
+    }
+
+    @Test
+    public void testRandom() {
+        // against a TreeMap, which does the same job less compactly
+        PrefixTrie<Integer> trie = new PrefixTrie<>();
+        TreeMap<String, Integer> expected = new TreeMap<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 5000; i++) {
+            StringBuilder key = new StringBuilder();
+            for (int length = random.nextInt(6); length > 0; length--) {
+                key.append((char) ('a' + random.nextInt(3)));
+            }
+            if (random.nextInt(3) == 0) {
+                assertEquals(key.toString(), expected.remove(key.toString()), trie.remove(key.toString()));
+            } else {
+                expected.put(key.toString(), i);
+                trie.put(key.toString(), i);
+            }
+        }
+
+        assertEquals("size", expected.size(), trie.size());
+        for (String prefix : new String[] { "", "a", "ab", "cab", "bbbb" }) {
+            Map<String, Integer> under = expected.subMap(prefix, prefix + Character.MAX_VALUE);
+            assertEquals(prefix, new ArrayList<>(under.keySet()), keys(trie, prefix));
+        }
+    }
+}
@@ -0,0 +1,138 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+public class SearchCacheTest {
+    // shared by every node
+    private final MemoryVersions versions = new MemoryVersions();
+
+    private SearchCache cache(String maxMegabytes) {
+        return new SearchCache(this.versions, maxMegabytes);
+    }
+
+    private static Supplier<Pair<List<Document>, Integer>> search(AtomicInteger searches, String title) {
+        return () -> {
+            searches.incrementAndGet();
+            List<Document> results = new ArrayList<>();
+            results.add(new Document("title", title).append("tags", new ArrayList<>(List.of("dinner"))));
+            return ImmutablePair.of(results, 1);
+        };
+    }
+
+    @Test
+    public void testHitsAndInvalidation() {
+        SearchCache cache = cache("1");
+        ObjectId owner = new ObjectId();
+        ObjectId other = new ObjectId();
+        AtomicInteger searches = new AtomicInteger();
+
+        cache.get(owner, List.of("soup", 0, 10), search(searches, "Soup"));
+        Pair<List<Document>, Integer> cached = cache.get(owner, List.of("soup", 0, 10), search(searches, "Soup"));
+        assertEquals("searched once", 1, searches.get());
+        assertEquals("results", "Soup", cached.getLeft().get(0).getString("title"));
+        assertEquals("total", Integer.valueOf(1), cached.getRight());
+
+        cache.get(owner, List.of("soup", 10, 10), search(searches, "Soup"));
+        cache.get(other, List.of("soup", 0, 10), search(searches, "Soup"));
+        assertEquals("keyed by page and owner", 3, searches.get());
+
+        this.versions.changed(owner);
+        cache.get(owner, List.of("soup", 0, 10), search(searches, "Soup"));
+        cache.get(other, List.of("soup", 0, 10), search(searches, "Soup"));
+        assertEquals("only the owner's pages stale", 4, searches.get());
+
+        // a change on another node, with its own cache
+        SearchCache otherNode = cache("1");
+        otherNode.get(owner, List.of("soup", 10, 10), search(searches, "Soup"));
+        this.versions.changed(owner);
+        cache.get(owner, List.of("soup", 10, 10), search(searches, "Soup"));
+        assertEquals("changes on any node", 6, searches.get());
+
+        assertEquals("hits", 2, cache.getHits());
+        assertEquals("misses", 5, cache.getMisses());
+        assertEquals("hit rate", 2.0 / 7, cache.getHitRate(), 0.0001);
+    }
+
+    @Test
+    public void testCopies() {
+        SearchCache cache = cache("1");
+        ObjectId owner = new ObjectId();
+        AtomicInteger searches = new AtomicInteger();
+
+        Pair<List<Document>, Integer> first = cache.get(owner, List.of("soup"), search(searches, "Soup"));
+        first.getLeft().get(0).put("title", "Changed");
+        first.getLeft().get(0).getList("tags", String.class).add("lunch");
+
+        Pair<List<Document>, Integer> second = cache.get(owner, List.of("soup"), search(searches, "Soup"));
+        assertEquals("untouched", "Soup", second.getLeft().get(0).getString("title"));
+        assertEquals("nested untouched", List.of("dinner"), second.getLeft().get(0).getList("tags", String.class));
+    }
+
+    @Test
+    public void testEviction() {
+        SearchCache cache = cache("1");
+        ObjectId owner = new ObjectId();
+        AtomicInteger searches = new AtomicInteger();
+        String big = StringUtils.repeat('x', 20_000); // about 40kB each
+
+        for (int page = 0; page < 100; page++) {
+            cache.get(owner, List.of(page), search(searches, big));
+        }
+        assertTrue("bounded", cache.getBytes() <= 1024 * 1024);
+        assertTrue("evicted", cache.getEvictions() > 0);
+        assertEquals("accounted", 100, cache.getSize() + cache.getEvictions());
+
+        cache.get(owner, List.of(99), search(searches, big));
+        assertEquals("newest kept", 100, searches.get());
+        cache.get(owner, List.of(0), search(searches, big));
+        assertEquals("oldest evicted", 101, searches.get());
+
+        cache.get(owner, List.of("huge"), search(searches, StringUtils.repeat('x', 100_000)));
+        cache.get(owner, List.of("huge"), search(searches, StringUtils.repeat('x', 100_000)));
+        assertEquals("too big to cache", 103, searches.get());
+    }
+
+    @Test
+    public void testDisabled() {
+        SearchCache cache = cache("0");
+        ObjectId owner = new ObjectId();
+        AtomicInteger searches = new AtomicInteger();
+
+        cache.get(owner, List.of("soup"), search(searches, "Soup"));
+        cache.get(owner, List.of("soup"), search(searches, "Soup"));
+        assertFalse("disabled", cache.isEnabled());
+        assertEquals("always searched", 2, searches.get());
+        assertEquals("nothing kept", 0, cache.getSize());
+    }
+}
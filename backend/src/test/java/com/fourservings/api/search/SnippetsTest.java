@@ -0,0 +1,66 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.search;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+import org.bson.Document;
+import org.junit.Test;
+
+public class SnippetsTest {
+    private static String highlighted(Document snippet) {
+        String text = snippet.getString("text");
+        StringBuilder marked = new StringBuilder();
+        int at = 0;
+        for (List<?> highlight : snippet.getList("highlights", List.class)) {
+            int start = (Integer) highlight.get(0);
+            int end = (Integer) highlight.get(1);
+            marked.append(text, at, start).append('[').append(text, start, end).append(']');
+            at = end;
+        }
+        return marked.append(text.substring(at)).toString();
+    }
+
+    @Test
+    public void testExtract() {
+        String filler = StringUtils.repeat("stir well and ", 10);
+        Document recipe = new Document("title", "Tomato Soup")
+            .append("ingredients", List.of("4 ripe Tomatoes", "1 onion", "Tomato paste"))
+            .append("directions", List.of(filler + "add the tomato and onion. " + filler));
+        Set<String> terms = KeywordIndex.included("tomato onion");
+
+        List<Document> snippets = Snippets.extract(recipe, terms, 10);
+        assertEquals("every match", 4, snippets.size());
+        assertEquals("field", "ingredients", snippets.get(0).get("field"));
+        assertEquals("plural", "4 ripe [Tomatoes]", highlighted(snippets.get(0)));
+        assertEquals("whole entry", "[Tomato] paste", highlighted(snippets.get(2)));
+
+        Document directions = snippets.get(3);
+        assertEquals("field", "directions", directions.get("field"));
+        assertEquals("cut to the words around the first match",
+            "…stir well and stir well and stir well and add the [tomato] and [onion]. stir well and stir well and stir well…",
+            highlighted(directions));
+
+        assertEquals("at most", 2, Snippets.extract(recipe, terms, 2).size());
+        assertEquals("no match", List.of(), Snippets.extract(recipe, Set.of("durian"), 10));
+    }
+}
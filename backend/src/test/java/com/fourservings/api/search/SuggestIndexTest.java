@@ -0,0 +1,76 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.*;
+
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+public class SuggestIndexTest {
+    private static List<String> titles(Document suggestions) {
+        return suggestions.getList("titles", Document.class).stream()
+            .map(title -> title.getString("title"))
+            .collect(Collectors.toList());
+    }
+
+    @Test
+    public void testSuggest() {
+        ObjectId ownerId = new ObjectId();
+        List<Document> recipes = List.of(
+            new Document("_id", new ObjectId()).append("title", "Chicken Soup")
+                .append("ingredients", List.of("1 whole chicken", "2 carrots", "1 onion")),
+            new Document("_id", new ObjectId()).append("title", "Chicken Kiev")
+                .append("ingredients", List.of("2 chicken breasts", "1 cup chopped chives")),
+            new Document("_id", new ObjectId()).append("title", "Chickpea Curry")
+                .append("ingredients", List.of("1 can chickpeas")));
+
+        RecipeSource source = mock(RecipeSource.class);
+        doAnswer(invocation -> {
+            Consumer<Document> consumer = invocation.getArgument(1);
+            recipes.forEach(consumer);
+            return null;
+        }).when(source).forEach(eq(ownerId), any(), any());
+
+        MemoryVersions versions = new MemoryVersions();
+        SuggestIndex index = new SuggestIndex(source, versions, "");
+        Document suggestions = index.suggest(ownerId, "Chick", 10);
+        assertEquals("titles", List.of("Chicken Kiev", "Chicken Soup", "Chickpea Curry"), titles(suggestions));
+        assertEquals("ingredients, most used first", List.of("chicken", "chickpeas"),
+            suggestions.getList("ingredients", String.class));
+
+        assertEquals("whole prefix for titles", List.of("Chicken Soup"), titles(index.suggest(ownerId, "chicken s", 10)));
+        assertEquals("last word for ingredients", List.of("chicken", "carrots", "chickpeas", "chives"),
+            index.suggest(ownerId, "chicken c", 10).getList("ingredients", String.class));
+        assertEquals("limited", 1, titles(index.suggest(ownerId, "chi", 1)).size());
+        assertEquals("nothing typed", List.of(), titles(index.suggest(ownerId, " ", 10)));
+
+        index.recipeSaved(ownerId, versions.changed(ownerId), new Document(recipes.get(1)).append("title", "Chicken a la King"));
+        assertEquals("renamed", List.of("Chicken a la King", "Chicken Soup"), titles(index.suggest(ownerId, "chicken", 10)));
+
+        index.recipeRemoved(ownerId, versions.changed(ownerId), recipes.get(2).getObjectId("_id"));
+        assertEquals("removed", List.of(), index.suggest(ownerId, "chickp", 10).getList("ingredients", String.class));
+        assertEquals("built once", 1, index.getBuilds());
+    }
+}
@@ -0,0 +1,64 @@
+// Copyright (C) 2022 Michael Van Noord
+// 
+// This file is part of Fourservings.
+// 
+// Fourservings is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// Fourservings is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.fourservings.api.search;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.bson.Document;
+import org.junit.Test;
+
+public class TermsTest {
+    @Test
+    public void testWords() {
+        assertEquals("split, lower cased, unaccented", List.of("creme", "brulee", "2", "cups"),
+            Terms.words("Crème Brûlée, 2 cups!"));
+        assertEquals("null", List.of(), Terms.words(null));
+    }
+
+    @Test
+    public void testStem() {
+        assertEquals("berry", Terms.stem("berries"));
+        assertEquals("tomato", Terms.stem("tomatoes"));
+        assertEquals("peach", Terms.stem("peaches"));
+        assertEquals("egg", Terms.stem("eggs"));
+        assertEquals("couscous", Terms.stem("couscous"));
+        assertEquals("glass", Terms.stem("glass"));
+        assertEquals("short words left alone", "gas", Terms.stem("gas"));
+    }
+
+    @Test
+    public void testTerms() {
+        assertEquals("stop words dropped", List.of("salt", "pepper", "taste"), Terms.terms("Salt and pepper to taste"));
+    }
+
+    @Test
+    public void testIngredientWords() {
+        assertEquals(List.of("onions"), Terms.ingredientWords("2 cups chopped onions"));
+        assertEquals(List.of("olive", "oil"), Terms.ingredientWords("1 tbsp. olive oil, to taste"));
+    }
+
+    @Test
+    public void testText() {
+        Document recipe = new Document("title", "Soup")
+            .append("ingredients", List.of("1 onion", "2 carrots"))
+            .append("directions", 42);
+        assertEquals(List.of("Soup", "1 onion", "2 carrots"), Terms.text(recipe, Terms.FIELDS));
+    }
+}
@@ -19,13 +19,26 @@ import React from "react";
 import PropTypes from "prop-types";
 
 import { BASE_URL } from "@hooks/backend.js";
+import useUser from "@hooks/useUser.js";
 
-const Image = React.forwardRef(({src, ...others}, ref) => {
-    if (src?.startsWith("/")) src = BASE_URL + "/files" + src;
+const Image = React.forwardRef(({src, width, ...others}, ref) => {
+    const { user } = useUser();
+
+    if (src?.startsWith("/")) {
+        const params = new URLSearchParams();
+        // ask for a downsized copy, the backend falls back to the original
+        if (width) params.append("w", width);
+        // the same URL for every request, so it can be cached along the way
+        if (user?.fileCapability) params.append("c", user.fileCapability);
+
+        src = BASE_URL + "/files" + src;
+        if (params.toString()) src += "?" + params;
+    }
     return <img ref={ref} {...others} src={src}/>;
 });
 Image.propTypes = {
-    src: PropTypes.string.isRequired
+    src: PropTypes.string.isRequired,
+    width: PropTypes.number
 };
 
 export default Image;
\ No newline at end of file
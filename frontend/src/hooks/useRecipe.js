@@ -68,19 +68,56 @@ const useRecipe = (recipeId) => {
 };
 export default useRecipe;
 
-export const useRecipes = ({ search, group, start, count }) => {
+export const useRecipes = ({ search, group, start, count, fields, sort }) => {
     const [result, setResult] = useState();
 
     useEffect(() => {
         setResult(null);
-        get("/recipes/", { search, group, start, count }).then(setResult);
-    }, [search, group, start, count]);
+        get("/recipes/", { search, group, start, count, fields, sort }).then(
+            setResult
+        );
+    }, [search, group, start, count, fields, sort]);
 
     const actions = {
+        // listed recipes may only have some of their fields, and an update
+        // replaces the whole recipe, so apply the changes to all of it
         update: (recipe) => {
-            return put(`/recipes/${recipe._id}`, recipe);
+            // snippets are only for showing in the list, not part of the recipe
+            const { snippets, ...changes } = recipe;
+            return get(`/recipes/${recipe._id}`).then((full) =>
+                put(`/recipes/${recipe._id}`, { ...full, ...changes })
+            );
         },
     };
 
     return { recipes: result, actions };
 };
+
+const SUGGEST_DELAY_MS = 150;
+
+// Typeahead for the search box. Waits for a pause in typing, and ignores
+// answers to anything but the latest prefix.
+export const useSuggestions = (prefix) => {
+    const [suggestions, setSuggestions] = useState();
+
+    useEffect(() => {
+        if (!prefix?.trim()) {
+            setSuggestions(null);
+            return;
+        }
+
+        let current = true;
+        const timer = setTimeout(() => {
+            get("/recipes/_suggest", { q: prefix, limit: 8 }).then((result) => {
+                if (current) setSuggestions(result);
+            });
+        }, SUGGEST_DELAY_MS);
+
+        return () => {
+            current = false;
+            clearTimeout(timer);
+        };
+    }, [prefix]);
+
+    return suggestions;
+};
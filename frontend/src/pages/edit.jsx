@@ -279,6 +279,7 @@ const EditPage = ({}) => {
                             <Image
                                 className="rounded-lg grow h-[12rem] object-cover"
                                 src={url}
+                                width={640}
                             />
                         </div>
                     ))}
@@ -23,7 +23,7 @@ import {
     useSearchParams,
 } from "react-router-dom";
 
-import { useRecipes } from "@hooks/useRecipe.js";
+import { useRecipes, useSuggestions } from "@hooks/useRecipe.js";
 import useGroup, { useGroups } from "@hooks/useGroup.js";
 
 import NavMenu, { Item as NavMenuItem } from "@components/navMenu.jsx";
@@ -54,6 +54,8 @@ const LibraryPage = ({}) => {
 
     const [modal, setModal] = useState();
     const [search, setSearch] = useState();
+    const [typed, setTyped] = useState();
+    const suggestions = useSuggestions(typed);
 
     const page = parseInt(searchParams.get("p")) || 0;
     const setPage = (p) => setSearchParams({ p });
@@ -66,6 +68,8 @@ const LibraryPage = ({}) => {
         group: search ? null : groupId,
         start: page * ITEMS_PER_PAGE,
         count: ITEMS_PER_PAGE,
+        fields: "summary",
+        sort: search ? "relevance" : null,
     });
 
     const [refreshGroups, setRefreshGroups] = useState();
@@ -134,6 +138,8 @@ const LibraryPage = ({}) => {
                                     type="text"
                                     placeholder="Search"
                                     className="block w-full pl-8 py-1 px-2 font-light border outline-emerald-600 border-stone-200 rounded-md"
+                                    list="search-suggestions"
+                                    onChange={(e) => setTyped(e.target.value)}
                                     onBlur={(e) =>
                                         setSearch(e.target.value.trim())
                                     }
@@ -143,6 +149,14 @@ const LibraryPage = ({}) => {
                                             : null
                                     }
                                 />
+                                <datalist id="search-suggestions">
+                                    {suggestions?.titles.map((t) => (
+                                        <option key={t._id} value={t.title} />
+                                    ))}
+                                    {suggestions?.ingredients.map((i) => (
+                                        <option key={i} value={i} />
+                                    ))}
+                                </datalist>
                             </div>
                         </NavMenuItem>
                     </NavMenu>
@@ -274,6 +288,7 @@ const RecipeCard = ({ recipe, groups, className, style, onUpdate }) => {
                     <Image
                         className="rounded-md w-full object-cover h-full"
                         src={img}
+                        width={640}
                     />
                 ) : (
                     <div className="inset-0 absolute rounded-md bg-emerald-900/40"></div>
@@ -289,6 +304,9 @@ const RecipeCard = ({ recipe, groups, className, style, onUpdate }) => {
                 <div className="max-w-[200px] font-brand text-2xl font-semibold">
                     {recipe.title}
                 </div>
+                {recipe.snippets?.map((snippet, i) => (
+                    <Snippet key={i} snippet={snippet} />
+                ))}
                 {recipe.link && (
                     <div className="flex place-content-end">
                         <a
@@ -309,6 +327,23 @@ const RecipeCard = ({ recipe, groups, className, style, onUpdate }) => {
     );
 };
 
+// Where a search matched, with the matched words marked
+const Snippet = ({ snippet }) => {
+    const parts = [];
+    let at = 0;
+    snippet.highlights.forEach(([start, end]) => {
+        parts.push(snippet.text.substring(at, start));
+        parts.push(
+            <mark key={start} className="bg-emerald-200/70 rounded-sm">
+                {snippet.text.substring(start, end)}
+            </mark>
+        );
+        at = end;
+    });
+    parts.push(snippet.text.substring(at));
+    return <div className="text-sm text-stone-700 mt-1">{parts}</div>;
+};
+
 const GroupMenu = ({ recipe, groups, onUpdate }) => {
     if (!groups?.length > 0) return null;
 
@@ -254,6 +254,7 @@ const RecipePage = ({}) => {
                                         <Image
                                             className="rounded-lg h-[12rem] object-cover w-full"
                                             src={url}
+                                            width={640}
                                         />
                                     </button>
                                 ))}
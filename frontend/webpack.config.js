@@ -16,7 +16,9 @@
 // along with Fourservings.  If not, see <http://www.gnu.org/licenses/>.
 
 const path = require("path");
+const zlib = require("zlib");
 const HtmlWebpackPlugin = require("html-webpack-plugin");
+const CompressionPlugin = require("compression-webpack-plugin");
 const { DefinePlugin } = require("webpack");
 
 const prod = process.env.NODE_ENV === "production";
@@ -26,6 +28,8 @@ module.exports = {
     entry: path.join(__dirname, "src", "index.js"),
     output: {
         path: path.resolve(__dirname, "dist"),
+        // hashed names can be cached forever by the backend's static handler
+        filename: prod ? "[name].[contenthash].js" : "[name].js",
         publicPath: "/",
     },
     devtool: prod ? "source-map" : "eval-source-map",
@@ -58,7 +62,15 @@ module.exports = {
         }),
         new DefinePlugin({
             BACKEND_BASE_URL: prod ? '"/api"' : '"http://localhost:8081"'
-        })
+        }),
+        // brotli copies for the backend to serve, gzip it does itself
+        ...(prod ? [new CompressionPlugin({
+            filename: "[path][base].br",
+            algorithm: "brotliCompress",
+            test: /\.(js|css|html|svg|map)$/,
+            compressionOptions: { params: { [zlib.constants.BROTLI_PARAM_QUALITY]: 11 } },
+            minRatio: 0.9,
+        })] : []),
     ],
     resolve: {
         alias: {